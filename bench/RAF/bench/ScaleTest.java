@@ -0,0 +1,73 @@
+package raf.bench;
+
+import java.util.Enumeration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import raf.principal.ClassManager;
+import raf.principal.Ra;
+import raf.principal.RaAgency;
+
+
+/**
+ * Prueba de escala: arranca una agencia, crea muchos agentes residentes
+ * con la estrategia de ejecucion indicada y muestra cuanto ha tardado,
+ * cuantos agentes hay y cuantos threads y cuanta memoria se usan.
+ *
+ * <pre>
+ * java raf.bench.ScaleTest [thread|virtual|pool] [agentes] [threads] [puerto]
+ * </pre>
+ *
+ * Por defecto: pool, 100000 agentes, 8 threads, puerto 10141.
+ */
+public class ScaleTest
+{
+    static CountDownLatch ran;
+
+    /**
+     * Agente que solo cuenta su run() y se queda en la agencia.
+     */
+    public static class Idle extends Ra
+    {
+        private static final long serialVersionUID = 1L;
+
+        public Idle(String name){
+            super(name);
+        }
+
+        public void run(){
+            ran.countDown();
+        }
+    }
+
+    public static void main(String[] args) throws Exception{
+        String mode = (args.length > 0) ? args[0] : "pool";
+        int agents = (args.length > 1) ? Integer.parseInt(args[1]) : 100000;
+        int threads = (args.length > 2) ? Integer.parseInt(args[2]) : 8;
+        int port = (args.length > 3) ? Integer.parseInt(args[3]) : 10141;
+
+        ran = new CountDownLatch(agents);
+        Object parent = new Object();
+        RaAgency agency = new RaAgency(parent, new ClassManager(1000, null));
+        agency.setExecution(mode, threads);
+        agency.startAgency(parent, port, null);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < agents; ++i) agency.addRaOnCreation(new Idle("Idle_" + i), null);
+        boolean all = ran.await(120, TimeUnit.SECONDS);
+        long ms = (System.nanoTime() - start) / 1000000;
+
+        int resident = 0;
+        for (Enumeration<String> e = agency.getRaNames(parent); e.hasMoreElements(); e.nextElement()) ++resident;
+        System.gc();
+        Runtime rt = Runtime.getRuntime();
+        System.out.println("---------------------------------------------");
+        System.out.println("Ejecucion: " + mode + " (" + threads + " threads)");
+        System.out.println("Agentes creados: " + agents + " en " + ms + " ms" + (all ? "" : " (no se han ejecutado todos)"));
+        System.out.println("Agentes residentes: " + resident);
+        System.out.println("Threads vivos: " + Thread.activeCount());
+        System.out.println("Memoria usada: " + (rt.totalMemory() - rt.freeMemory()) / (1024 * 1024) + " MB");
+        System.out.println("---------------------------------------------");
+        agency.stopAgency(parent);
+        System.exit(all ? 0 : 1);
+    }
+}
@@ -0,0 +1,129 @@
+package raf.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import raf.principal.Ra;
+import raf.principal.RaInputStream;
+import raf.principal.RaOutputStream;
+import raf.principal.RaSerializer;
+
+
+/**
+ * Medida del serializador: escribe y vuelve a leer muchas veces el mismo
+ * agente con RaOutputStream / RaInputStream, una vez con la serializacion
+ * de Java y otra con RaSerializer, y muestra lo que ocupa el agente y lo
+ * que tarda cada ida y vuelta.
+ *
+ * <pre>
+ * java raf.bench.SerializerBench [vueltas] [calentamiento] [repeticiones]
+ * </pre>
+ *
+ * Por defecto: 20000 vueltas, 20000 de calentamiento y 5 repeticiones. No
+ * es JMH: hay que comparar la mejor de las repeticiones en la misma maquina
+ * virtual y la misma maquina. RaInputStream escribe cada clase que carga,
+ * asi que la salida se silencia mientras se mide.
+ */
+public class SerializerBench
+{
+    static Object sink;
+
+    /**
+     * Agente con campos primitivos, un String, un array y una coleccion.
+     */
+    public static class Payload extends Ra
+    {
+        private static final long serialVersionUID = 1L;
+
+        int hops;
+        long started;
+        double load;
+        boolean returning;
+        String home;
+        int[] visited;
+        ArrayList<String> notes = new ArrayList<String>();
+
+        public Payload(String name){
+            super(name);
+            started = System.currentTimeMillis();
+            load = 0.75;
+            home = "localhost:10101";
+            visited = new int[32];
+            for (int i = 0; i < visited.length; ++i) visited[i] = 10101 + i;
+            for (int i = 0; i < 8; ++i) notes.add("nota " + i);
+        }
+
+        public void run(){
+            hops++;
+        }
+    }
+
+    static byte[] write(Ra agent, boolean fast) throws IOException{
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RaOutputStream out = new RaOutputStream(bytes);
+        out.setFastAgents(fast);
+        out.writeAgent(agent);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static Object read(byte[] data) throws IOException, ClassNotFoundException{
+        RaInputStream in = new RaInputStream(SerializerBench.class.getClassLoader(), new ByteArrayInputStream(data));
+        Object o = in.readAgent();
+        in.close();
+        return o;
+    }
+
+    /**
+     * Devuelve los nanosegundos de una ida y vuelta, de media en rounds vueltas.
+     */
+    static long run(Ra agent, boolean fast, int rounds) throws Exception{
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; ++i) sink = read(write(agent, fast));
+        return (System.nanoTime() - start) / rounds;
+    }
+
+    public static void main(String[] args) throws Exception{
+        int rounds = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+        int warmup = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+        int repeats = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+
+        Payload agent = new Payload("Payload_0");
+        if (!RaSerializer.isFast(Payload.class)) System.out.println("RaSerializer no disponible, las dos medidas usan la serializacion de Java");
+        Payload copy = (Payload) read(write(agent, true));
+        if (copy.visited[31] != agent.visited[31] || !copy.notes.equals(agent.notes)){
+            System.out.println("RaSerializer no devuelve el mismo agente");
+            System.exit(1);
+        }
+
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream(){
+            public void write(int b){
+            }
+            public void write(byte[] b, int off, int len){
+            }
+        }));
+        long java = Long.MAX_VALUE;
+        long fast = Long.MAX_VALUE;
+        try {
+            run(agent, false, warmup);
+            run(agent, true, warmup);
+            for (int i = 0; i < repeats; ++i){
+                java = Math.min(java, run(agent, false, rounds));
+                fast = Math.min(fast, run(agent, true, rounds));
+            }
+        }
+        finally {
+            System.setOut(stdout);
+        }
+
+        System.out.println("---------------------------------------------");
+        System.out.println("Idas y vueltas: " + rounds + " x " + repeats + " (la mejor), calentamiento " + warmup);
+        System.out.println("Serializacion de Java: " + write(agent, false).length + " bytes, " + java + " ns");
+        System.out.println("RaSerializer:          " + write(agent, true).length + " bytes, " + fast + " ns");
+        System.out.println("---------------------------------------------");
+    }
+}
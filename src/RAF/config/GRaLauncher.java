@@ -116,6 +116,22 @@ public class GRaLauncher extends JFrame implements ActionListener,
         catch (NumberFormatException e){
             byteCodeDelay = 100000;
         }
+        try {
+            RaConnectionPool pool = RaConnectionPool.getDefault();
+            pool.setIdleTimeout(Long.parseLong(props.getProperty("poolIdleTimeout", "60000")));
+            pool.setMaxIdle(Integer.parseInt(props.getProperty("poolMaxIdle", "4")));
+            pool.setAckTimeout(Long.parseLong(props.getProperty("ackTimeout", "30000")));
+        }
+        catch (NumberFormatException e){
+            System.err.println ("GRaLauncher: Valores del pool de conexiones no validos!");
+        }
+        RaCompression.setEnabled (Boolean.valueOf(props.getProperty("compression", "true")).booleanValue());
+        try {
+            RaCompression.setThreshold (Integer.parseInt(props.getProperty("compressThreshold", "512")));
+        }
+        catch (NumberFormatException e){
+            System.err.println ("GRaLauncher: Valor de compressThreshold no valido!");
+        }
         try {
             strRaServer = props.getProperty("raServer");
             raPort = Integer.parseInt(props.getProperty("raPort", "10102"));
@@ -142,9 +158,91 @@ public class GRaLauncher extends JFrame implements ActionListener,
 
         // lanza una nuva agencia
         classManager = new ClassManager (byteCodeDelay, props.getProperty("agentsPath"));
+        classManager.setCodeVersion (props.getProperty("codeVersion", ""));
+        try {
+            classManager.setCodeBudget (Long.parseLong(props.getProperty("byteCodeBudget", "0")));
+        }
+        catch (NumberFormatException e){
+            System.err.println ("GRaLauncher: Valor de byteCodeBudget no valido!");
+        }
+        if (props.getProperty("codeStoreDir") != null){
+            try {
+                classManager.setCodeStore (props.getProperty("codeStoreDir"),
+                                           Long.parseLong(props.getProperty("codeStoreBudget", "0")));
+            }
+            catch (NumberFormatException e){
+                System.err.println ("GRaLauncher: Valor de codeStoreBudget no valido!");
+            }
+        }
 
         raAgency = new RaAgency (this, classManager);
         raAgency.addAgencyListener (this);
+        try {
+            raAgency.setIoMode (props.getProperty("ioMode", "threads"),
+                                Integer.parseInt(props.getProperty("ioThreads", "2")),
+                                Integer.parseInt(props.getProperty("workerThreads", "8")));
+        }
+        catch (NumberFormatException e){
+            System.err.println ("GRaLauncher: Valores de ioThreads o workerThreads no validos!");
+        }
+        try {
+            raAgency.setBatching (Long.parseLong(props.getProperty("batchLinger", "2")),
+                                  Integer.parseInt(props.getProperty("batchMaxBytes", "65536")),
+                                  Integer.parseInt(props.getProperty("batchMaxMessages", "64")));
+        }
+        catch (NumberFormatException e){
+            System.err.println ("GRaLauncher: Valores de la cola de salida no validos!");
+        }
+        raAgency.setLocalTransfer (props.getProperty("localTransfer", "reference"));
+        raAgency.setCodeBundle (props.getProperty("codeBundle", "none"));
+        raAgency.setAgentSerializer (props.getProperty("agentSerializer", "java"));
+        try {
+            raAgency.setAgentTransfer (props.getProperty("agentTransfer", "message"),
+                                         Integer.parseInt(props.getProperty("streamChunk", "65536")));
+        }
+        catch (NumberFormatException e){
+            System.err.println ("GRaLauncher: Valor de streamChunk no valido!");
+        }
+        try {
+            raAgency.setDelta (Boolean.valueOf(props.getProperty("agentDelta", "false")).booleanValue(),
+                               Integer.parseInt(props.getProperty("deltaThreshold", "16384")),
+                               Long.parseLong(props.getProperty("snapshotBudget", "16777216")),
+                               Long.parseLong(props.getProperty("snapshotAge", "600000")));
+        }
+        catch (NumberFormatException e){
+            System.err.println ("GRaLauncher: Valores de agentDelta no validos!");
+        }
+        raAgency.setCodeTransitive (Boolean.valueOf(props.getProperty("codeTransitive", "false")).booleanValue());
+        try {
+            raAgency.setExecution (props.getProperty("agentExecution", "thread"),
+                                   Integer.parseInt(props.getProperty("agentThreads", "16")));
+        }
+        catch (NumberFormatException e){
+            System.err.println ("GRaLauncher: Valor de agentThreads no valido!");
+        }
+        try {
+            raAgency.setEventThreads (Integer.parseInt(props.getProperty("eventThreads", "1")));
+        }
+        catch (NumberFormatException e){
+            System.err.println ("GRaLauncher: Valor de eventThreads no valido!");
+        }
+        try {
+            raAgency.setMailbox (Integer.parseInt(props.getProperty("mailboxCapacity", "1000")),
+                                 props.getProperty("mailboxOverflow", "reject"));
+        }
+        catch (NumberFormatException e){
+            System.err.println ("GRaLauncher: Valor de mailboxCapacity no valido!");
+        }
+        if (props.getProperty("passivationDir") != null){
+            try {
+                raAgency.setPassivation (props.getProperty("passivationDir"),
+                                         Long.parseLong(props.getProperty("passivationBudget", "0")),
+                                         Long.parseLong(props.getProperty("passivateAfter", "0")));
+            }
+            catch (NumberFormatException e){
+                System.err.println ("GRaLauncher: Valores de pasivacion no validos!");
+            }
+        }
 	setVisible(false);
 
        	// crea el menu principal
@@ -229,11 +327,8 @@ public class GRaLauncher extends JFrame implements ActionListener,
     public void actionPerformed (ActionEvent e){
         if ( e.getActionCommand().equals (MessagesEv.LOAD) ) {
            
-            File agentsPath = new File ( File.separator + "raf" + File.separator + "agentes" + File.separator );
-         //   cargar los nombred de los agentes
-           String[] lista = agentsPath.list();
-           System.out.println (lista);
-           Object[] lis = (Object[]) agentsPath.list();
+         //   cargar los nombres de los agentes
+           Object[] lis = classManager.getRepository().getClassNames().toArray();
            String s = (String) JOptionPane.showInputDialog(
                      frame2,
                      "Elige un Agente",
@@ -291,10 +386,12 @@ public class GRaLauncher extends JFrame implements ActionListener,
       
         String name;
 
-        name = "raf.agentes." + s;
+        // nombre completo, o el de una clase del paquete raf.agentes
+        name = s;
+        if (!classManager.getRepository().contains(name) && name.indexOf('.') < 0) name = "raf.agentes." + s;
+        RaClassLoader loader = classManager.getLoader(null, null, classManager.getCodeVersion());
         try{
             Class<?> result;
-            RaClassLoader loader = new RaClassLoader(classManager, null, null);
             result = loader.loadClass(name);
             if (result == null){
                 System.err.println ("GRaLauncher: No se pudo cargar la clase! clase no encontrada!");
@@ -321,6 +418,9 @@ public class GRaLauncher extends JFrame implements ActionListener,
         catch (InstantiationException e){
             System.err.println ("! GRaLauncher: No se ha podido cargar la clase! " + e);
         }
+        finally {
+            classManager.releaseLoader(loader);
+        }
     }
 
     /**
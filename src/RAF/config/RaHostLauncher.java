@@ -0,0 +1,212 @@
+package raf.config;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Properties;
+import java.util.StringTokenizer;
+
+import raf.principal.*;
+
+/**
+ * Lanzador sin interfaz de usuario que ejecuta varias agencias en una
+ * misma maquina virtual con un RaHost. Los puertos de las agencias se
+ * indican en la propiedad hostPorts de movil.config.
+ */
+public class RaHostLauncher{
+
+    /**
+     * Donde esta la configuracion del servidor.
+     */
+    String strConfigFile = "src"
+    					  + File.separator
+    					  + "raf"
+                          + File.separator
+                          + "config"
+                          + File.separator
+                          + "movil.config";
+
+    /**
+     * El host que ejecuta las agencias.
+     */
+    RaHost raHost;
+
+    /**
+     * Lee la configuracion y arranca una agencia por cada puerto.
+     */
+    public RaHostLauncher(){
+        Properties props = new Properties ();
+        long byteCodeDelay;
+        int ioThreads;
+        int workerThreads;
+        RaAddress raServer = null;
+
+        // lee las propiedades del fichero
+        try {
+            FileInputStream in = new FileInputStream (strConfigFile);
+            props.load (in);
+            in.close();
+        }
+        catch (FileNotFoundException e){
+            System.err.println ("RaHostLauncher: No se puede abrir el fichero de configuracion!");
+        }
+        catch (IOException e){
+            System.err.println ("RaHostLauncher: Ha fallado la lectura del fichero!");
+        }
+
+        // inicializa las propiedades
+        try {
+            byteCodeDelay = Long.parseLong(props.getProperty("byteCodeDelay", "100000"));
+        }
+        catch (NumberFormatException e){
+            byteCodeDelay = 100000;
+        }
+        try {
+            ioThreads = Integer.parseInt(props.getProperty("ioThreads", "2"));
+            workerThreads = Integer.parseInt(props.getProperty("workerThreads", "8"));
+        }
+        catch (NumberFormatException e){
+            System.err.println ("RaHostLauncher: Valores de ioThreads o workerThreads no validos!");
+            ioThreads = 2;
+            workerThreads = 8;
+        }
+        try {
+            RaConnectionPool pool = RaConnectionPool.getDefault();
+            pool.setIdleTimeout(Long.parseLong(props.getProperty("poolIdleTimeout", "60000")));
+            pool.setMaxIdle(Integer.parseInt(props.getProperty("poolMaxIdle", "4")));
+            pool.setAckTimeout(Long.parseLong(props.getProperty("ackTimeout", "30000")));
+        }
+        catch (NumberFormatException e){
+            System.err.println ("RaHostLauncher: Valores del pool de conexiones no validos!");
+        }
+        RaCompression.setEnabled (Boolean.valueOf(props.getProperty("compression", "true")).booleanValue());
+        try {
+            RaCompression.setThreshold (Integer.parseInt(props.getProperty("compressThreshold", "512")));
+        }
+        catch (NumberFormatException e){
+            System.err.println ("RaHostLauncher: Valor de compressThreshold no valido!");
+        }
+        try {
+            String strRaServer = props.getProperty("raServer");
+            int raPort = Integer.parseInt(props.getProperty("raPort", "10102"));
+            if (strRaServer != null)
+                raServer = new RaAddress (InetAddress.getByName(strRaServer), raPort, null);
+        }
+        catch (NumberFormatException e){
+            System.err.println ("RaHostLauncher: raPort no valido!");
+        }
+        catch (UnknownHostException e){
+            System.out.println("! RaHostLauncher: raServer no valido." + e);
+        }
+
+        // lanza el host con un ClassManager compartido
+        ClassManager classManager = new ClassManager (byteCodeDelay, props.getProperty("agentsPath"));
+        classManager.setCodeVersion (props.getProperty("codeVersion", ""));
+        try {
+            classManager.setCodeBudget (Long.parseLong(props.getProperty("byteCodeBudget", "0")));
+        }
+        catch (NumberFormatException e){
+            System.err.println ("RaHostLauncher: Valor de byteCodeBudget no valido!");
+        }
+        if (props.getProperty("codeStoreDir") != null){
+            try {
+                classManager.setCodeStore (props.getProperty("codeStoreDir"),
+                                           Long.parseLong(props.getProperty("codeStoreBudget", "0")));
+            }
+            catch (NumberFormatException e){
+                System.err.println ("RaHostLauncher: Valor de codeStoreBudget no valido!");
+            }
+        }
+        try {
+            raHost = new RaHost (classManager, ioThreads, workerThreads);
+        }
+        catch (IOException e){
+            System.err.println ("! RaHostLauncher: No se ha podido crear el RaHost!" + e);
+            System.exit(1);
+        }
+        try {
+            raHost.setBatching (Long.parseLong(props.getProperty("batchLinger", "2")),
+                                Integer.parseInt(props.getProperty("batchMaxBytes", "65536")),
+                                Integer.parseInt(props.getProperty("batchMaxMessages", "64")));
+        }
+        catch (NumberFormatException e){
+            System.err.println ("RaHostLauncher: Valores de la cola de salida no validos!");
+        }
+        raHost.setLocalTransfer (props.getProperty("localTransfer", "reference"));
+        raHost.setCodeBundle (props.getProperty("codeBundle", "none"));
+        raHost.setAgentSerializer (props.getProperty("agentSerializer", "java"));
+        try {
+            raHost.setAgentTransfer (props.getProperty("agentTransfer", "message"),
+                                       Integer.parseInt(props.getProperty("streamChunk", "65536")));
+        }
+        catch (NumberFormatException e){
+            System.err.println ("RaHostLauncher: Valor de streamChunk no valido!");
+        }
+        try {
+            raHost.setDelta (Boolean.valueOf(props.getProperty("agentDelta", "false")).booleanValue(),
+                             Integer.parseInt(props.getProperty("deltaThreshold", "16384")),
+                             Long.parseLong(props.getProperty("snapshotBudget", "16777216")),
+                             Long.parseLong(props.getProperty("snapshotAge", "600000")));
+        }
+        catch (NumberFormatException e){
+            System.err.println ("RaHostLauncher: Valores de agentDelta no validos!");
+        }
+        raHost.setCodeTransitive (Boolean.valueOf(props.getProperty("codeTransitive", "false")).booleanValue());
+        try {
+            raHost.setExecution (props.getProperty("agentExecution", "thread"),
+                                 Integer.parseInt(props.getProperty("agentThreads", "16")));
+        }
+        catch (NumberFormatException e){
+            System.err.println ("RaHostLauncher: Valor de agentThreads no valido!");
+        }
+        try {
+            raHost.setEventThreads (Integer.parseInt(props.getProperty("eventThreads", "1")));
+        }
+        catch (NumberFormatException e){
+            System.err.println ("RaHostLauncher: Valor de eventThreads no valido!");
+        }
+        try {
+            raHost.setMailbox (Integer.parseInt(props.getProperty("mailboxCapacity", "1000")),
+                               props.getProperty("mailboxOverflow", "reject"));
+        }
+        catch (NumberFormatException e){
+            System.err.println ("RaHostLauncher: Valor de mailboxCapacity no valido!");
+        }
+        if (props.getProperty("passivationDir") != null){
+            try {
+                raHost.setPassivation (props.getProperty("passivationDir"),
+                                       Long.parseLong(props.getProperty("passivationBudget", "0")),
+                                       Long.parseLong(props.getProperty("passivateAfter", "0")));
+            }
+            catch (NumberFormatException e){
+                System.err.println ("RaHostLauncher: Valores de pasivacion no validos!");
+            }
+        }
+
+        StringTokenizer ports = new StringTokenizer(
+                                    props.getProperty("hostPorts", props.getProperty("port", "10101")), ", ");
+        while (ports.hasMoreTokens()){
+            String port = ports.nextToken();
+            try {
+                if (raHost.startAgency (Integer.parseInt(port), raServer) == null)
+                    System.err.println ("RaHostLauncher: No se ha podido arrancar la agencia del puerto " + port);
+            }
+            catch (NumberFormatException e){
+                System.err.println ("RaHostLauncher: Puerto no valido: " + port);
+            }
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(){
+            public void run(){
+                raHost.shutdown();
+            }
+        });
+    }
+
+    /**
+     * Crea un nuevo host de agencias.
+     */
+    public static void main (String[] args){
+        new RaHostLauncher();
+    }
+}
@@ -9,6 +9,24 @@ public class MessagesEv {
 	public static final String AGENS = "AGENCYS";
 	public static final String GET_C = "GET_CLASS";
 	public static final String GET = "GET";
+	public static final String CLASS = "CLASS";
+	public static final String ERROR = "ERROR";
+	public static final String ONLINE = "AGENCY_ONLINE";
+	public static final String OFFLINE = "AGENCY_OFFLINE";
+	public static final String HELLO = "HELLO";
+	public static final String BATCH = "BATCH";
+	public static final String ACK = "ACK";
+	public static final String RA_GROUP = "RA_GROUP";
+	public static final String RA_BUNDLE = "RA_BUNDLE";
+	public static final String RA_MANIFEST = "RA_MANIFEST";
+	public static final String GET_CODE = "GET_CODE";
+	public static final String CODE = "CODE";
+	public static final String GET_CLASSES = "GET_CLASSES";
+	public static final String CLASSES = "CLASSES";
+	public static final String RA_STREAM = "RA_STREAM";
+	public static final String GET_SNAPSHOT = "GET_SNAPSHOT";
+	public static final String SNAPSHOT = "SNAPSHOT";
+	public static final String RA_DELTA = "RA_DELTA";
 
 
 	
@@ -2,9 +2,22 @@ package raf.principal;
 
 import java.io.*;
 import java.lang.String;
-import java.lang.StringIndexOutOfBoundsException;
 import java.lang.Thread;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -35,6 +48,11 @@ public class ClassManager
          */
         public int count;
 
+        /**
+         * Momento en que el contador llego a cero.
+         */
+        long idleSince;
+
         /**
          * Crea un nuevo ClassBox.
          * El contador es puesto a 1.
@@ -50,37 +68,31 @@ public class ClassManager
     }
 
     /**
-     * Clase auxiliar del ClassManager que borra una clase despues del tiempo de retardo.
+     * Thread del ClassManager que cada cierto tiempo descarta las clases y
+     * los class loaders que llevan el tiempo de retardo sin agentes, y el
+     * bytecode usado hace mas tiempo si ocupa mas del limite.
      */
-    class Remover extends Thread{
+    class Evictor extends Thread{
 
-        /**
-         * Nombre de la clase que va a ser borrada.
-         */
-        private String name;
-
-        /**
-         * Tiempo de retardo en milisegundos despues del cual la clase es borrada si su contador llega a cero.
-         */
-        private long delay;
-
-        public Remover (String name, long delay){
-            this.delay = delay;
-            this.name = name;
+        public Evictor (){
+            super("ClassManager-Evictor");
+            setDaemon(true);
         }
 
-        /**
-         * Espera el tiempo de retardo especificado y entonces borra la clase de la cache si el contador llega cero;
-         */
         public void run(){
-            try {
-                Thread.sleep(delay);
-                // mejor bloquear la cache durante esta operacion
-                if ( ((ClassBox)cache.get(name)).count == 0)
-                    cache.remove(name);
-            }
-            catch (InterruptedException e){
-                System.err.println ("El thread Remover ha sido interrumpido!");
+            while (running){
+                try {
+                    Thread.sleep(interval);
+                }
+                catch (InterruptedException e){
+                    if (!running) return;
+                }
+                try {
+                    evict(System.currentTimeMillis());
+                }
+                catch (RuntimeException e){
+                    System.err.println ("! ClassManager: " + e);
+                }
             }
         }
     }
@@ -90,6 +102,11 @@ public class ClassManager
       */
      public String agentsPath = null;
 
+    /**
+     * Indice de las clases de agentsPath.
+     */
+    RaCodeRepository repository;
+
     /**
      * Stores class data in ClassBoxes.
      */
@@ -101,6 +118,82 @@ public class ClassManager
      */
     long delay;
 
+    /**
+     * Class loaders de los agentes que llegan, uno por agencia origen y
+     * version del codigo.
+     */
+    ConcurrentHashMap<String, RaClassLoader> loaders = new ConcurrentHashMap<String, RaClassLoader>();
+
+    /**
+     * Version del codigo de los agentes de esta agencia. Viaja con los
+     * agentes para que el destino no mezcle clases de versiones distintas.
+     */
+    String codeVersion = "";
+
+    /**
+     * Bytecodes por el hash de su contenido, del usado hace mas tiempo al
+     * ultimo. Dos versiones de una clase con el mismo nombre tienen hashes
+     * distintos y no se confunden. Se accede sincronizando sobre el mapa.
+     */
+    LinkedHashMap<String, byte[]> code = new LinkedHashMap<String, byte[]>(64, 0.75f, true);
+
+    /**
+     * Bytecode de las clases propias de esta agencia (no definidas por un
+     * RaClassLoader) que se han anunciado a otras agencias, por su hash. No
+     * cuenta para codeBudget ni se descarta, porque los manifiestos ya
+     * enviados lo anuncian y ningun almacen lo guarda. Se accede
+     * sincronizando sobre code.
+     */
+    private HashMap<String, byte[]> ownCode = new HashMap<String, byte[]>();
+
+    /**
+     * Bytes que ocupan los bytecodes de code.
+     */
+    private long codeBytes = 0;
+
+    /**
+     * Bytes que pueden ocupar los bytecodes en memoria, 0 sin limite.
+     */
+    long codeBudget = 0;
+
+    /**
+     * Cada cuanto tiempo en milisegundos se buscan clases que descartar.
+     */
+    long interval;
+
+    private volatile boolean running = true;
+
+    /**
+     * Busquedas de bytecode y de class loaders que se han encontrado en
+     * memoria o no, y clases, loaders y bytecodes descartados.
+     */
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+    private AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Hash del bytecode de las clases de esta agencia, calculado al
+     * enviarlas por primera vez.
+     */
+    private Map<Class<?>, String> classHashes = Collections.synchronizedMap(new WeakHashMap<Class<?>, String>());
+
+    /**
+     * Numero maximo de clases que se recorren al buscar las dependencias
+     * de una clase.
+     */
+    static final int MAX_CLOSURE = 256;
+
+    /**
+     * Dependencias de las clases de los agentes enviados, ya calculadas.
+     */
+    private Map<Class<?>, Map<String, String>> dependencies =
+        Collections.synchronizedMap(new WeakHashMap<Class<?>, Map<String, String>>());
+
+    /**
+     * Almacen en disco del bytecode recibido de otras agencias, o null.
+     */
+    RaCodeStore store;
+
     /**
      * Crea un nuevo ClassManager.
      *
@@ -111,6 +204,9 @@ public class ClassManager
         cache = new Hashtable<String, ClassBox>();
         this.delay = delay;
         this.agentsPath = agentsPath;
+        repository = new RaCodeRepository(agentsPath);
+        interval = Math.max(10, Math.min(delay, 1000));
+        new Evictor().start();
     }
 
     /**
@@ -147,63 +243,466 @@ public class ClassManager
     }
 
     /**
-     * DEvuelve el byte code de una clase
+     * Devuelve el byte code de una clase por su nombre completo: el de la
+     * clase cargada, el del repositorio de agentsPath o el del fichero
+     * .class del class path de la agencia, o null si no se encuentra.
      */
     public byte[] getByteCode (String name){
     	ClassBox box = (ClassBox) cache.get(name);
 	    if (box != null){
+	        hits.incrementAndGet();
 	        return box.byteCode;
 	    }
-	    else { // intenta cargar desde un fichero el nombre del fichero indicado
-            String fileName;
+	    misses.incrementAndGet();
+	    byte[] data = repository.get(name);
+	    if (data != null) return data;
+	    ClassLoader loader = ClassManager.class.getClassLoader();
+	    if (loader == null) return null;
+	    return readResource(loader, name);
+    }
+
+    /**
+     * Devuelve el bytecode de una clase tal como la ve un class loader: la
+     * que definio un RaClassLoader, el fichero .class del loader o, si no,
+     * la que se encuentre por su nombre.
+     */
+    public byte[] getByteCode (ClassLoader loader, String name){
+        byte[] data = null;
+        if (loader instanceof RaClassLoader){
+            String h = ((RaClassLoader) loader).hashOf(name);
+            if (h != null) data = getCode(h);
+        }
+        else if (loader != null){
+            data = readResource(loader, name);
+        }
+        return (data != null) ? data : getByteCode(name);
+    }
+
+    /**
+     * Indica si una clase la tienen todas las agencias (las del sistema y
+     * las de RAF) y no hace falta enviarla.
+     */
+    public static boolean isShared (String name){
+        return name.startsWith("[") || name.startsWith("java.") || name.startsWith("javax.")
+            || name.startsWith("jdk.") || name.startsWith("sun.") || name.startsWith("com.sun.")
+            || name.startsWith("raf.principal.") || name.startsWith("raf.messages.");
+    }
+
+    /**
+     * Recorre las clases a las que hacen referencia las clases indicadas,
+     * y las que referencian estas, y devuelve su bytecode por nombre,
+     * empezando por las indicadas. Se omiten las clases compartidas y las
+     * que no se encuentran, y se para al llegar a MAX_CLOSURE clases.
+     *
+     * @param loader Class loader con el que se buscan las clases, o null
+     * para buscarlas por su nombre.
+     */
+    public LinkedHashMap<String, byte[]> closureOf (ClassLoader loader, Collection<String> names){
+        LinkedHashMap<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+        HashSet<String> seen = new HashSet<String>(names);
+        ArrayDeque<String> pending = new ArrayDeque<String>(names);
+        while (!pending.isEmpty() && result.size() < MAX_CLOSURE){
+            String name = pending.poll();
+            if (isShared(name)) continue;
+            byte[] data = (loader == null) ? getByteCode(name) : getByteCode(loader, name);
+            if (data == null) continue;
+            result.put(name, data);
             try {
-                fileName = "bin/raf/agentes/Chat.class";
-                System.out.println("Fichero: " + fileName);
+                for (String ref : RaCodeRepository.referencedClasses(data)){
+                    if (seen.add(ref) && !isShared(ref)) pending.add(ref);
+                }
             }
-            catch (StringIndexOutOfBoundsException e){
-                System.err.println ("ClassManager: Nombre de fichero invlido!");
-                fileName = name;
+            catch (IOException e){
+                System.err.println ("! ClassManager: bytecode no valido de " + name + ": " + e);
             }
+        }
+        return result;
+    }
 
-            // carga el byte code desde un fichero
-            try {
-                FileInputStream fileStream = new FileInputStream(fileName);
-                ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                int data;
-                while ( (data = fileStream.read()) != -1 ){
-                    bos.write(data);
+    /**
+     * Clases de las que depende una clase, sin ella misma, con el hash de
+     * su bytecode, que queda guardado para enviarlo o servirlo con
+     * GET_CODE. Se calcula una vez por clase.
+     */
+    public Map<String, String> dependencies (Class<?> cl){
+        Map<String, String> deps = dependencies.get(cl);
+        if (deps != null) return deps;
+        deps = new LinkedHashMap<String, String>();
+        boolean own = !(cl.getClassLoader() instanceof RaClassLoader);
+        for (Map.Entry<String, byte[]> e : closureOf(cl.getClassLoader(), Collections.singleton(cl.getName())).entrySet()){
+            if (e.getKey().equals(cl.getName())) continue;
+            deps.put(e.getKey(), own ? putOwnCode(e.getValue()) : putCode(e.getValue()));
+        }
+        deps = Collections.unmodifiableMap(deps);
+        dependencies.put(cl, deps);
+        return deps;
+    }
+
+    /**
+     * Devuelve el repositorio de las clases de agentsPath.
+     */
+    public RaCodeRepository getRepository (){
+        return repository;
+    }
+
+    /**
+     * Devuelve el class loader de los agentes que llegan desde la agencia
+     * source con la version de codigo indicada. Se crea la primera vez y se
+     * reutiliza mientras queden agentes cargados con el, de modo que cada
+     * clase se define y se pide a la agencia origen una sola vez.
+     *
+     * El loader cuenta como un agente mas hasta que se llama a
+     * releaseLoader(), para que no se descarte mientras se leen sus agentes.
+     *
+     * @param agency Direccion de esta agencia.
+     */
+    public RaClassLoader getLoader (RaAddress agency, RaAddress source, String version){
+        return getLoader(agency, source, version, null);
+    }
+
+    /**
+     * Como getLoader(), pero si el loader ya ha definido alguna clase del
+     * manifiesto (nombre de clase a hash) con otro bytecode se crea uno
+     * nuevo; el anterior sigue sirviendo a sus agentes.
+     */
+    public RaClassLoader getLoader (RaAddress agency, RaAddress source, String version,
+                                    Map<String, String> manifest){
+        String key = loaderKey(source, version);
+        // con el mismo lock que removeLoader(): no se devuelve un loader
+        // que se esta descartando
+        synchronized (this){
+            RaClassLoader loader = loaders.get(key);
+            if (loader != null && manifest != null && loader.conflicts(manifest)){
+                System.out.println ("ClassManager: codigo nuevo de " + key + ", se crea otro class loader");
+                loader = null;
+            }
+            if (loader == null){
+                misses.incrementAndGet();
+                loader = new RaClassLoader(this, agency, source);
+                loader.key = key;
+                loaders.put(key, loader);
+            }
+            else hits.incrementAndGet();
+            loader.refs.incrementAndGet();
+            loader.idleSince = System.currentTimeMillis();
+            return loader;
+        }
+    }
+
+    static String loaderKey (RaAddress source, String version){
+        String host = (source == null || source.host == null) ? "" : source.host.getHostAddress();
+        int port = (source == null) ? 0 : source.port;
+        return host + ":" + port + "#" + ((version == null) ? "" : version);
+    }
+
+    /**
+     * Anota que un agente cargado por un RaClassLoader esta en la agencia.
+     */
+    public void retain (Object agent){
+        ClassLoader cl = agent.getClass().getClassLoader();
+        if (cl instanceof RaClassLoader) ((RaClassLoader) cl).refs.incrementAndGet();
+    }
+
+    /**
+     * Anota que un agente ha dejado la agencia. Cuando un class loader se
+     * queda sin agentes se descarta despues del tiempo de retardo.
+     */
+    public void release (Object agent){
+        releaseLoader(agent.getClass().getClassLoader());
+    }
+
+    /**
+     * Como release(), con el class loader de un agente que no esta en
+     * memoria (pasivado), o con el que ha devuelto getLoader() al terminar
+     * de leer los agentes.
+     */
+    public void releaseLoader (ClassLoader cl){
+        if (!(cl instanceof RaClassLoader)) return;
+        RaClassLoader loader = (RaClassLoader) cl;
+        if (loader.refs.decrementAndGet() <= 0) loader.idleSince = System.currentTimeMillis();
+    }
+
+    /**
+     * Descarta un class loader que lleva el tiempo de retardo sin agentes y
+     * las clases que definio.
+     */
+    synchronized void removeLoader (RaClassLoader loader, long now){
+        if (loader.refs.get() > 0 || now - loader.idleSince < delay) return;
+        if (!loaders.remove(loader.key, loader)) return;
+        for (String name : new ArrayList<String>(cache.keySet())){
+            ClassBox box = (ClassBox) cache.get(name);
+            if (box != null && box.classCode.getClassLoader() == loader) cache.remove(name);
+        }
+        evictions.incrementAndGet();
+        System.out.println ("ClassManager: descartado el class loader de " + loader.key);
+    }
+
+    /**
+     * Descarta los class loaders y las clases que llevan el tiempo de
+     * retardo sin agentes, y el bytecode en memoria usado hace mas tiempo
+     * hasta bajar del limite.
+     */
+    void evict (long now){
+        for (RaClassLoader loader : loaders.values()){
+            if (loader.refs.get() <= 0 && now - loader.idleSince >= delay) removeLoader(loader, now);
+        }
+        synchronized (cache){
+            Iterator<ClassBox> it = cache.values().iterator();
+            while (it.hasNext()){
+                ClassBox box = it.next();
+                if (box.count <= 0 && now - box.idleSince >= delay){
+                    it.remove();
+                    evictions.incrementAndGet();
                 }
-                byte[] byteCode = bos.toByteArray();
-                bos.close();
-                fileStream.close();
-                return byteCode;
+            }
+        }
+        if (codeBudget <= 0) return;
+        synchronized (code){
+            Iterator<byte[]> it = code.values().iterator();
+            while (codeBytes > codeBudget && it.hasNext()){
+                codeBytes -= it.next().length;
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Establece cuantos bytes de bytecode se guardan en memoria (0 sin
+     * limite). Los que no caben se vuelven a leer del almacen en disco, si
+     * lo hay, o a pedir a la agencia origen. El de las clases propias no
+     * se descarta.
+     */
+    public void setCodeBudget (long codeBudget){
+        this.codeBudget = codeBudget;
+    }
+
+    public long getHits (){
+        return hits.get();
+    }
+
+    public long getMisses (){
+        return misses.get();
+    }
+
+    public long getEvictions (){
+        return evictions.get();
+    }
+
+    /**
+     * Para el thread que descarta las clases.
+     */
+    public void shutdown (){
+        running = false;
+    }
+
+    public String toString (){
+        long bytes;
+        int n;
+        synchronized (code){
+            bytes = codeBytes;
+            n = code.size();
+        }
+        return "ClassManager: " + loaders.size() + " class loaders, " + cache.size() + " clases, "
+            + n + " bytecodes (" + bytes + " bytes), aciertos=" + hits + " fallos=" + misses
+            + " descartes=" + evictions;
+    }
+
+    /**
+     * Devuelve el hash (SHA-256 en hexadecimal) de un bytecode.
+     */
+    public static String hash (byte[] data){
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (int i = 0; i < digest.length; ++i){
+                sb.append(Character.forDigit((digest[i] >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException e){
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    /**
+     * Guarda en memoria un bytecode por su hash y devuelve el hash.
+     */
+    public String putCode (byte[] data){
+        String h = hash(data);
+        remember(h, data);
+        return h;
+    }
+
+    /**
+     * Como putCode(), con el bytecode de una clase propia de esta agencia,
+     * que no se descarta.
+     */
+    String putOwnCode (byte[] data){
+        String h = hash(data);
+        synchronized (code){
+            byte[] old = code.remove(h);
+            if (old != null) codeBytes -= old.length;
+            ownCode.put(h, data);
+        }
+        return h;
+    }
+
+    private void remember (String hash, byte[] data){
+        synchronized (code){
+            if (ownCode.containsKey(hash)) return;
+            byte[] old = code.put(hash, data);
+            codeBytes += data.length - ((old == null) ? 0 : old.length);
+        }
+    }
+
+    /**
+     * Guarda el bytecode de una clase recibida de otra agencia por su hash,
+     * tambien en el almacen en disco si lo hay, y devuelve el hash.
+     */
+    public String putCode (String name, byte[] data){
+        String h = putCode(data);
+        if (store != null) store.put(name, h, data);
+        return h;
+    }
+
+    /**
+     * Devuelve el bytecode con ese hash, o null si no se tiene. Si no esta
+     * en memoria se busca en el almacen en disco.
+     */
+    public byte[] getCode (String hash){
+        byte[] data;
+        synchronized (code){
+            data = code.get(hash);
+            if (data == null) data = ownCode.get(hash);
+        }
+        if (data != null){
+            hits.incrementAndGet();
+            return data;
+        }
+        misses.incrementAndGet();
+        if (store != null){
+            data = store.get(hash);
+            if (data != null) remember(hash, data);
+        }
+        return data;
+    }
+
+    public boolean hasCode (String hash){
+        synchronized (code){
+            if (code.containsKey(hash) || ownCode.containsKey(hash)) return true;
+        }
+        return store != null && store.contains(hash);
+    }
+
+    /**
+     * Guarda en el directorio indicado el bytecode que llega de otras
+     * agencias para no tener que pedirlo de nuevo tras reiniciar. Si ocupa
+     * mas de budget bytes (0 sin limite) se borra el usado hace mas tiempo.
+     */
+    public void setCodeStore (String dir, long budget){
+        try {
+            store = new RaCodeStore(new File(dir), budget);
+        }
+        catch (IOException e){
+            System.err.println ("! ClassManager: No se puede crear el almacen de bytecode: " + e);
+        }
+    }
+
+    public RaCodeStore getCodeStore (){
+        return store;
+    }
+
+    /**
+     * Devuelve el hash del bytecode de una clase y lo guarda para poder
+     * enviarlo cuando otra agencia lo pida, o null si no se encuentra.
+     */
+    public String hashOf (Class<?> cl){
+        String h = classHashes.get(cl);
+        if (h != null && getCode(h) != null) return h;
+        byte[] data = getByteCode(cl);
+        if (data == null) return null;
+        h = (cl.getClassLoader() instanceof RaClassLoader) ? putCode(data) : putOwnCode(data);
+        classHashes.put(cl, h);
+        return h;
+    }
+
+    /**
+     * Establece la version del codigo de los agentes de esta agencia.
+     */
+    public void setCodeVersion (String codeVersion){
+        this.codeVersion = (codeVersion == null) ? "" : codeVersion;
+    }
+
+    public String getCodeVersion (){
+        return codeVersion;
+    }
+
+    /**
+     * Devuelve el bytecode de una clase cargada: el guardado si la definio
+     * un RaClassLoader, o el fichero .class de su class loader. Devuelve
+     * null para las clases del sistema o si no se encuentra.
+     */
+    public byte[] getByteCode (Class<?> cl){
+        ClassBox box = cache.get(cl.getName());
+        if (box != null && box.classCode == cl) return box.byteCode;
+        ClassLoader loader = cl.getClassLoader();
+        if (loader == null) return null;
+        if (loader instanceof RaClassLoader){
+            String h = ((RaClassLoader) loader).hashOf(cl.getName());
+            return (h == null) ? null : getCode(h);
+        }
+        return readResource(loader, cl.getName());
+    }
+
+    /**
+     * Lee el fichero .class de una clase con un class loader.
+     */
+    private static byte[] readResource (ClassLoader loader, String name){
+        InputStream in = loader.getResourceAsStream(name.replace('.', '/') + ".class");
+        if (in == null) return null;
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) != -1) bos.write(buf, 0, n);
+            return bos.toByteArray();
+        }
+        catch (IOException e){
+            return null;
+        }
+        finally {
+            try {
+                in.close();
             }
             catch (IOException e){
-                return null;
             }
-	    }
+        }
     }
 
     /**
      * Incrementa el contador de la clase
      */
     public void inc(String name){
-        ClassBox box = (ClassBox) cache.get(name);
-        if (box != null){
-            box.count++;
+        synchronized (cache){
+            ClassBox box = cache.get(name);
+            if (box != null){
+                box.count++;
+            }
         }
     };
 
     /**
-     * Decrementa el contador de la  clase
+     * Decrementa el contador de la  clase. Cuando llega a cero la clase se
+     * borra despues del tiempo de retardo, si no se vuelve a usar.
      */
     public void dec(String name){
-        ClassBox box = (ClassBox) cache.get(name);
-        if (box != null){
-            box.count--;
-            if (box.count == 0){
-                // borra la clase despues de cierto tiempo
-                (new Remover(name, delay)).start();
+        synchronized (cache){
+            ClassBox box = cache.get(name);
+            if (box != null && box.count > 0){
+                box.count--;
+                if (box.count == 0) box.idleSince = System.currentTimeMillis();
             }
         }
     }
@@ -26,7 +26,7 @@ public class Ra implements Runnable, Serializable
      * puede ser la destruccin de un agente. Tambien algunas reacciones a esos
      * eventos pueden consumir tiempo.
      */
-    class FireEventThread extends Thread implements Serializable{
+    class FireEventThread implements Runnable, Serializable{
 
         /**
 		 * 
@@ -70,7 +70,7 @@ public class Ra implements Runnable, Serializable
      * de mensajes podria ser continuar la comunicacin entre
      * objetos. 
      */
-    class FireMessageThread extends Thread implements Serializable{
+    class FireMessageThread implements Runnable, Serializable{
 
         /**
 		 * 
@@ -113,6 +113,12 @@ public class Ra implements Runnable, Serializable
      */
     protected RaAddress destination;
 
+    /**
+     * Momento en milisegundos en el que el agente quiere despertar tras
+     * pedir dormir, 0 si solo debe despertar al recibir un mensaje.
+     */
+    protected long wakeUpTime = 0;
+
     /**
      * El listener de eventos que recibe todos los RaEvents. Es normalmente puesto
      * puesto por la agencia en llegada.
@@ -192,25 +198,50 @@ public class Ra implements Runnable, Serializable
     
     protected void fireDispatchRequest(){
         RaEvent event = new RaEvent(this, RaEvent.DISPATCH_REQUEST);
-        new FireEventThread(event).start();
+        fire(new FireEventThread(event));
     }
 
  
     protected void fireDestroyRequest(){
         RaEvent event = new RaEvent(this, RaEvent.DESTROY_REQUEST);
-        new FireEventThread(event).start();
+        fire(new FireEventThread(event));
     }
 
    
     protected void fireSleepRequest(){
+        wakeUpTime = 0;
+        RaEvent event = new RaEvent(this, RaEvent.SLEEP_REQUEST);
+        fire(new FireEventThread(event));
+    }
+
+    /**
+     * Pide dormir durante millis milisegundos. Si la agencia pasiva agentes,
+     * el agente se guarda en disco y se despierta al pasar ese tiempo o al
+     * recibir un mensaje.
+     */
+    protected void fireSleepRequest(long millis){
+        wakeUpTime = System.currentTimeMillis() + millis;
         RaEvent event = new RaEvent(this, RaEvent.SLEEP_REQUEST);
-        new FireEventThread(event).start();
+        fire(new FireEventThread(event));
     }
 
    
     protected void fireRaMessage(RaMessage m){
         RaMessageEvent event = new RaMessageEvent(this, m);
-        new FireMessageThread(event).start();
+        fire(new FireMessageThread(event));
+    }
+
+    /**
+     * Lanza un evento o un mensaje de modo asincrono en los bucles de
+     * eventos de la agencia, o en un thread nuevo si no hay agencia.
+     */
+    private void fire(Runnable task){
+        if (agency != null) agency.postEvent(getName(), task);
+        else new Thread(task).start();
+    }
+
+    public long getWakeUpTime (){
+        return wakeUpTime;
     }
 
     public RaAddress getDestination (){
@@ -2,10 +2,27 @@ package raf.principal;
 
 import java.io.*;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import raf.messages.MessagesEv;
 
@@ -35,7 +52,22 @@ public class RaAgency
     private RaAddress raServer;
 
   
-    private Vector<AgencyListener> agencyListeners;
+    /**
+     * Listeners de la agencia. Se sustituye el array entero al cambiarlos,
+     * de modo que lanzar un evento no necesita copiarlos ni bloquear.
+     */
+    private volatile AgencyListener[] agencyListeners = new AgencyListener[0];
+
+    /**
+     * Bucles que entregan los eventos de los agentes y de la agencia. Si no
+     * se establecen se crea uno propio al usarlo por primera vez.
+     */
+    private volatile RaEventDispatcher events = null;
+
+    /**
+     * Si events es de esta agencia y no compartido.
+     */
+    private boolean ownEvents = false;
 
    
     long delay = 100000;
@@ -55,17 +87,158 @@ public class RaAgency
    
     protected ClassManager classManager;
 
-   
-    Hashtable<String, RaBox> boxes;
+    /**
+     * Agentes de la agencia, por nombre y con indices por clase, por host de
+     * procedencia y por momento de llegada.
+     */
+    RaRegistry boxes;
 
     
     ServerSocket serverSocket = null;
 
+    /**
+     * Pool de conexiones persistentes usado para enviar los mensajes.
+     */
+    protected RaConnectionPool connectionPool;
+
+    /**
+     * Tiempo en milisegundos tras el cual se cierra una conexion entrante
+     * sin actividad. Debe ser mayor que el idleTimeout del pool.
+     */
+    int connectionTimeout = 300000;
+
+    /**
+     * Modo de entrada de la red: "threads" lanza un ReceiveMessageThread por
+     * conexion, "nio" atiende todas las conexiones con un RaNioServer.
+     */
+    String ioMode = "threads";
+
+    /**
+     * Numero de threads de lectura del RaNioServer.
+     */
+    int ioThreads = 2;
+
+    /**
+     * Numero de threads que procesan los mensajes en modo nio.
+     */
+    int workerThreads = 8;
+
+    /**
+     * Como se entregan los agentes a otra agencia de la misma maquina
+     * virtual: "reference" entrega el mismo objeto y "copy" una copia
+     * serializada, para que las agencias no compartan estado.
+     */
+    String localTransfer = "reference";
+
+    /**
+     * Cola de salida que agrupa los mensajes por agencia destino.
+     */
+    RaOutbox outbox = null;
+
+    /**
+     * Ventana en milisegundos y limites de los lotes de la cola de salida.
+     */
+    long batchLinger = 2;
+    int batchMaxBytes = 64 * 1024;
+    int batchMaxMessages = 64;
+
+    /**
+     * Servidor NIO usado en modo nio.
+     */
+    RaNioServer nioServer = null;
+
+    /**
+     * Threads que procesan los mensajes recibidos en modo nio.
+     */
+    ExecutorService workers = null;
+
+    /**
+     * Estrategia con la que se ejecutan los agentes y sus eventos.
+     */
+    RaExecution execution = RaExecution.create("thread", 0);
+
+    /**
+     * Numero maximo de mensajes pendientes en el buzon de cada agente
+     * (0 sin limite) y politica al llenarse.
+     */
+    int mailboxCapacity = 1000;
+    String mailboxOverflow = RaMailbox.REJECT;
+
+    /**
+     * Indica si el servidor NIO, los threads y la cola de salida son de un
+     * RaHost compartido con otras agencias, en cuyo caso la agencia no los
+     * crea ni los para.
+     */
+    boolean sharedIo = false;
+
+    /**
+     * Envio del codigo de los agentes con ellos: "none" no lo envia (el
+     * destino lo pide con GET_CLASS), "closure" envia siempre las clases de
+     * los objetos del agente, "missing" solo las que no se han enviado ya
+     * a esa agencia y "manifest" envia solo los hashes de su bytecode, de
+     * modo que el destino pide en un solo GET_CODE los que no tiene.
+     */
+    String codeBundle = "none";
+
+    /**
+     * Si se envia el codigo con los agentes, indica si se envian tambien
+     * las clases a las que hace referencia su bytecode, que el agente
+     * necesitara al ejecutarse aunque no esten en sus objetos.
+     */
+    boolean codeTransitive = false;
+
+    /**
+     * Si los agentes se serializan con RaSerializer en lugar de con la
+     * serializacion de Java. Los agentes que llegan se leen en los dos
+     * formatos.
+     */
+    boolean fastSerializer = false;
+
+    /**
+     * Si los agentes salen por trozos RA_STREAM, serializados directamente
+     * en la conexion, en lugar de en un solo mensaje, y tamanio de los
+     * trozos.
+     */
+    boolean streamTransfer = false;
+    int streamChunk = RaStream.CHUNK_SIZE;
+
+    /**
+     * Ultima version de los agentes que han salido, si los agentes que
+     * vuelven pueden llegar como diferencias con ella (null si no), y
+     * tamanio minimo de un agente para enviarlo asi.
+     */
+    RaSnapshots snapshots = null;
+    int deltaThreshold = 16384;
+
+    /**
+     * Agentes que estan llegando por trozos, por la conexion por la que llegan.
+     */
+    private Hashtable<RaChannel, StreamReader> streams = new Hashtable<RaChannel, StreamReader>();
+
+    /**
+     * Nombres de las clases enviadas a cada agencia, con codeBundle "missing".
+     */
+    private Hashtable<String, Set<String>> shippedClasses = new Hashtable<String, Set<String>>();
+
+    /**
+     * Directorio donde se guardan los agentes pasivados (null si no se
+     * pasivan), bytes que pueden ocupar los agentes residentes (0 sin
+     * limite) y milisegundos sin usarse tras los que se pasiva un agente
+     * (0 nunca).
+     */
+    String passivationDir = null;
+    long passivationBudget = 0;
+    long passivateAfter = 0;
+
+    /**
+     * Almacen de los agentes pasivados y thread que los pasiva.
+     */
+    RaStore store = null;
+    RaPassivator passivator = null;
 
-	private RaOutputStream mos;
 
    
-    class ReceiveMessageThread extends Thread implements Serializable{
+    class ReceiveMessageThread extends Thread implements Serializable, RaChannel{
         /**
 		 * 
 		 */
@@ -73,10 +246,13 @@ public class RaAgency
 		private Socket socket;
         private RaAgency agency;
         private RaMessage message;
-        private RaMessage outMessage;
         private InetAddress address;
-        private Ra agent;
-		private RaInputStream mis;
+        private DataOutputStream outStream = null;
+
+        /**
+         * Version del formato del ultimo mensaje recibido; las respuestas la usan.
+         */
+        private int version = 0;
 
        
         public ReceiveMessageThread(RaAgency b, Socket socket){
@@ -86,107 +262,50 @@ public class RaAgency
 
      
         public void run(){
-            ObjectOutputStream outStream = null;
-            ObjectInputStream inStream = null;
+            DataInputStream inStream = null;
 
             try{
-                inStream = new ObjectInputStream(
+                inStream = new DataInputStream(
                                 new BufferedInputStream(
                                     socket.getInputStream()));
-                outStream = new ObjectOutputStream(
-                                    socket.getOutputStream());
+                outStream = new DataOutputStream(
+                                new BufferedOutputStream(
+                                    socket.getOutputStream()));
                 address = socket.getInetAddress();
             }
             catch (IOException e){
                 System.err.println("! ReceiveMessageThread.run: " + e);
             }
 
-            try{
-                message = (RaMessage) inStream.readObject();
-                if ( !message.recipient.host.equals(agencyAddress.host) ){
-                    new SendMessageThread(message).start();
+            // la conexion es persistente: se atienden mensajes hasta que
+            // el otro extremo la cierra
+            while (inStream != null){
+                try{
+                    message = RaWire.readFrame(inStream);
+                    version = message.version;
+                    agency.processMessage(message, address, this);
                 }
-                else
-                if ( message.kind.equals(MessagesEv.RA) ){
-                    System.out.println ("ReceiveMessageThread: ha llegado un mensage RA.");
-                    ByteArrayInputStream bInStream = new ByteArrayInputStream(message.binary);
-                    mis = new RaInputStream(classManager, agencyAddress, bInStream, message.sender);
-                    agent = (Ra) mis.readObject();
-                    //agent.onArrival();
-                    addRaOnArrival(agent, address);
+                catch (EOFException e){
+                    break;
                 }
-                else if ( message.kind.equals(MessagesEv.AGENS) ){
-                    System.out.println ("ReceiveMessageThread: ha llegado un mensaje AGENCYS.");
-                    ByteArrayInputStream bis = new ByteArrayInputStream(message.binary);
-                    ObjectInputStream ois = new ObjectInputStream (bis);
-                    synchronized (this){
-                        agencys = (Hashtable<?, ?>) ois.readObject();
-                    }
+                catch (SocketTimeoutException e){
+                    System.out.println ("ReceiveMessageThread: cerrando conexion inactiva.");
+                    break;
                 }
-                else if ( message.kind.equals(MessagesEv.GET_C) ){
-                    System.out.println ("ReceiveMessageThread: Ha llegado un mensaje GET_CLASS: " + message.content + ".class");
-                    byte[] source = classManager.getByteCode (message.content);
-                    outMessage = new RaMessage(agencyAddress,
-                                                      message.sender,
-                                                      "CLASS",
-                                                       message.content,
-                                                       source);
-                    outStream.writeObject(outMessage);
-                    outStream.flush();
+                catch (IOException e){
+                    System.err.println("ReceiveMessageThread: IOException en la transferencia de datos!");
+                    System.err.println (e.getMessage());
+                    break;
                 }
-                else if (message.kind.equals(MessagesEv.GET)){
-                       RaBox target = (RaBox) boxes.get(message.content);
-                    if (target != null){
-                        target.ra.onDispatch();
-                        target.thread = null;
-
-                        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                        ObjectOutputStream oos = new ObjectOutputStream(bos);
-                        oos.writeObject (target.ra);
-
-                        outMessage = new RaMessage(agencyAddress,
-                                                      message.sender,
-                                                      "RA",
-                                                       message.content,
-                                                       bos.toByteArray());
-                        outStream.writeObject(outMessage);
-                        outStream.flush();
-
-
-                        boxes.remove(message.content);
-                        classManager.dec(message.content);
-                    }
-                    else {
-            
-                        outMessage = new RaMessage(agencyAddress,
-                                                       message.sender,
-                                                      "ERROR",
-                                                       "Agente no encontrado!",
-                                                       null);
-                        outStream.writeObject(outMessage);
-                        outStream.flush();
-                    }
+                catch (ClassNotFoundException e){
+                    System.err.println ("ReceiveMessageThread: ClassNotFoundException al recibir el objeto!");
+                    System.err.println (e.getMessage());
                 }
-                else if (message.recipient.name!=null) {
-
-                    System.out.println ("Intentando devolver un mensaje al agente local" + message.recipient.name);
-                    RaBox box = (RaBox) boxes.get(message.recipient.name);
-                    if (box != null){
-                        box.ra.handleMessage (message);
-                    }
-                }
-                else {
-                    
-                    agency.handleMessage(message);
+                catch (RuntimeException e){
+                    // trama mal formada: no se puede seguir leyendo
+                    System.err.println ("ReceiveMessageThread: mensaje no valido: " + e);
+                    break;
                 }
-	    }
-            catch (IOException e){
-                System.err.println("ReceiveMessageThread: IOException en la transferencia de datos!");
-                System.err.println (e.getMessage());
-            }
-            catch (ClassNotFoundException e){
-                System.err.println ("ReceiveMessageThread: ClassNotFoundException al recibir el objeto!");
-                System.err.println (e.getMessage());
             }
 
             try{
@@ -200,9 +319,127 @@ public class RaAgency
                 System.err.println (e.getMessage());
             }
         }
+
+        /**
+         * Envia una respuesta por la conexion de la que vino el mensaje.
+         */
+        public synchronized void send(RaMessage msg) throws IOException{
+            RaWire.writeFrame(outStream, msg, version);
+            outStream.flush();
+        }
     } // ReceiveMessageThread
 
 
+    /**
+     * Lee un agente que llega por trozos RA_STREAM segun van llegando. El
+     * resultado se recoge al llegar el fin de la transferencia.
+     */
+    class StreamReader extends Thread{
+
+        RaStream.Input in = new RaStream.Input();
+        private RaChannel channel;
+        private RaAddress host;
+        private String codeVersion;
+
+        /**
+         * Numero del siguiente trozo.
+         */
+        int next = 1;
+
+        private CompletableFuture<Object> result = new CompletableFuture<Object>();
+
+        StreamReader(RaChannel channel, RaAddress host, String codeVersion){
+            super("RaAgency.StreamReader " + host);
+            setDaemon(true);
+            this.channel = channel;
+            this.host = host;
+            this.codeVersion = codeVersion;
+        }
+
+        public void run(){
+            try{
+                RaInputStream mis = new RaInputStream(classManager, agencyAddress, in, host, codeVersion);
+                result.complete(mis.readAgent());
+            }
+            catch (Exception e){
+                result.completeExceptionally(e);
+            }
+            catch (Error e){
+                result.completeExceptionally(e);
+            }
+            finally{
+                in.close();
+                // si no llegan mas trozos nadie va a recoger el resultado
+                if (in.expired) streams.remove(channel, this);
+            }
+        }
+
+        /**
+         * Espera a que se termine de leer el agente y lo devuelve.
+         */
+        Object await() throws IOException, ClassNotFoundException{
+            try{
+                return result.get(RaStream.TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+            catch (ExecutionException e){
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                if (cause instanceof ClassNotFoundException) throw (ClassNotFoundException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                throw new IOException(cause.toString());
+            }
+            catch (TimeoutException e){
+                in.close();
+                throw new IOException("RaStream: el agente no se ha leido en " + RaStream.TIMEOUT + " ms");
+            }
+            catch (InterruptedException e){
+                throw new InterruptedIOException(e.toString());
+            }
+        }
+    } // StreamReader
+
+
+    /**
+     * Entrega a la agencia los mensajes recibidos por el RaNioServer.
+     */
+    class Receiver implements RaReceiver{
+
+        public void receive(RaMessage msg, InetAddress address, RaChannel channel){
+            try{
+                processMessage(msg, address, channel);
+            }
+            catch (IOException e){
+                System.err.println("Receiver: IOException al procesar el mensaje " + msg.kind);
+                System.err.println (e.getMessage());
+            }
+            catch (ClassNotFoundException e){
+                System.err.println ("Receiver: ClassNotFoundException al recibir el objeto!");
+                System.err.println (e.getMessage());
+            }
+        }
+    } // Receiver
+
+
+    /**
+     * Canal de las respuestas a un mensaje entregado dentro de la misma
+     * maquina virtual: la confirmacion o la respuesta completan el futuro
+     * del que envio el mensaje.
+     */
+    class LocalChannel implements RaChannel{
+
+        private CompletableFuture<RaMessage> future;
+
+        LocalChannel(CompletableFuture<RaMessage> future){
+            this.future = future;
+        }
+
+        public void send(RaMessage msg) throws IOException{
+            if (MessagesEv.ERROR.equals(msg.kind)) future.completeExceptionally(new IOException(msg.content));
+            else future.complete(msg);
+        }
+    } // LocalChannel
+
+
     class ListenThread extends Thread implements Serializable
     {
         /**
@@ -222,7 +459,8 @@ public class RaAgency
                 while (shouldLive == listenThread){
                     socket = serverSocket.accept();
                     if(shouldLive != listenThread) return;
-		    System.out.println ("ListenThread: tomando un mensaje");
+		    System.out.println ("ListenThread: tomando una conexion");
+                    socket.setSoTimeout(connectionTimeout);
                     new ReceiveMessageThread (parent, socket).start();
                     yield();
                 }
@@ -246,114 +484,1158 @@ public class RaAgency
             this.msg = msg;
         }
 
-       
-        public void run(){
-            Socket socket = null;
-            ObjectOutputStream outStream = null;
+       
+        public void run(){
+            try {
+                connectionPool.send(msg);
+                System.out.println ("SendMessageThread: Wrote message to: " + msg.recipient.host + " " + msg.recipient.port);
+            }
+            catch (IOException e){
+                System.err.println("! SendMessageThread.run: " + e + ": " + msg.recipient);
+            }
+        }
+    } // SendMessageThread
+
+
+ 
+    public RaAgency (Object parent, ClassManager clManager){
+        this.parent = parent;
+        boxes = new RaRegistry();
+        classManager = clManager;
+        connectionPool = RaConnectionPool.getDefault();
+    }
+
+    /**
+     * Procesa un mensaje que ha llegado por la red. Las respuestas
+     * (CLASS, RA, ERROR) se devuelven por el canal del que vino el mensaje.
+     * Si el mensaje lleva id y no tiene una respuesta propia se confirma con
+     * un ACK una vez procesado, o con un ERROR si ha fallado. Un mensaje que
+     * falla no cierra la conexion: solo se lanza la excepcion si no se puede
+     * contestar por el canal.
+     */
+    void processMessage (RaMessage message, InetAddress address, RaChannel channel)
+    throws IOException, ClassNotFoundException{
+        try{
+            handleIncoming(message, address, channel);
+        }
+        catch (IOException e){
+            refuse(message, channel, e);
+            return;
+        }
+        catch (ClassNotFoundException e){
+            refuse(message, channel, e);
+            return;
+        }
+        catch (RuntimeException e){
+            refuse(message, channel, e);
+            return;
+        }
+        if (message.id != 0 && needsAck(message)) channel.send(RaWire.ack(message, agencyAddress));
+    }
+
+    /**
+     * Contesta con ERROR a un mensaje que no se ha podido procesar.
+     */
+    private void refuse (RaMessage message, RaChannel channel, Exception e) throws IOException{
+        System.err.println ("RaAgency: no se ha podido procesar " + message.kind + ": " + e);
+        if (message.id != 0) channel.send(RaWire.error(message, agencyAddress, e.toString()));
+    }
+
+    /**
+     * Indica si un mensaje se confirma con ACK. GET_CLASS, GET_CLASSES,
+     * GET_CODE, GET_SNAPSHOT y GET ya llevan su propia respuesta, y HELLO,
+     * BATCH y ACK nunca se confirman.
+     */
+    static boolean needsAck (RaMessage message){
+        return !message.kind.equals(MessagesEv.HELLO) && !message.kind.equals(MessagesEv.BATCH)
+            && !message.kind.equals(MessagesEv.GET_C) && !message.kind.equals(MessagesEv.GET)
+            && !message.kind.equals(MessagesEv.GET_CLASSES) && !message.kind.equals(MessagesEv.GET_SNAPSHOT)
+            && !message.kind.equals(MessagesEv.GET_CODE) && !message.kind.equals(MessagesEv.ACK);
+    }
+
+    private void handleIncoming (RaMessage message, InetAddress address, RaChannel channel)
+    throws IOException, ClassNotFoundException{
+        RaMessage outMessage;
+
+        if ( message.kind.equals(MessagesEv.HELLO) ){
+            RaWire.answerHello(message, agencyAddress, channel);
+        }
+        else
+        if ( message.kind.equals(MessagesEv.BATCH) ){
+            for (RaMessage m : RaWire.unbatch(message)) processMessage(m, address, channel);
+        }
+        else
+        if ( !message.recipient.host.equals(agencyAddress.host)
+                && !RaLocal.isLocalHost(message.recipient.host) ){
+            // la agencia confirma el mensaje al recibirlo y lo reenvia sin id
+            RaMessage forward = new RaMessage(message.sender, message.recipient,
+                                              message.kind, message.content, message.binary);
+            send(forward);
+        }
+        else
+        if ( message.kind.equals(MessagesEv.RA) ){
+            System.out.println ("ReceiveMessageThread: ha llegado un mensage RA.");
+            ByteArrayInputStream bInStream = new ByteArrayInputStream(message.binary);
+            // content lleva la version del codigo de la agencia origen
+            RaInputStream mis = new RaInputStream(classManager, agencyAddress, bInStream, message.sender, message.content);
+            Ra agent = (Ra) mis.readAgent();
+            //agent.onArrival();
+            addRaOnArrival(agent, address);
+        }
+        else if ( message.kind.equals(MessagesEv.RA_DELTA) ){
+            System.out.println ("ReceiveMessageThread: ha llegado un mensaje RA_DELTA.");
+            ByteArrayInputStream bInStream = new ByteArrayInputStream(readDelta(message));
+            RaInputStream mis = new RaInputStream(classManager, agencyAddress, bInStream, message.sender, message.content);
+            addRaOnArrival((Ra) mis.readAgent(), address);
+        }
+        else if ( message.kind.equals(MessagesEv.RA_GROUP) ){
+            ByteArrayInputStream bInStream = new ByteArrayInputStream(message.binary);
+            RaInputStream mis = new RaInputStream(classManager, agencyAddress, bInStream, message.sender, message.content);
+            Ra[] group = (Ra[]) mis.readAgent();
+            System.out.println ("ReceiveMessageThread: ha llegado un grupo de " + group.length + " agentes.");
+            addGroupOnArrival(group, address);
+        }
+        else if ( message.kind.equals(MessagesEv.RA_STREAM) ){
+            Object agents = receiveStream(message, channel);
+            if (agents instanceof Ra[]) addGroupOnArrival((Ra[]) agents, address);
+            else if (agents != null) addRaOnArrival((Ra) agents, address);
+        }
+        else if ( message.kind.equals(MessagesEv.RA_BUNDLE) ){
+            System.out.println ("ReceiveMessageThread: ha llegado un mensaje RA_BUNDLE.");
+            Object agents = readBundle(message);
+            if (agents instanceof Ra[]) addGroupOnArrival((Ra[]) agents, address);
+            else addRaOnArrival((Ra) agents, address);
+        }
+        else if ( message.kind.equals(MessagesEv.RA_MANIFEST) ){
+            System.out.println ("ReceiveMessageThread: ha llegado un mensaje RA_MANIFEST.");
+            Object agents = readManifest(message);
+            if (agents instanceof Ra[]) addGroupOnArrival((Ra[]) agents, address);
+            else addRaOnArrival((Ra) agents, address);
+        }
+        else if ( message.kind.equals(MessagesEv.AGENS) ){
+            System.out.println ("ReceiveMessageThread: ha llegado un mensaje AGENCYS.");
+            ByteArrayInputStream bis = new ByteArrayInputStream(message.binary);
+            ObjectInputStream ois = new ObjectInputStream (bis);
+            synchronized (this){
+                agencys = (Hashtable<?, ?>) ois.readObject();
+            }
+        }
+        else if ( message.kind.equals(MessagesEv.GET_CODE) ){
+            System.out.println ("ReceiveMessageThread: Ha llegado un mensaje GET_CODE.");
+            outMessage = new RaMessage(agencyAddress,
+                                       message.sender,
+                                       MessagesEv.CODE,
+                                       null,
+                                       codeFor(message.binary));
+            outMessage.replyTo = message.id;
+            channel.send(outMessage);
+        }
+        else if ( message.kind.equals(MessagesEv.GET_C) ){
+            System.out.println ("ReceiveMessageThread: Ha llegado un mensaje GET_CLASS: " + message.content + ".class");
+            byte[] source = classManager.getByteCode (message.content);
+            outMessage = new RaMessage(agencyAddress,
+                                              message.sender,
+                                              MessagesEv.CLASS,
+                                               message.content,
+                                               source);
+            outMessage.replyTo = message.id;
+            channel.send(outMessage);
+        }
+        else if ( message.kind.equals(MessagesEv.GET_SNAPSHOT) ){
+            // la version con la que salio el agente, y su firma
+            RaSnapshots.Snapshot snapshot = (snapshots == null) ? null : snapshots.get(message.content);
+            outMessage = new RaMessage(agencyAddress,
+                                       message.sender,
+                                       MessagesEv.SNAPSHOT,
+                                       (snapshot == null) ? null : snapshot.id,
+                                       (snapshot == null) ? null : snapshot.signature());
+            outMessage.replyTo = message.id;
+            channel.send(outMessage);
+        }
+        else if ( message.kind.equals(MessagesEv.GET_CLASSES) ){
+            outMessage = new RaMessage(agencyAddress,
+                                       message.sender,
+                                       MessagesEv.CLASSES,
+                                       null,
+                                       classesFor(message.binary));
+            outMessage.replyTo = message.id;
+            channel.send(outMessage);
+        }
+        else if (message.kind.equals(MessagesEv.GET)){
+               RaBox target = boxes.get(message.content);
+            if (target != null && resident(target) == null) target = null;
+            if (target != null){
+                target.ra.onDispatch();
+                target.task = null;
+
+                outMessage = new RaMessage(agencyAddress,
+                                              message.sender,
+                                              "RA",
+                                               message.content,
+                                               serialize(target.ra));
+                outMessage.replyTo = message.id;
+                channel.send(outMessage);
+
+
+                if (boxes.remove(message.content, target)) dropMailbox(target);
+                classManager.release(target.ra);
+            }
+            else {
+    
+                outMessage = new RaMessage(agencyAddress,
+                                               message.sender,
+                                              MessagesEv.ERROR,
+                                               "Agente no encontrado!",
+                                               null);
+                outMessage.replyTo = message.id;
+                channel.send(outMessage);
+            }
+        }
+        else if (message.recipient.name!=null) {
+
+            System.out.println ("Intentando devolver un mensaje al agente local" + message.recipient.name);
+            RaBox box = boxes.get(message.recipient.name);
+            if (box != null){
+                if (!box.mailbox.offer(message)) throw new IOException("Buzon lleno: " + message.recipient.name);
+                wake(box);
+            }
+        }
+        else {
+            
+            handleMessage(message);
+        }
+    }
+
+   
+    public void handleMessage (RaMessage msg){
+        System.out.println ("Message version: " + msg.version);
+        System.out.println ("Message kind: " + msg.kind);
+        System.out.println ("Message content: " + msg.content);
+    }
+
+  
+    protected void dispatch (Ra ra, RaAddress address){
+        dispatchAsync(ra, address);
+    }
+
+    /**
+     * Envia el agente a otra agencia. El agente solo se elimina de esta
+     * agencia cuando el destino confirma que lo ha recibido; si el envio
+     * falla el agente se queda aqui y vuelve a ejecutarse.
+     */
+    protected CompletableFuture<RaMessage> dispatchAsync (final Ra ra, final RaAddress address){
+        //Thread thread;
+        RaMessage msg;
+        CompletableFuture<RaMessage> future;
+        ra.onDispatch();
+        RaBox box = (RaBox) boxes.get(ra.getName());
+        if (box != null && box.task != null && !box.task.isDone()) box.task = null;
+
+        RaAgency local = RaLocal.lookup(address);
+        if (local != null && localTransfer.equals("reference")) return dispatchLocal(ra, local);
+
+        final List<String> shipped = new ArrayList<String>();
+        try {
+            RaAddress msgSender = new RaAddress(
+                                         InetAddress.getLocalHost(),
+                                         port, ra.getName());
+
+            if (local == null && streamTransfer && codeBundle.equals("none"))
+                future = streamAgent(msgSender, address, MessagesEv.RA, ra);
+            else if (local == null && snapshots != null && codeBundle.equals("none"))
+                future = deltaAgent(msgSender, address, ra);
+            else {
+                msg = agentMessage(msgSender, address, MessagesEv.RA, ra, shipped);
+                future = sendAsync(msg);
+            }
+        }
+        catch (IOException e){
+            System.err.println ("! RaAgency.dispatchRequest: " + e );
+            future = new CompletableFuture<RaMessage>();
+            future.completeExceptionally(e);
+        }
+
+        return future.whenComplete(new BiConsumer<RaMessage, Throwable>(){
+            public void accept(RaMessage reply, Throwable error){
+                if (error == null){
+                    classesShipped(address, shipped);
+                    raLeft(ra);
+                }
+                else raNotDispatched(ra, address, error);
+            }
+        });
+    }
+
+    /**
+     * Serializa un agente, o un grupo de agentes, en un RaBuffer del pool.
+     * El buffer ya tiene el tamanio de envios anteriores, asi que solo se
+     * copian los bytes una vez, al array del mensaje.
+     */
+    byte[] serialize (Object agent) throws IOException{
+        RaBuffer buf = RaBuffer.acquire();
+        try {
+            RaOutputStream mos = new RaOutputStream(buf);
+            mos.setFastAgents (fastSerializer);
+            mos.writeAgent (agent);
+            mos.flush();
+            return buf.toByteArray();
+        }
+        finally {
+            RaBuffer.release(buf);
+        }
+    }
+
+    /**
+     * Envia un agente, o un grupo, por trozos RA_STREAM: se serializa
+     * directamente en la conexion, que no vuelve al pool hasta que se ha
+     * escrito entero, de modo que nunca esta en memoria mas de un trozo. Si
+     * el destino no confirma mensajes se envia en un solo mensaje.
+     *
+     * La transferencia se escribe en RaStream.writers() y el futuro se
+     * devuelve enseguida: el que envia el agente, normalmente el thread de
+     * los eventos, no espera a las confirmaciones de los trozos.
+     *
+     * @param kind RA o RA_GROUP, el tipo del mensaje si no se envia por trozos.
+     */
+    private CompletableFuture<RaMessage> streamAgent (final RaAddress sender, final RaAddress address,
+                                                      final String kind, final Object agent){
+        final CompletableFuture<RaMessage> result = new CompletableFuture<RaMessage>();
+        RaStream.writers().execute(new Runnable(){
+            public void run(){
+                try {
+                    writeStream(sender, address, kind, agent).whenComplete(new BiConsumer<RaMessage, Throwable>(){
+                        public void accept(RaMessage reply, Throwable error){
+                            if (error == null) result.complete(reply);
+                            else result.completeExceptionally(error);
+                        }
+                    });
+                }
+                catch (IOException e){
+                    result.completeExceptionally(e);
+                }
+                catch (RuntimeException e){
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        return result;
+    }
+
+    private CompletableFuture<RaMessage> writeStream (RaAddress sender, RaAddress address, String kind,
+                                                      Object agent) throws IOException{
+        for (int attempt = 0; ; ++attempt){
+            RaConnection connection = connectionPool.borrow(address);
+            if (!connection.supportsAck()){
+                connectionPool.release(connection);
+                return sendAsync(new RaMessage(sender, address, kind, classManager.getCodeVersion(), serialize(agent)));
+            }
+            RaStream.Output out = new RaStream.Output(connection, sender, address,
+                                                      classManager.getCodeVersion(), streamChunk);
+            try {
+                RaOutputStream mos = new RaOutputStream(out);
+                mos.setFastAgents (fastSerializer);
+                mos.writeAgent (agent);
+                mos.flush();
+                CompletableFuture<RaMessage> future = out.finish();
+                connectionPool.release(connection);
+                return connectionPool.withTimeout(future);
+            }
+            catch (IOException e){
+                connectionPool.invalidate(connection);
+                // una conexion reutilizada puede estar rota: se reintenta si
+                // no se habia enviado nada
+                if (attempt > 0 || out.sent > 0) throw e;
+            }
+            catch (RuntimeException e){
+                connectionPool.invalidate(connection);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Envia un agente a otra agencia. Si el agente ya habia salido antes de
+     * ella y la agencia aun guarda esa version (GET_SNAPSHOT), se envian
+     * solo las diferencias con ella (RA_DELTA). Si no la tiene, si las
+     * diferencias no ocupan menos de la mitad o si el destino no puede
+     * reconstruir el agente, se envia entero. Antes de enviarlo se guarda
+     * la version para cuando vuelva: si se guardara al recibir la
+     * confirmacion, el agente podria volver antes y llegar como diferencias
+     * con la version anterior.
+     *
+     * La version se pide sin esperar la respuesta, y las diferencias se
+     * calculan y se envian en RaLocal.executor(), fuera del thread que
+     * recibe los mensajes.
+     */
+    private CompletableFuture<RaMessage> deltaAgent (final RaAddress sender, final RaAddress address, Ra ra)
+    throws IOException{
+        final byte[] data = serialize(ra);
+        final String name = ra.getName();
+        final RaMessage full = new RaMessage(sender, address, MessagesEv.RA, classManager.getCodeVersion(), data);
+        if (data.length < deltaThreshold) return sendAsync(full);
+        snapshots.put(name, data);
+
+        CompletableFuture<RaMessage> snapshot;
+        try {
+            RaAddress to = new RaAddress(address.host, address.port, null);
+            snapshot = connectionPool.sendAsync(new RaMessage(agencyAddress, to, MessagesEv.GET_SNAPSHOT, name, null));
+        }
+        catch (IOException e){
+            System.err.println ("RaAgency: no se puede pedir la version de " + name + ": " + e);
+            snapshot = CompletableFuture.completedFuture(null);
+        }
+        return snapshot.handleAsync(new BiFunction<RaMessage, Throwable, CompletableFuture<RaMessage>>(){
+            public CompletableFuture<RaMessage> apply(RaMessage reply, Throwable error){
+                if (error != null){
+                    System.err.println ("RaAgency: no se puede pedir la version de " + name + ": " + error);
+                    return sendAsync(full);
+                }
+                RaMessage delta = deltaMessage(sender, address, name, data, reply);
+                if (delta == null) return sendAsync(full);
+                return sendAsync(delta).handle(new BiFunction<RaMessage, Throwable, CompletableFuture<RaMessage>>(){
+                    public CompletableFuture<RaMessage> apply(RaMessage ack, Throwable failure){
+                        if (failure == null) return CompletableFuture.completedFuture(ack);
+                        if (!RaDelta.isMissingBase(failure)){
+                            CompletableFuture<RaMessage> failed = new CompletableFuture<RaMessage>();
+                            failed.completeExceptionally(failure);
+                            return failed;
+                        }
+                        System.out.println ("RaAgency: el destino no tiene la version base de " + name + ", se envia entero");
+                        return sendAsync(full);
+                    }
+                }).thenCompose(RaAgency.<RaMessage>identity());
+            }
+        }, RaLocal.executor()).thenCompose(RaAgency.<RaMessage>identity());
+    }
+
+    /**
+     * Deshace un futuro de futuro, con thenCompose().
+     */
+    private static <T> Function<CompletableFuture<T>, CompletableFuture<T>> identity (){
+        return new Function<CompletableFuture<T>, CompletableFuture<T>>(){
+            public CompletableFuture<T> apply(CompletableFuture<T> f){
+                return f;
+            }
+        };
+    }
+
+    /**
+     * Crea, a partir de la respuesta a GET_SNAPSHOT (la firma de la version
+     * con la que el agente salio del destino), el mensaje RA_DELTA con las
+     * diferencias:
+     *
+     * <pre>
+     * UTF     id de la version base
+     * UTF     hash (SHA-256) del agente
+     * int     longitud del agente
+     * byte[]  diferencias (RaDelta)
+     * </pre>
+     *
+     * @return null si el destino no tiene la version o no sale a cuenta.
+     */
+    private RaMessage deltaMessage (RaAddress sender, RaAddress address, String name, byte[] data,
+                                    RaMessage reply){
+        // una agencia anterior recibe GET_SNAPSHOT por su nombre, no lo
+        // conoce y contesta con ACK; una que no confirma mensajes no contesta
+        if (reply == null || !MessagesEv.SNAPSHOT.equals(reply.kind) || reply.content == null || reply.binary == null) return null;
+
+        RaBuffer buf = RaBuffer.acquire();
+        try {
+            DataOutputStream dos = new DataOutputStream(buf);
+            dos.writeUTF(reply.content);
+            dos.writeUTF(ClassManager.hash(data));
+            dos.writeInt(data.length);
+            RaDelta.delta(data, reply.binary, dos);
+            dos.flush();
+            if (buf.size() >= data.length / 2) return null;
+            System.out.println ("RaAgency: " + name + " sale como diferencias: " + buf.size() + " de " + data.length + " bytes");
+            return new RaMessage(sender, address, MessagesEv.RA_DELTA, classManager.getCodeVersion(), buf.toByteArray());
+        }
+        catch (IOException e){
+            System.err.println ("RaAgency: firma de " + name + " no valida: " + e);
+            return null;
+        }
+        finally {
+            RaBuffer.release(buf);
+        }
+    }
+
+    /**
+     * Reconstruye el agente de un mensaje RA_DELTA con la version con la
+     * que salio de esta agencia. Si ya no se tiene o el resultado no
+     * coincide, el error hace que el emisor lo envie entero.
+     */
+    private byte[] readDelta (RaMessage message) throws IOException{
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(message.binary));
+        String baseId = in.readUTF();
+        String hash = in.readUTF();
+        int length = in.readInt();
+        String name = message.sender.name;
+        byte[] base = (snapshots == null || name == null) ? null : snapshots.get(name, baseId);
+        if (base == null) throw new IOException(RaDelta.MISSING_BASE + ": " + name);
+        byte[] data;
+        try {
+            data = RaDelta.apply(base, RaDelta.blockSize(base.length), length, in);
+        }
+        catch (IOException e){
+            throw new IOException(RaDelta.MISSING_BASE + ": " + name + ": " + e.getMessage());
+        }
+        if (!ClassManager.hash(data).equals(hash))
+            throw new IOException(RaDelta.MISSING_BASE + ": " + name + ": el agente reconstruido no coincide");
+        return data;
+    }
+
+    /**
+     * Crea el mensaje que lleva un agente, o un grupo, a otra agencia. Si se
+     * envia el codigo con los agentes el mensaje es RA_BUNDLE y lleva
+     * delante de los agentes el bytecode de sus clases, para que el destino
+     * no tenga que pedirlas una a una con GET_CLASS.
+     *
+     * @param kind RA o RA_GROUP, el tipo del mensaje si no se envia codigo.
+     * @param shipped Se anaden los nombres de las clases enviadas.
+     */
+    private RaMessage agentMessage (RaAddress sender, RaAddress address, String kind,
+                                    Object agent, List<String> shipped) throws IOException{
+        if (codeBundle.equals("none"))
+            return new RaMessage(sender, address, kind, classManager.getCodeVersion(), serialize(agent));
+        if (codeBundle.equals("manifest")) return manifestMessage(sender, address, agent);
+
+        RaBuffer buf = RaBuffer.acquire();
+        RaBuffer out = RaBuffer.acquire();
+        try {
+            RaOutputStream mos = new RaOutputStream(buf, true);
+            mos.setFastAgents (fastSerializer);
+            mos.writeAgent (agent);
+            mos.flush();
+
+            Set<String> known = codeBundle.equals("missing") ? shippedTo(address) : null;
+            ArrayList<byte[]> codes = new ArrayList<byte[]>();
+            for (Map.Entry<String, byte[]> e : codeOf(mos.getClasses()).entrySet()){
+                if (known != null && known.contains(e.getKey())) continue;
+                shipped.add(e.getKey());
+                codes.add(e.getValue());
+            }
+
+            DataOutputStream dos = new DataOutputStream(out);
+            dos.writeInt(codes.size());
+            for (int i = 0; i < codes.size(); ++i){
+                dos.writeUTF(shipped.get(i));
+                dos.writeInt(codes.get(i).length);
+                dos.write(codes.get(i));
+            }
+            buf.writeTo(dos);
+            dos.flush();
+            return new RaMessage(sender, address, MessagesEv.RA_BUNDLE, classManager.getCodeVersion(), out.toByteArray());
+        }
+        finally {
+            RaBuffer.release(buf);
+            RaBuffer.release(out);
+        }
+    }
+
+    /**
+     * Crea un mensaje RA_MANIFEST: el nombre y el hash del bytecode de las
+     * clases del agente seguidos del agente. El destino pide despues solo
+     * los bytecodes que no tiene.
+     */
+    private RaMessage manifestMessage (RaAddress sender, RaAddress address, Object agent) throws IOException{
+        RaBuffer buf = RaBuffer.acquire();
+        RaBuffer out = RaBuffer.acquire();
+        try {
+            RaOutputStream mos = new RaOutputStream(buf, true);
+            mos.setFastAgents (fastSerializer);
+            mos.writeAgent (agent);
+            mos.flush();
+
+            LinkedHashMap<String, String> hashes = new LinkedHashMap<String, String>();
+            List<Class<?>> classes = closure(mos.getClasses());
+            for (Class<?> cl : classes){
+                String h = classManager.hashOf(cl);
+                if (h != null) hashes.put(cl.getName(), h);
+            }
+            if (codeTransitive){
+                for (Class<?> cl : classes){
+                    for (Map.Entry<String, String> d : classManager.dependencies(cl).entrySet())
+                        if (!hashes.containsKey(d.getKey())) hashes.put(d.getKey(), d.getValue());
+                }
+            }
+
+            DataOutputStream dos = new DataOutputStream(out);
+            dos.writeInt(hashes.size());
+            for (Map.Entry<String, String> e : hashes.entrySet()){
+                dos.writeUTF(e.getKey());
+                dos.writeUTF(e.getValue());
+            }
+            buf.writeTo(dos);
+            dos.flush();
+            return new RaMessage(sender, address, MessagesEv.RA_MANIFEST, classManager.getCodeVersion(), out.toByteArray());
+        }
+        finally {
+            RaBuffer.release(buf);
+            RaBuffer.release(out);
+        }
+    }
+
+    /**
+     * El bytecode que se envia con un agente, por nombre de clase: el de
+     * las clases de sus objetos y, con codeTransitive, el de las clases de
+     * las que dependen.
+     */
+    private LinkedHashMap<String, byte[]> codeOf (Set<Class<?>> objectClasses){
+        LinkedHashMap<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+        List<Class<?>> classes = closure(objectClasses);
+        for (Class<?> cl : classes){
+            byte[] code = classManager.getByteCode(cl);
+            if (code != null) result.put(cl.getName(), code);
+        }
+        if (!codeTransitive) return result;
+        for (Class<?> cl : classes){
+            for (Map.Entry<String, String> d : classManager.dependencies(cl).entrySet()){
+                if (result.containsKey(d.getKey())) continue;
+                byte[] code = classManager.getCode(d.getValue());
+                if (code == null) code = classManager.getByteCode(cl.getClassLoader(), d.getKey());
+                if (code != null) result.put(d.getKey(), code);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Las clases de los objetos de un agente y sus superclases, salvo las
+     * del sistema y las de RAF, que todas las agencias tienen.
+     */
+    private static List<Class<?>> closure (Set<Class<?>> classes){
+        LinkedHashSet<Class<?>> result = new LinkedHashSet<Class<?>>();
+        for (Class<?> cl : classes){
+            for (Class<?> c = cl; c != null && !isShared(c); c = c.getSuperclass()) result.add(c);
+        }
+        return new ArrayList<Class<?>>(result);
+    }
+
+    private static boolean isShared (Class<?> cl){
+        return cl.getClassLoader() == null || cl.isArray() || ClassManager.isShared(cl.getName());
+    }
+
+    /**
+     * Clases que ya se han enviado a una agencia, con codeBundle "missing".
+     */
+    private Set<String> shippedTo (RaAddress address){
+        String key = RaConnectionPool.keyOf(address);
+        synchronized (shippedClasses){
+            Set<String> known = shippedClasses.get(key);
+            if (known == null){
+                known = ConcurrentHashMap.<String>newKeySet();
+                shippedClasses.put(key, known);
+            }
+            return known;
+        }
+    }
+
+    /**
+     * El destino ha confirmado los agentes: ya tiene sus clases.
+     */
+    private void classesShipped (RaAddress address, List<String> shipped){
+        if (codeBundle.equals("missing") && !shipped.isEmpty()) shippedTo(address).addAll(shipped);
+    }
+
+    /**
+     * Procesa un trozo RA_STREAM. El primero arranca un StreamReader, los
+     * demas se le pasan en orden, y con el fin de la transferencia se
+     * espera a que termine y se devuelve el agente o el grupo. Devuelve
+     * null con los demas trozos.
+     */
+    private Object receiveStream (RaMessage message, RaChannel channel) throws IOException, ClassNotFoundException{
+        String content = (message.content == null) ? "" : message.content;
+        int sp = content.indexOf(' ');
+        int seq;
+        try {
+            seq = Integer.parseInt((sp < 0) ? content : content.substring(0, sp));
+        }
+        catch (NumberFormatException e){
+            throw new StreamCorruptedException("RA_STREAM no valido: " + content);
+        }
+
+        StreamReader reader = streams.get(channel);
+        if (seq == 0){
+            // una transferencia anterior por esta conexion que no termino
+            if (reader != null) reader.in.close();
+            System.out.println ("ReceiveMessageThread: esta llegando un agente por trozos.");
+            reader = new StreamReader(channel, message.sender, (sp < 0) ? null : content.substring(sp + 1));
+            streams.put(channel, reader);
+            reader.start();
+        }
+        else if (reader == null || reader.next != seq){
+            if (reader != null){
+                streams.remove(channel);
+                reader.in.close();
+            }
+            throw new StreamCorruptedException("RA_STREAM: se esperaba el trozo "
+                                               + ((reader == null) ? 0 : reader.next) + " y ha llegado el " + seq);
+        }
+        else reader.next = seq + 1;
+
+        if (message.binary != null){
+            reader.in.offer(message.binary);
+            return null;
+        }
+        streams.remove(channel);
+        reader.in.end();
+        return reader.await();
+    }
+
+    /**
+     * Lee un mensaje RA_BUNDLE: entrega el bytecode que trae al class
+     * loader de la agencia origen y devuelve el agente o el grupo.
+     */
+    private Object readBundle (RaMessage message) throws IOException, ClassNotFoundException{
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(message.binary));
+        LinkedHashMap<String, String> manifest = new LinkedHashMap<String, String>();
+        int n = in.readInt();
+        for (int i = 0; i < n; ++i){
+            String name = in.readUTF();
+            byte[] code = new byte[in.readInt()];
+            in.readFully(code);
+            manifest.put(name, classManager.putCode(name, code));
+        }
+        return readAgents(message, manifest, in);
+    }
+
+    /**
+     * Lee un mensaje RA_MANIFEST: delante de los agentes trae el nombre y
+     * el hash del bytecode de sus clases. Los bytecodes que esta agencia no
+     * tiene se piden a la agencia origen en un solo GET_CODE.
+     */
+    private Object readManifest (RaMessage message) throws IOException, ClassNotFoundException{
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(message.binary));
+        LinkedHashMap<String, String> manifest = new LinkedHashMap<String, String>();
+        int n = in.readInt();
+        for (int i = 0; i < n; ++i){
+            String name = in.readUTF();
+            manifest.put(name, in.readUTF());
+        }
+        // getCode() trae a memoria el bytecode que esta en disco, para que no
+        // se descarte del almacen antes de usarlo
+        LinkedHashMap<String, String> missing = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> e : manifest.entrySet())
+            if (classManager.getCode(e.getValue()) == null) missing.put(e.getValue(), e.getKey());
+        if (!missing.isEmpty()) fetchCode(message.sender, missing);
+        return readAgents(message, manifest, in);
+    }
+
+    /**
+     * Entrega al class loader de la agencia origen el bytecode de las
+     * clases del manifiesto, que ya esta en el ClassManager, y lee los
+     * agentes del resto del stream.
+     */
+    private Object readAgents (RaMessage message, Map<String, String> manifest, InputStream in)
+    throws IOException, ClassNotFoundException{
+        RaClassLoader loader = classManager.getLoader(agencyAddress, message.sender, message.content, manifest);
+        try {
+            for (Map.Entry<String, String> e : manifest.entrySet()){
+                if (loader.has(e.getKey(), e.getValue())) continue;
+                byte[] code = classManager.getCode(e.getValue());
+                if (code != null) loader.addBundled(e.getKey(), code, e.getValue());
+            }
+            RaInputStream mis = new RaInputStream(loader, in);
+            return mis.readAgent();
+        }
+        finally {
+            classManager.releaseLoader(loader);
+        }
+    }
+
+    /**
+     * Pide a otra agencia, en un solo mensaje, los bytecodes con los hashes
+     * indicados (hash a nombre de la clase) y los guarda en el ClassManager
+     * tras comprobar su hash.
+     */
+    private void fetchCode (RaAddress source, Map<String, String> hashes) throws IOException, ClassNotFoundException{
+        System.out.println ("Pidiendo " + hashes.size() + " clases a " + source);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(hashes.size());
+        for (String h : hashes.keySet()) dos.writeUTF(h);
+        dos.close();
+        RaAddress to = new RaAddress(source.host, source.port, null);
+        RaMessage reply = connectionPool.request(new RaMessage(agencyAddress, to, MessagesEv.GET_CODE, null, bos.toByteArray()));
+        if (!MessagesEv.CODE.equals(reply.kind)) throw new IOException("GET_CODE: " + reply.content);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(reply.binary));
+        int n = in.readInt();
+        for (int i = 0; i < n; ++i){
+            String h = in.readUTF();
+            byte[] code = new byte[in.readInt()];
+            in.readFully(code);
+            if (!hashes.containsKey(h) || !ClassManager.hash(code).equals(h))
+                throw new StreamCorruptedException("Bytecode con hash incorrecto: " + h);
+            classManager.putCode(hashes.get(h), code);
+        }
+    }
+
+    /**
+     * Respuesta a un GET_CODE: los bytecodes que se tienen de los hashes
+     * pedidos. Los que no se tienen se omiten.
+     */
+    private byte[] codeFor (byte[] request) throws IOException{
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(request));
+        LinkedHashMap<String, byte[]> found = new LinkedHashMap<String, byte[]>();
+        int n = in.readInt();
+        for (int i = 0; i < n; ++i){
+            String h = in.readUTF();
+            byte[] code = classManager.getCode(h);
+            if (code != null) found.put(h, code);
+        }
+        RaBuffer buf = RaBuffer.acquire();
+        try {
+            DataOutputStream dos = new DataOutputStream(buf);
+            dos.writeInt(found.size());
+            for (Map.Entry<String, byte[]> e : found.entrySet()){
+                byte[] code = e.getValue();
+                dos.writeUTF(e.getKey());
+                dos.writeInt(code.length);
+                dos.write(code);
+            }
+            dos.flush();
+            return buf.toByteArray();
+        }
+        finally {
+            RaBuffer.release(buf);
+        }
+    }
+
+    /**
+     * Respuesta a un GET_CLASSES: el bytecode de las clases pedidas y, si
+     * se piden con sus dependencias, el de las clases a las que hacen
+     * referencia, de modo que el destino las recibe todas de una vez. Las
+     * que no se encuentran se omiten.
+     */
+    private byte[] classesFor (byte[] request) throws IOException{
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(request));
+        boolean transitive = in.readBoolean();
+        ArrayList<String> names = new ArrayList<String>();
+        int n = in.readInt();
+        for (int i = 0; i < n; ++i) names.add(in.readUTF());
+        System.out.println ("ReceiveMessageThread: Ha llegado un mensaje GET_CLASSES: " + names);
+
+        LinkedHashMap<String, byte[]> found;
+        if (transitive){
+            found = classManager.closureOf(null, names);
+        }
+        else {
+            found = new LinkedHashMap<String, byte[]>();
+            for (String name : names){
+                byte[] code = classManager.getByteCode(name);
+                if (code != null) found.put(name, code);
+            }
+        }
+        RaBuffer buf = RaBuffer.acquire();
+        try {
+            DataOutputStream dos = new DataOutputStream(buf);
+            dos.writeInt(found.size());
+            for (Map.Entry<String, byte[]> e : found.entrySet()){
+                dos.writeUTF(e.getKey());
+                dos.writeInt(e.getValue().length);
+                dos.write(e.getValue());
+            }
+            dos.flush();
+            return buf.toByteArray();
+        }
+        finally {
+            RaBuffer.release(buf);
+        }
+    }
+
+    /**
+     * Envia varios agentes a otra agencia en un solo mensaje RA_GROUP. Los
+     * agentes se serializan juntos en un solo stream, de modo que las
+     * descripciones de sus clases y los objetos que comparten viajan una
+     * vez. Como en dispatchAsync(), los agentes solo dejan esta agencia
+     * cuando el destino confirma el grupo; si falla se quedan todos aqui.
+     */
+    protected CompletableFuture<RaMessage> dispatchGroupAsync (final Ra[] group, final RaAddress address){
+        RaAgency local = RaLocal.lookup(address);
+        if (local != null && localTransfer.equals("reference")){
+            // sin serializar no hay nada que agrupar
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[group.length];
+            for (int i = 0; i < group.length; ++i) futures[i] = dispatchAsync(group[i], address);
+            final RaMessage ack = new RaMessage(local.agencyAddress, agencyAddress, MessagesEv.ACK, null, null);
+            return CompletableFuture.allOf(futures).thenApply(new Function<Void, RaMessage>(){
+                public RaMessage apply(Void v){
+                    return ack;
+                }
+            });
+        }
+
+        CompletableFuture<RaMessage> future;
+        final List<String> shipped = new ArrayList<String>();
+        for (int i = 0; i < group.length; ++i){
+            group[i].onDispatch();
+            RaBox box = boxes.get(group[i].getName());
+            if (box != null && box.task != null && !box.task.isDone()) box.task = null;
+        }
+        try {
+            RaAddress msgSender = new RaAddress(InetAddress.getLocalHost(), port, null);
+
+            if (local == null && streamTransfer && codeBundle.equals("none"))
+                future = streamAgent(msgSender, address, MessagesEv.RA_GROUP, group);
+            else {
+                RaMessage msg = agentMessage(msgSender, address, MessagesEv.RA_GROUP, group, shipped);
+                future = sendAsync(msg);
+            }
+        }
+        catch (IOException e){
+            System.err.println ("! RaAgency.dispatchGroupAsync: " + e );
+            future = new CompletableFuture<RaMessage>();
+            future.completeExceptionally(e);
+        }
+
+        return future.whenComplete(new BiConsumer<RaMessage, Throwable>(){
+            public void accept(RaMessage reply, Throwable error){
+                if (error == null) classesShipped(address, shipped);
+                for (int i = 0; i < group.length; ++i){
+                    if (error == null) raLeft(group[i]);
+                    else raNotDispatched(group[i], address, error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Entrega el mismo objeto agente a otra agencia de esta maquina virtual.
+     * El agente no se destruye: deja esta agencia y llega a la otra.
+     */
+    private CompletableFuture<RaMessage> dispatchLocal (final Ra ra, final RaAgency local){
+        final CompletableFuture<RaMessage> future = new CompletableFuture<RaMessage>();
+        RaLocal.executor().execute(new Runnable(){
+            public void run(){
+                fireRaLeft (ra.getName());
+                RaBox box = boxes.get(ra.getName());
+                if (box == null || box.ra != ra || !boxes.remove(ra.getName(), box)) box = null;
+                classManager.release(ra);
+                RaMessage ack = new RaMessage(local.agencyAddress, agencyAddress, MessagesEv.ACK, ra.getName(), null);
+                try {
+                    try {
+                        local.addRaOnArrival(ra, InetAddress.getLocalHost());
+                    }
+                    catch (UnknownHostException e){
+                        local.addRaOnArrival(ra, null);
+                    }
+                    // los mensajes pendientes viajan con el agente
+                    RaBox arrived = local.boxes.get(ra.getName());
+                    if (box != null && arrived != null) box.mailbox.transferTo(arrived.mailbox);
+                    future.complete(ack);
+                }
+                catch (RuntimeException e){
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * El agente ha llegado a su destino: se elimina de esta agencia.
+     */
+    private void raLeft (Ra ra){
+        ra.onDestroy();
+        fireRaLeft (ra.getName());
+        // si el agente ha vuelto a esta agencia su caja ya es otra
+        RaBox box = boxes.get(ra.getName());
+        if (box != null && box.ra == ra && boxes.remove(ra.getName(), box)) dropMailbox(box);
+        classManager.release(ra);
+    }
+
+    /**
+     * Avisa de los mensajes que quedaban en el buzon de un agente que se va.
+     */
+    private void dropMailbox (RaBox box){
+        int n = box.mailbox.clear();
+        if (n > 0) System.err.println ("! RaAgency: " + n + " mensajes sin entregar al agente " + box.name);
+    }
+
+    /**
+     * Devuelve el agente de la caja, reactivandolo si estaba pasivado, o
+     * null si no se ha podido reactivar.
+     */
+    private Ra resident (RaBox box){
+        Ra ra = box.ra;
+        if (ra == null && activate(box)) ra = box.ra;
+        if (ra != null) box.lastUsed = System.currentTimeMillis();
+        return ra;
+    }
+
+    /**
+     * Ha llegado un mensaje para el agente: si esta pasivado se reactiva
+     * en otro thread para no retener al que lo ha entregado.
+     */
+    private void wake (final RaBox box){
+        box.lastUsed = System.currentTimeMillis();
+        if (box.ra != null) return;
+        execution.execute(new Runnable(){
+            public void run(){
+                activate(box);
+            }
+        });
+    }
 
+    /**
+     * Guarda en el RaStore un agente cuyo run() ha terminado y que no tiene
+     * mensajes pendientes, y lo saca de memoria. La caja sigue registrada
+     * para que el agente reciba mensajes y se pueda consultar. Los mensajes
+     * que llegan mientras se guarda esperan en el buzon y lo reactivan.
+     *
+     * @return true si el agente se ha pasivado.
+     */
+    boolean passivate (RaBox box){
+        RaStore store = this.store;
+        if (store == null) return false;
+        synchronized (box){
+            Ra ra = box.ra;
+            if (ra == null || (box.task != null && !box.task.isDone()) || !box.mailbox.isEmpty()) return false;
+            if (boxes.get(box.name) != box) return false;
+            // el buzon deja de entregar mensajes antes de guardar el agente
+            box.mailbox.setRa(null);
+            if (!box.mailbox.isIdle()){
+                box.mailbox.setRa(ra);
+                return false;
+            }
+            RaBuffer buf = RaBuffer.acquire();
             try {
-                socket = new Socket(msg.recipient.host, msg.recipient.port);
-                System.out.println ("SendMessageThread: socket created to: " + msg.recipient.host + " " + msg.recipient.port);
-                outStream = new ObjectOutputStream(
-                                    socket.getOutputStream());
-                outStream.writeObject (msg);
-                outStream.flush();
-                System.out.println ("SendMessageThread: Wrote message to socket.");
+                ra.onSleep();
+                RaOutputStream mos = new RaOutputStream(buf);
+                mos.setFastAgents (fastSerializer);
+                mos.writeAgent (ra);
+                mos.flush();
+                store.write(box.name, buf.array(), 0, buf.size());
+                box.size = buf.size();
+                box.loader = ra.getClass().getClassLoader();
             }
             catch (IOException e){
-                System.err.println("! SendMessageThread.run,1: " + e + ": " + msg.recipient);
+                System.err.println ("! RaAgency: no se puede pasivar el agente " + box.name + ": " + e);
+                box.mailbox.setRa(ra);
+                return false;
+            }
+            finally {
+                RaBuffer.release(buf);
             }
+            box.ra = null;
+            box.task = null;
+            box.sleeping = false;
+        }
+        System.out.println ("Agente pasivado: " + box.name);
+        // wake() no reactiva el agente mientras box.ra seguia puesto
+        if (!box.mailbox.isEmpty()) wake(box);
+        return true;
+    }
 
-            try{
-                try { sleep(10000); } catch(Exception e) {}; 
-                if (outStream != null) outStream.close();
-                if (socket != null) socket.close();
+    /**
+     * Lee del RaStore un agente pasivado y vuelve a ejecutarlo. Si tiene
+     * mensajes pendientes se le entregan despues de onAwake().
+     *
+     * @return true si el agente esta en memoria.
+     */
+    boolean activate (RaBox box){
+        Ra ra;
+        synchronized (box){
+            if (box.ra != null) return true;
+            if (store == null || boxes.get(box.name) != box) return false;
+            try {
+                ByteArrayInputStream bis = new ByteArrayInputStream(store.read(box.name));
+                RaInputStream mis = new RaInputStream(box.loader, bis);
+                ra = (Ra) mis.readAgent();
             }
             catch (IOException e){
-
-                System.err.println("! SendMessageThread.run,2: " + e);
+                System.err.println ("! RaAgency: no se puede reactivar el agente " + box.name + ": " + e);
+                return false;
+            }
+            catch (ClassNotFoundException e){
+                System.err.println ("! RaAgency: no se puede reactivar el agente " + box.name + ": " + e);
+                return false;
             }
+            store.delete(box.name);
+            ra.setAgency(this);
+            ra.addRaListener(this);
+            ra.addRaMessageListener(this);
+            box.ra = ra;
+            box.sleeping = false;
+            box.wakeAt = 0;
+            box.lastUsed = System.currentTimeMillis();
+            ra.onAwake();
+            box.task = execution.start(ra, "Ra " + ra.getName());
+            box.mailbox.setRa(ra);
         }
-    } // SendMessageThread
-
-
- 
-    public RaAgency (Object parent, ClassManager clManager){
-        this.parent = parent;
-        agencyListeners = new Vector<AgencyListener>();
-        boxes = new Hashtable<String, RaBox>();
-        classManager = clManager;
+        System.out.println ("Agente reactivado: " + box.name);
+        return true;
     }
 
-   
-    public void handleMessage (RaMessage msg){
-        System.out.println ("Message version: " + msg.version);
-        System.out.println ("Message kind: " + msg.kind);
-        System.out.println ("Message content: " + msg.content);
+    /**
+     * El destino no ha confirmado el agente: sigue en esta agencia y
+     * vuelve a ejecutarse en un thread nuevo.
+     */
+    private void raNotDispatched (Ra ra, RaAddress address, Throwable error){
+        System.err.println ("! RaAgency: el agente " + ra.getName() + " no ha llegado a "
+                            + address + ": " + error);
+        RaBox box = boxes.get(ra.getName());
+        if (box == null) return;
+        if (box.task == null || box.task.isDone()) box.task = execution.start(ra, "Ra " + ra.getName());
     }
 
-  
-    protected void dispatch (Ra ra, RaAddress address){
-        //Thread thread;
-        RaMessage msg;
-        ra.onDispatch();
-        RaBox box = (RaBox) boxes.get(ra.getName());
-        if (box.thread.isAlive()) box.thread = null;
-
-        try {
-            RaAddress msgSender = new RaAddress(
-                                         InetAddress.getLocalHost(),
-                                         port, ra.getName());
-
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            mos = new RaOutputStream(bos);
-            mos.writeObject (ra);
-
-            msg = new RaMessage(msgSender, address, "RA", "", bos.toByteArray());
-            new SendMessageThread (msg).start();
-        }
-        catch (UnknownHostException e){
-            System.err.println ("! RaAgency.dispatchRequest: " + e);
-        }
-        catch (IOException e){
-            System.err.println ("! RaAgency.dispatchRequest: " + e );
-        }
 
-        ra.onDestroy();
-        fireRaLeft (ra.getName());
-        boxes.remove (ra.getName());
-        classManager.dec(ra.getName());
+    public void dispose(){
+        if (listenThread != null || nioServer != null) stopAgency(parent);
     }
 
+    public void addRaOnArrival(Ra ra, InetAddress sender){
+        arrive(register(ra, sender));
+    }
 
-    public void dispose(){
-        if (listenThread != null) stopAgency(parent);
+    /**
+     * Recibe un grupo de agentes. Todos quedan registrados antes de volver,
+     * para que puedan recibir mensajes en cuanto se confirma el grupo, y
+     * sus onArrival() y run() se lanzan en paralelo con la estrategia de
+     * ejecucion.
+     */
+    void addGroupOnArrival(Ra[] group, InetAddress sender){
+        for (int i = 0; i < group.length; ++i){
+            final RaBox box = register(group[i], sender);
+            execution.execute(new Runnable(){
+                public void run(){
+                    arrive(box);
+                }
+            });
+        }
     }
 
-    public synchronized void addRaOnArrival(Ra ra, InetAddress sender){
+    /**
+     * Da de alta en la agencia un agente que llega.
+     */
+    private RaBox register(Ra ra, InetAddress sender){
         ra.setAgency(this);
         ra.addRaListener(this);
         ra.addRaMessageListener(this);
-        Thread thread = new Thread (ra);
         java.util.Date time = new java.util.Date();
-        RaBox box = new RaBox(ra, thread, time, sender);
-        boxes.put(ra.getName(), box);
+        RaBox box = new RaBox(ra, null, time, sender);
+        box.mailbox = new RaMailbox(ra, execution, mailboxCapacity, mailboxOverflow);
+        boxes.put(box);
+        classManager.retain(ra);
+        return box;
+    }
+
+    /**
+     * Arranca un agente ya registrado que acaba de llegar.
+     */
+    private void arrive(RaBox box){
+        Ra ra = box.ra;
         ra.onArrival();
-        thread.start();
+        box.task = execution.start(ra, "Ra " + ra.getName());
         fireRaArrived (ra.getName());
     }
 
     
     public synchronized void addRaOnCreation(Ra ra, InetAddress sender){
-        ra.setAgency(this);
-        ra.addRaListener(this);
-        ra.addRaMessageListener(this);
-        Thread thread = new Thread (ra);
-        java.util.Date time = new java.util.Date();
-        RaBox box = new RaBox(ra, thread, time, sender);
-        boxes.put(ra.getName(), box);
+        RaBox box = register(ra, sender);
         ra.onCreate();
-        thread.start();
+        box.task = execution.start(ra, "Ra " + ra.getName());
         fireRaCreated (ra.getName());
     }
 
@@ -367,6 +1649,13 @@ public class RaAgency
     
     public void raSleepRequest(RaEvent e){
         Ra ra = (Ra) e.getSource();
+        RaBox box = boxes.get(ra.getName());
+        // con pasivacion el RaPassivator lo guarda cuando termine su run()
+        if (passivator != null && box != null && box.ra == ra){
+            box.wakeAt = ra.getWakeUpTime();
+            box.sleeping = true;
+            return;
+        }
         ra.onSleep();
     }
 
@@ -377,8 +1666,40 @@ public class RaAgency
     }
 
   
+    /**
+     * Devuelve los nombres de los agentes de la agencia en este momento.
+     */
     public Enumeration<String> getRaNames(Object sender){
-        return boxes.keys();
+        return Collections.enumeration(boxes.names());
+    }
+
+    /**
+     * Devuelve los nombres de los agentes de la clase indicada.
+     */
+    public Enumeration<String> getRaNamesByClass(Object sender, String className){
+        return namesOf(boxes.byClass(className));
+    }
+
+    /**
+     * Devuelve los nombres de los agentes que llegaron desde el host
+     * indicado, o de los creados en esta agencia si host es null.
+     */
+    public Enumeration<String> getRaNamesBySendingHost(Object sender, InetAddress host){
+        return namesOf(boxes.bySendingHost(host));
+    }
+
+    /**
+     * Devuelve los nombres de los agentes que llegaron o se crearon entre
+     * from (incluido) y to (excluido), en orden de llegada.
+     */
+    public Enumeration<String> getRaNamesArrivedBetween(Object sender, Date from, Date to){
+        return namesOf(boxes.arrivedBetween(from, to));
+    }
+
+    private static Enumeration<String> namesOf(List<RaBox> list){
+        Vector<String> names = new Vector<String>(list.size());
+        for (RaBox box : list) names.addElement(box.name);
+        return names.elements();
     }
 
     public String generateName(){
@@ -408,16 +1729,32 @@ public class RaAgency
 
     
 
-    public void startAgency(Object sender, int portNo, RaAddress raServer){
-        if (sender != parent) return;
+    /**
+     * Arranca la agencia en el puerto indicado.
+     *
+     * @return false si no se ha podido abrir el puerto en el servidor
+     *         compartido de un RaHost; fuera de un RaHost ese error termina
+     *         el programa.
+     */
+    public boolean startAgency(Object sender, int portNo, RaAddress raServer){
+        if (sender != parent) return false;
 
         port = portNo;
         this.raServer = raServer;
         try{
              agencyAddress = new RaAddress(InetAddress.getLocalHost(), port, null);
 
-             serverSocket = new ServerSocket(port);
-             System.out.println ("Escuchando en el puerto: " + port);
+             if (sharedIo){
+                 nioServer.bind(port, new Receiver());
+             }
+             else if (ioMode.equals("nio")){
+                 workers = Executors.newFixedThreadPool(workerThreads);
+                 nioServer = new RaNioServer(ioThreads, workers);
+                 nioServer.setConnectionTimeout(connectionTimeout);
+                 nioServer.bind(port, new Receiver());
+             }
+             else serverSocket = new ServerSocket(port);
+             System.out.println ("Escuchando en el puerto: " + port + " (" + ioMode + ")");
         }
         catch (UnknownHostException e){
             System.err.println ("No se ha podido determinar la direccion del host local!");
@@ -425,10 +1762,31 @@ public class RaAgency
         }
         catch (IOException e){
             System.err.println ("! No se ha podido crear el ServerSocket!" + e);
+            // en un RaHost el error no debe parar las demas agencias
+            if (sharedIo) return false;
             System.exit(1);
         }
-        listenThread = new ListenThread(this);
-        listenThread.start();
+        if (serverSocket != null){
+            listenThread = new ListenThread(this);
+            listenThread.start();
+        }
+        if (!sharedIo){
+            outbox = new RaOutbox(connectionPool, 2);
+            outbox.setBatching(batchLinger, batchMaxBytes, batchMaxMessages);
+        }
+
+        if (passivationDir != null){
+            try {
+                store = new RaStore(new File(passivationDir, Integer.toString(port)));
+                passivator = new RaPassivator(this, passivationBudget, passivateAfter);
+                passivator.start();
+            }
+            catch (IOException e){
+                System.err.println ("! RaAgency: No se puede crear el almacen de agentes: " + e);
+            }
+        }
+
+        RaLocal.register(port, this);
 
         if (raServer != null){
             RaMessage msg = new RaMessage (agencyAddress,
@@ -438,11 +1796,27 @@ public class RaAgency
                                                          null);
             new SendMessageThread (msg).start();
         }
+        return true;
     }
 
     public void stopAgency (Object sender){
         if (sender != parent) return;
 
+        RaLocal.unregister(port, this);
+
+        if (passivator != null){
+            passivator.shutdown();
+            passivator = null;
+        }
+
+        if (RaCompression.getRawBytes() > 0) System.out.println (RaCompression.stats());
+
+        synchronized (this){
+            if (events != null && ownEvents){
+                events.shutdown();
+                events = null;
+            }
+        }
 
         if (raServer != null){
             RaMessage msg = new RaMessage (agencyAddress,
@@ -460,6 +1834,31 @@ public class RaAgency
             }
         }
 
+        if (sharedIo){
+            try{
+                nioServer.unbind(port);
+            }
+            catch (IOException e){
+                System.err.println ("! RaAgency: No se puede cerrar el puerto " + port + ": " + e);
+            }
+            System.out.println ("Puerto " + port + " cerrado");
+            return;
+        }
+
+        if (outbox != null){
+            outbox.shutdown();
+            outbox = null;
+        }
+
+        if (nioServer != null){
+            nioServer.shutdown();
+            nioServer = null;
+            workers.shutdown();
+            workers = null;
+            System.out.println ("Servidor NIO cerrado");
+            return;
+        }
+
         listenThread = null;
         try{
              serverSocket.close();
@@ -472,114 +1871,396 @@ public class RaAgency
         }
     }
 
-    public void destroyRa (Object sender, String name){
-        RaBox box = (RaBox) boxes.get(name);
-        if (box != null){
-            box.ra.onDestroy();
-            fireRaDestroyed (box.ra.getName());
-            boxes.remove(name);
+    /**
+     * Envia un mensaje a otra agencia a traves de la cola de salida,
+     * que lo agrupa con otros mensajes al mismo destino.
+     */
+    protected void send (RaMessage msg){
+        RaAgency local = RaLocal.lookup(msg.recipient);
+        if (local != null){
+            local.deliverLocal(msg);
+            return;
         }
+        RaOutbox box = outbox;
+        if (box != null) box.send(msg);
+        else new SendMessageThread(msg).start();
     }
 
-    public void dispatchRa (Object sender, String name, RaAddress destination){
-        RaBox box = (RaBox) boxes.get(name);
-        if (box != null){
-            System.out.println ("Destino: " + destination.host.toString());
-            dispatch (box.ra, destination);
+    /**
+     * Envia un mensaje a otra agencia y devuelve un futuro que se completa
+     * cuando el destino lo confirma. Si el destino es una agencia antigua,
+     * que no confirma mensajes, el futuro se completa al enviarlo.
+     */
+    public CompletableFuture<RaMessage> sendAsync (RaMessage msg){
+        RaAgency local = RaLocal.lookup(msg.recipient);
+        if (local != null) return local.deliverLocal(msg);
+        RaOutbox box = outbox;
+        if (box != null) return box.sendAsync(msg);
+        try {
+            return connectionPool.sendAsync(msg);
+        }
+        catch (IOException e){
+            CompletableFuture<RaMessage> future = new CompletableFuture<RaMessage>();
+            future.completeExceptionally(e);
+            return future;
         }
     }
 
-    public Hashtable<?, ?> getServers (Object sender){
-        Hashtable<?, ?> result = null;
-        synchronized (this){
-            if (agencys != null) result = (Hashtable<?, ?>) agencys.clone();
-        }
-        return result;
+    /**
+     * Procesa un mensaje enviado desde esta misma maquina virtual, sin
+     * pasar por la red. Se procesa en otro thread, despues de los que el
+     * mismo remitente ha enviado antes al mismo destino, como si hubiera
+     * llegado por un socket, y el futuro se completa con la confirmacion.
+     */
+    CompletableFuture<RaMessage> deliverLocal (RaMessage msg){
+        final CompletableFuture<RaMessage> future = new CompletableFuture<RaMessage>();
+        final RaMessage message = new RaMessage(msg.sender, msg.recipient, msg.kind, msg.content, msg.binary);
+        message.id = RaLocal.nextId();
+        RaLocal.execute(message.sender, message.recipient, new Runnable(){
+            public void run(){
+                try {
+                    processMessage(message, agencyAddress.host, new LocalChannel(future));
+                }
+                catch (IOException e){
+                    future.completeExceptionally(e);
+                }
+                catch (ClassNotFoundException e){
+                    future.completeExceptionally(e);
+                }
+                catch (RuntimeException e){
+                    future.completeExceptionally(e);
+                }
+                future.complete(null);
+            }
+        });
+        return future;
     }
 
-    public synchronized void addAgencyListener (AgencyListener l){
-        if (agencyListeners.contains(l)) return;
+    /**
+     * Establece como se entregan los agentes a otra agencia de la misma
+     * maquina virtual: "reference" o "copy".
+     */
+    public void setLocalTransfer (String localTransfer){
+        this.localTransfer = localTransfer;
+    }
 
-        agencyListeners.addElement (l);
+    /**
+     * Establece si se envia el codigo de los agentes con ellos: "none",
+     * "closure", "missing" o "manifest".
+     */
+    public void setCodeBundle (String codeBundle){
+        this.codeBundle = codeBundle;
     }
 
+    /**
+     * Establece si con el codigo de los agentes se envian tambien las
+     * clases de las que depende su bytecode.
+     */
+    public void setCodeTransitive (boolean codeTransitive){
+        this.codeTransitive = codeTransitive;
+    }
 
-    public synchronized void removeAgencyListener (AgencyListener l){
-        agencyListeners.removeElement (l);
+    /**
+     * Establece como se serializan los agentes que salen de la agencia:
+     * "java" o "fast" (RaSerializer).
+     */
+    public void setAgentSerializer (String serializer){
+        fastSerializer = "fast".equals(serializer);
     }
 
-   
-    @SuppressWarnings("unchecked")
-	protected void fireRaCreated (String name){
-        Vector<AgencyListener> listeners;
-        synchronized (this){
-            listeners = (Vector<AgencyListener>) agencyListeners.clone();
-        }
-        int size = listeners.size();
+    /**
+     * Establece como salen los agentes hacia otra agencia: "message", en un
+     * solo mensaje, o "stream", por trozos de chunkSize bytes. Por trozos
+     * solo se envian con codeBundle "none".
+     */
+    public void setAgentTransfer (String transfer, int chunkSize){
+        streamTransfer = "stream".equals(transfer);
+        if (chunkSize > 0) streamChunk = chunkSize;
+    }
 
-        if (size == 0) return;
+    /**
+     * Activa o desactiva el envio como diferencias de los agentes de al
+     * menos threshold bytes que vuelven a una agencia de la que ya habian
+     * salido. Se guarda la version con la que sale cada agente, hasta
+     * budget bytes en total y durante maxAge milisegundos. Como diferencias
+     * solo se envian con codeBundle "none" y sin agentTransfer "stream".
+     */
+    public void setDelta (boolean enabled, int threshold, long budget, long maxAge){
+        snapshots = enabled ? new RaSnapshots(budget, maxAge) : null;
+        if (threshold > 0) deltaThreshold = threshold;
+    }
 
-        AgencyEvent e = new AgencyEvent (this, name);
-        for (int i = 0; i < size; ++i) {
-            ( (AgencyListener) agencyListeners.elementAt(i) ).agencyRaCreated(e);
-        }
+    /**
+     * Establece la ventana en milisegundos y los limites de los lotes de
+     * mensajes a una misma agencia. Debe llamarse antes de startAgency().
+     */
+    public void setBatching (long linger, int maxBytes, int maxMessages){
+        batchLinger = linger;
+        batchMaxBytes = maxBytes;
+        batchMaxMessages = maxMessages;
     }
 
-   
-    @SuppressWarnings("unchecked")
-	protected void fireRaArrived (String name){
-        Vector<AgencyListener> listeners;
+    /**
+     * Hace que la agencia use el servidor NIO, los threads de trabajo y la
+     * cola de salida de un RaHost en lugar de crear los suyos.
+     * Debe llamarse antes de startAgency().
+     */
+    public void setSharedIo (RaNioServer nioServer, ExecutorService workers, RaOutbox outbox){
+        this.nioServer = nioServer;
+        this.workers = workers;
+        this.outbox = outbox;
+        ioMode = "nio";
+        sharedIo = true;
+    }
+
+    /**
+     * Establece como se ejecutan los agentes: "thread", "virtual" o "pool"
+     * (con el numero de threads indicado). Debe llamarse antes de crear o
+     * recibir agentes.
+     */
+    public void setExecution (String mode, int threads){
+        setExecution(RaExecution.create(mode, threads));
+    }
+
+    /**
+     * Establece la estrategia de ejecucion de los agentes, que puede estar
+     * compartida con otras agencias.
+     */
+    public void setExecution (RaExecution execution){
+        this.execution = execution;
+    }
+
+    /**
+     * Establece la capacidad del buzon de los agentes (0 sin limite) y la
+     * politica al llenarse: "reject", "dropOldest" o "block". Afecta a los
+     * agentes que se creen o lleguen despues.
+     */
+    public void setMailbox (int capacity, String overflow){
+        mailboxCapacity = capacity;
+        mailboxOverflow = overflow;
+    }
+
+    /**
+     * Activa la pasivacion de agentes: los que piden dormir, los que llevan
+     * idleTimeout milisegundos sin usarse (0 nunca) y, si los residentes
+     * ocupan mas de budget bytes (0 sin limite), los usados hace mas tiempo
+     * se guardan en un subdirectorio de dir. Debe llamarse antes de
+     * startAgency().
+     */
+    public void setPassivation (String dir, long budget, long idleTimeout){
+        passivationDir = dir;
+        passivationBudget = budget;
+        passivateAfter = idleTimeout;
+    }
+
+    /**
+     * Establece el numero de bucles propios que entregan los eventos.
+     * Debe llamarse antes de crear o recibir agentes.
+     */
+    public synchronized void setEventThreads (int threads){
+        if (events != null && ownEvents) events.shutdown();
+        events = new RaEventDispatcher(threads);
+        ownEvents = true;
+    }
+
+    /**
+     * Establece los bucles que entregan los eventos, que pueden estar
+     * compartidos con otras agencias.
+     */
+    public synchronized void setEventDispatcher (RaEventDispatcher events){
+        if (this.events != null && ownEvents) this.events.shutdown();
+        this.events = events;
+        ownEvents = false;
+    }
+
+    /**
+     * Devuelve los bucles de eventos, creando uno propio si no se han
+     * establecido.
+     */
+    private RaEventDispatcher events (){
+        RaEventDispatcher e = events;
+        if (e != null) return e;
         synchronized (this){
-            listeners = (Vector<AgencyListener>) agencyListeners.clone();
+            if (events == null){
+                events = new RaEventDispatcher(1);
+                ownEvents = true;
+            }
+            return events;
         }
-        int size = listeners.size();
+    }
+
+    /**
+     * Entrega de modo asincrono un evento lanzado por un agente. Los
+     * eventos de un mismo agente se entregan en orden.
+     */
+    void postEvent (String name, Runnable task){
+        events().post(name, task);
+    }
 
-        if (size == 0) return;
+    /**
+     * Establece el modo de entrada de la red ("threads" o "nio").
+     * Debe llamarse antes de startAgency().
+     */
+    public void setIoMode (String ioMode, int ioThreads, int workerThreads){
+        this.ioMode = ioMode;
+        this.ioThreads = ioThreads;
+        this.workerThreads = workerThreads;
+    }
 
-        AgencyEvent e = new AgencyEvent (this, name);
-        for (int i = 0; i < size; ++i) {
-            ( (AgencyListener) agencyListeners.elementAt(i) ).agencyRaArrived(e);
+    /**
+     * Elimina un agente. Un agente pasivado no se reactiva: se borra del
+     * RaStore sin llamar a su onDestroy().
+     */
+    public void destroyRa (Object sender, String name){
+        RaBox box = boxes.get(name);
+        if (box == null) return;
+        Ra ra;
+        // con el lock de la caja no se puede estar pasivando ni reactivando
+        synchronized (box){
+            ra = box.ra;
+            if (!boxes.remove(name, box)) return;
+            if (ra == null && store != null) store.delete(name);
+        }
+        if (ra != null){
+            ra.onDestroy();
+            classManager.release(ra);
         }
+        else classManager.releaseLoader(box.loader);
+        fireRaDestroyed (name);
+        dropMailbox(box);
     }
 
-   
+    public void dispatchRa (Object sender, String name, RaAddress destination){
+        dispatchRaAsync(sender, name, destination);
+    }
 
-    @SuppressWarnings("unchecked")
-	protected void fireRaDestroyed (String name){
-        Vector<AgencyListener> listeners;
-        synchronized (this){
-            listeners = (Vector<AgencyListener>) agencyListeners.clone();
+    /**
+     * Envia a otra agencia todos los agentes de la clase indicada.
+     * Devuelve un futuro por agente, como dispatchRaAsync().
+     */
+    public List<CompletableFuture<RaMessage>> dispatchRaByClass (Object sender, String className, RaAddress destination){
+        ArrayList<CompletableFuture<RaMessage>> futures = new ArrayList<CompletableFuture<RaMessage>>();
+        for (RaBox box : boxes.byClass(className)){
+            Ra ra = resident(box);
+            if (ra != null) futures.add(dispatchAsync(ra, destination));
         }
-        int size = listeners.size();
+        return futures;
+    }
 
-        if (size == 0) return;
+    /**
+     * Envia a otra agencia varios agentes en una sola transferencia. Los
+     * nombres que no son de agentes de la agencia se ignoran. El futuro se
+     * completa cuando el destino confirma el grupo entero.
+     */
+    public CompletableFuture<RaMessage> dispatchRaGroup (Object sender, List<String> names, RaAddress destination){
+        ArrayList<Ra> group = new ArrayList<Ra>(names.size());
+        for (String name : names){
+            RaBox box = boxes.get(name);
+            Ra ra = (box == null) ? null : resident(box);
+            if (ra != null) group.add(ra);
+        }
+        if (group.isEmpty()){
+            CompletableFuture<RaMessage> future = new CompletableFuture<RaMessage>();
+            future.completeExceptionally(new IllegalArgumentException("Ningun agente encontrado"));
+            return future;
+        }
+        System.out.println ("Destino de " + group.size() + " agentes: " + destination.host.toString());
+        return dispatchGroupAsync (group.toArray(new Ra[group.size()]), destination);
+    }
 
-        AgencyEvent e = new AgencyEvent (this, name);
-        for (int i = 0; i < size; ++i) {
-            ( (AgencyListener) agencyListeners.elementAt(i) ).agencyRaDestroyed(e);
+    /**
+     * Envia un agente a otra agencia. El futuro se completa cuando el
+     * destino confirma la llegada del agente, y falla si no llega.
+     */
+    public CompletableFuture<RaMessage> dispatchRaAsync (Object sender, String name, RaAddress destination){
+        RaBox box = (RaBox) boxes.get(name);
+        Ra ra = (box == null) ? null : resident(box);
+        if (ra == null){
+            CompletableFuture<RaMessage> future = new CompletableFuture<RaMessage>();
+            future.completeExceptionally(new IllegalArgumentException("Agente no encontrado: " + name));
+            return future;
         }
+        System.out.println ("Destino: " + destination.host.toString());
+        return dispatchAsync (ra, destination);
     }
 
-   
-    @SuppressWarnings("unchecked")
-	protected void fireRaLeft (String name){
-        Vector<AgencyListener> listeners;
+    public Hashtable<?, ?> getServers (Object sender){
+        Hashtable<?, ?> result = null;
         synchronized (this){
-            listeners = (Vector<AgencyListener>) agencyListeners.clone();
+            if (agencys != null) result = (Hashtable<?, ?>) agencys.clone();
         }
-        int size = listeners.size();
+        return result;
+    }
+
+    public synchronized void addAgencyListener (AgencyListener l){
+        AgencyListener[] listeners = agencyListeners;
+        for (int i = 0; i < listeners.length; ++i) if (listeners[i].equals(l)) return;
+
+        AgencyListener[] copy = new AgencyListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, copy, 0, listeners.length);
+        copy[listeners.length] = l;
+        agencyListeners = copy;
+    }
 
-        if (size == 0) return;
 
-        AgencyEvent e = new AgencyEvent (this, name);
-        for (int i = 0; i < size; ++i) {
-            ( (AgencyListener) agencyListeners.elementAt(i) ).agencyRaLeft(e);
+    public synchronized void removeAgencyListener (AgencyListener l){
+        AgencyListener[] listeners = agencyListeners;
+        for (int i = 0; i < listeners.length; ++i){
+            if (listeners[i].equals(l)){
+                AgencyListener[] copy = new AgencyListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, copy, 0, i);
+                System.arraycopy(listeners, i + 1, copy, i, copy.length - i);
+                agencyListeners = copy;
+                return;
+            }
         }
     }
 
+    static final int CREATED = 0;
+    static final int ARRIVED = 1;
+    static final int DESTROYED = 2;
+    static final int LEFT = 3;
+
+    /**
+     * Entrega un evento de la agencia a los listeners que habia al lanzarlo.
+     */
+    private void fireAgencyEvent (final int type, String name){
+        final AgencyListener[] listeners = agencyListeners;
+        if (listeners.length == 0) return;
+
+        final AgencyEvent e = new AgencyEvent (this, name);
+        events().post(name, new Runnable(){
+            public void run(){
+                for (int i = 0; i < listeners.length; ++i){
+                    switch (type){
+                        case CREATED:   listeners[i].agencyRaCreated(e); break;
+                        case ARRIVED:   listeners[i].agencyRaArrived(e); break;
+                        case DESTROYED: listeners[i].agencyRaDestroyed(e); break;
+                        case LEFT:      listeners[i].agencyRaLeft(e); break;
+                    }
+                }
+            }
+        });
+    }
+
+    protected void fireRaCreated (String name){
+        fireAgencyEvent (CREATED, name);
+    }
+
+    protected void fireRaArrived (String name){
+        fireAgencyEvent (ARRIVED, name);
+    }
+
+    protected void fireRaDestroyed (String name){
+        fireAgencyEvent (DESTROYED, name);
+    }
+
+    protected void fireRaLeft (String name){
+        fireAgencyEvent (LEFT, name);
+    }
+
     public void raMessage (RaMessageEvent e){
         RaMessage message = e.getMessage();
-        Ra receiver;
 
         if (message != null)
 	{
@@ -592,14 +2273,15 @@ public class RaAgency
 		    	box = (RaBox) boxes.get (message.recipient.name); 
                     if( box != null )
 		    {
-		    	receiver = (Ra) box.ra;
-                    	if (receiver != null) receiver.handleMessage (message); 
+		    	if (!box.mailbox.offer(message))
+		    	    System.err.println("Buzon lleno, mensaje descartado: " + message.recipient.name);
+		    	else wake(box);
 			
 		    }
 		    else System.err.println("No es un agente local " + message.recipient.name);
                 }
                 else {
-                    new SendMessageThread(message).start();
+                    send(message);
                 }
             }
         }
@@ -2,25 +2,73 @@ package raf.principal;
 
 import java.net.InetAddress;
 import java.util.Date;
+import java.util.concurrent.Future;
 
 
 public class RaBox
 {
    
-    public Ra ra;
-    
-    
-    public Thread thread;
+    /**
+     * El agente, o null mientras esta pasivado en el RaStore de la agencia.
+     */
+    public volatile Ra ra;
+
+    /**
+     * Nombre del agente y nombre de su clase, que siguen disponibles
+     * mientras el agente esta pasivado.
+     */
+    public String name;
+    public String className;
+
+    /**
+     * Momento en milisegundos en el que se uso el agente por ultima vez.
+     */
+    public volatile long lastUsed;
+
+    /**
+     * Tamanio en bytes del agente serializado, 0 si no se conoce.
+     */
+    public long size = 0;
+
+    /**
+     * Indica si el agente ha pedido dormir.
+     */
+    public volatile boolean sleeping = false;
+
+    /**
+     * Momento en milisegundos en el que se despierta un agente pasivado,
+     * 0 si solo se despierta al recibir un mensaje.
+     */
+    public volatile long wakeAt = 0;
+
+    /**
+     * Class loader del agente mientras esta pasivado, para volver a leerlo
+     * con las mismas clases.
+     */
+    public ClassLoader loader;
+
+    /**
+     * Ejecucion del run() del agente, arrancada con la RaExecution de la agencia.
+     */
+    public Future<?> task;
+
+    /**
+     * Mensajes pendientes de entregar al agente.
+     */
+    public RaMailbox mailbox;
 
     public Date timeOfArrival;
 
     public InetAddress sendingHost;
 
    
-    public RaBox(Ra ra, Thread thread,
+    public RaBox(Ra ra, Future<?> task,
                       Date timeOfArrival, InetAddress sendingHost){
         this.ra = ra;
-        this.thread = thread;
+        this.name = ra.getName();
+        this.className = ra.getClass().getName();
+        this.lastUsed = System.currentTimeMillis();
+        this.task = task;
         this.timeOfArrival = timeOfArrival;
         this.sendingHost = sendingHost; 
     }    
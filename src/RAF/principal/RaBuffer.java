@@ -0,0 +1,127 @@
+package raf.principal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Buffer de salida reutilizable para serializar agentes y montar tramas.
+ * A diferencia de ByteArrayOutputStream da acceso a su array, de modo que
+ * el contenido se puede escribir en un socket sin copiarlo, y se devuelve a
+ * un pool al terminar para no reservar memoria en cada envio.
+ *
+ * Uso:
+ * <pre>
+ *     RaBuffer buf = RaBuffer.acquire();
+ *     try{
+ *         ...
+ *     }
+ *     finally{
+ *         RaBuffer.release(buf);
+ *     }
+ * </pre>
+ */
+public class RaBuffer extends OutputStream
+{
+    /**
+     * Tamanio inicial de los buffers.
+     */
+    static final int INITIAL_SIZE = 8 * 1024;
+
+    /**
+     * Los buffers que han crecido por encima de este tamanio no se guardan
+     * en el pool, para no retener memoria por un agente muy grande.
+     */
+    static final int MAX_POOLED_SIZE = 1024 * 1024;
+
+    /**
+     * Numero maximo de buffers libres en el pool.
+     */
+    static final int MAX_POOLED = 32;
+
+    private static ConcurrentLinkedQueue<RaBuffer> pool = new ConcurrentLinkedQueue<RaBuffer>();
+
+    private static AtomicInteger pooled = new AtomicInteger(0);
+
+    private byte[] buf;
+
+    private int count = 0;
+
+    public RaBuffer(int size){
+        buf = new byte[size];
+    }
+
+    /**
+     * Saca un buffer vacio del pool, o crea uno si no hay.
+     */
+    public static RaBuffer acquire(){
+        RaBuffer b = pool.poll();
+        if (b == null) return new RaBuffer(INITIAL_SIZE);
+        pooled.decrementAndGet();
+        return b;
+    }
+
+    /**
+     * Devuelve un buffer al pool. No se puede seguir usando.
+     */
+    public static void release(RaBuffer b){
+        if (b == null || b.buf.length > MAX_POOLED_SIZE) return;
+        if (pooled.incrementAndGet() > MAX_POOLED){
+            pooled.decrementAndGet();
+            return;
+        }
+        b.count = 0;
+        pool.add(b);
+    }
+
+    private void ensure(int n){
+        if (count + n <= buf.length) return;
+        byte[] bigger = new byte[Math.max(buf.length * 2, count + n)];
+        System.arraycopy(buf, 0, bigger, 0, count);
+        buf = bigger;
+    }
+
+    public void write(int b){
+        ensure(1);
+        buf[count++] = (byte) b;
+    }
+
+    public void write(byte[] b, int off, int len){
+        ensure(len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * El array interno; solo son validos los size() primeros bytes.
+     */
+    public byte[] array(){
+        return buf;
+    }
+
+    public int size(){
+        return count;
+    }
+
+    public void reset(){
+        count = 0;
+    }
+
+    /**
+     * Copia el contenido en un array nuevo de su tamanio exacto.
+     */
+    public byte[] toByteArray(){
+        byte[] result = new byte[count];
+        System.arraycopy(buf, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Escribe el contenido en otro stream sin copiarlo.
+     */
+    public void writeTo(OutputStream out) throws IOException{
+        out.write(buf, 0, count);
+    }
+}
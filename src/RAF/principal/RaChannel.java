@@ -0,0 +1,17 @@
+package raf.principal;
+
+import java.io.IOException;
+
+
+/**
+ * Conexion entrante por la que se pueden devolver respuestas al
+ * que envio un mensaje (por ejemplo la respuesta CLASS a un GET_CLASS).
+ */
+public interface RaChannel
+{
+    /**
+     * Envia un mensaje de respuesta por la conexion, con la misma version
+     * del formato que el ultimo mensaje recibido por ella.
+     */
+    public void send(RaMessage msg) throws IOException;
+}
@@ -1,11 +1,15 @@
 package raf.principal;
 
 import java.io.*;
-import java.net.Socket;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.security.CodeSource;
 import java.security.SecureClassLoader;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import raf.messages.MessagesEv;
 
 
 
@@ -21,6 +25,32 @@ public class RaClassLoader extends SecureClassLoader{
    
     RaAddress sourceHost;
 
+    /**
+     * Clave del loader en el ClassManager: agencia origen y version del codigo.
+     */
+    String key;
+
+    /**
+     * Numero de agentes de la agencia cargados con este loader.
+     */
+    AtomicInteger refs = new AtomicInteger(0);
+
+    /**
+     * Momento en que se uso por ultima vez sin agentes; el ClassManager lo
+     * descarta pasado el tiempo de retardo.
+     */
+    volatile long idleSince;
+
+    /**
+     * Bytecodes que han llegado con los agentes y aun no se han definido.
+     */
+    private Hashtable<String, byte[]> bundled = new Hashtable<String, byte[]>();
+
+    /**
+     * Hash del bytecode de cada clase definida o pendiente de definir.
+     */
+    private Hashtable<String, String> hashes = new Hashtable<String, String>();
+
 
   
 
@@ -35,35 +65,18 @@ public class RaClassLoader extends SecureClassLoader{
     protected byte loadClassData(String name)[]
     throws ClassNotFoundException{
         byte result[] = null;
-        Socket socket = null;
 
         System.out.println("RaClassLoader.loadClassData() ha sido llamado por: " + name);
 
         try{
-            socket = new Socket(sourceHost.host, sourceHost.port);
-
-            System.out.println("el cargador ha establecido la conexin");
-
-            ObjectOutputStream outStream = new ObjectOutputStream(
-                        socket.getOutputStream());
-            ObjectInputStream inStream = new ObjectInputStream(
-                    new BufferedInputStream(
-                        socket.getInputStream()));
-
             RaMessage message = new RaMessage(agency,
                                                             sourceHost,
                                                             "GET_CLASS",
                                                             name, null);
 
-            outStream.writeObject(message);
-            outStream.flush();
-
-            RaMessage inMessage = (RaMessage) inStream.readObject();
+            // la peticion viaja por una conexion del pool hacia la agencia origen
+            RaMessage inMessage = RaConnectionPool.getDefault().request(message);
             result = inMessage.binary;
-
-            inStream.close();
-            outStream.close();
-            socket.close();
         }
         catch (UnknownHostException e) {
             System.err.println("Funcion enviar: Host desconocido!");
@@ -74,33 +87,139 @@ public class RaClassLoader extends SecureClassLoader{
         return result;
     }
 
+    /**
+     * Pide a la agencia origen, en un solo GET_CLASSES, una clase y las
+     * clases de las que depende. Las dependencias se guardan para definirlas
+     * cuando se necesiten. Devuelve el bytecode de la clase, o null si la
+     * agencia origen no la tiene o no entiende GET_CLASSES.
+     */
+    protected byte[] loadClassesData(String name){
+        System.out.println("RaClassLoader.loadClassesData() ha sido llamado por: " + name);
+        try{
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.writeBoolean(true);
+            dos.writeInt(1);
+            dos.writeUTF(name);
+            dos.close();
+            RaMessage message = new RaMessage(agency, sourceHost, MessagesEv.GET_CLASSES, null, bos.toByteArray());
+            RaMessage reply = RaConnectionPool.getDefault().request(message);
+            if (!MessagesEv.CLASSES.equals(reply.kind) || reply.binary == null) return null;
+
+            byte[] result = null;
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(reply.binary));
+            int n = in.readInt();
+            for (int i = 0; i < n; ++i){
+                String cname = in.readUTF();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                if (cname.equals(name)) result = data;
+                else prefetch(cname, data);
+            }
+            return result;
+        }
+        catch (IOException e){
+            System.err.println ("RaClassLoader: GET_CLASSES ha fallado: " + e);
+            return null;
+        }
+        catch (ClassNotFoundException e){
+            System.err.println ("RaClassLoader: GET_CLASSES ha fallado: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Guarda el bytecode de una clase que aun no tiene este loader.
+     */
+    private synchronized void prefetch(String name, byte[] data){
+        if (hashes.containsKey(name) || findLoadedClass(name) != null) return;
+        addBundled(name, data);
+    }
+
    
     public Class<?> findClass(String name)
     throws ClassNotFoundException {
     
         System.out.println("Ha sido llamado findClass en RaClassLoader!! " + name);
 
-	Class<?> c = classManager.getClass(name);
-        if (c != null) {
-            System.out.println("Recuperando la clase desde cache: " + name);
-            classManager.inc(name);
-            return c;
-        }
-	
-        name = "Chat";
-	if (sourceHost == null) throw new ClassNotFoundException(name);
-	byte[] data = loadClassData(name);
+	// las clases que han llegado con el agente se definen sin pedirlas
+	byte[] bundle = bundled.remove(name);
+	if (bundle != null) return define(name, bundle);
+
+	// las clases ya definidas por este loader las devuelve loadClass() sin llegar aqui
+	byte[] data;
+	if (sourceHost == null){
+	    // agentes creados en esta agencia: se cargan de agentsPath
+	    data = classManager.getRepository().get(name);
+	}
+	else {
+	    // la clase y sus dependencias en un solo mensaje; si no, solo la clase
+	    data = loadClassesData(name);
+	    if (data == null) data = loadClassData(name);
+	}
         
         if (data==null) throw new ClassNotFoundException(name);
+	return define(name, data);
+    }
+
+    /**
+     * Guarda el bytecode de una clase que ha llegado con un agente, para
+     * definirla cuando se necesite sin pedirla a la agencia origen.
+     */
+    public void addBundled(String name, byte[] data){
+        addBundled(name, data, ClassManager.hash(data));
+    }
+
+    /**
+     * Como addBundled(), con el hash ya conocido. No hace nada si la clase
+     * ya esta definida o pendiente con ese mismo bytecode.
+     */
+    public synchronized void addBundled(String name, byte[] data, String hash){
+        if (hash.equals(hashes.get(name))) return;
+        hashes.put(name, hash);
+        bundled.put(name, data);
+    }
+
+    /**
+     * Indica si la clase esta definida, o pendiente, con el bytecode de ese hash.
+     */
+    public boolean has(String name, String hash){
+        return hash.equals(hashes.get(name));
+    }
+
+    /**
+     * Devuelve el hash del bytecode de una clase de este loader, o null.
+     */
+    public String hashOf(String name){
+        return hashes.get(name);
+    }
+
+    /**
+     * Indica si alguna clase del manifiesto ya esta en este loader con otro
+     * bytecode.
+     */
+    public synchronized boolean conflicts(Map<String, String> manifest){
+        for (Map.Entry<String, String> e : manifest.entrySet()){
+            String h = hashes.get(e.getKey());
+            if (h != null && !h.equals(e.getValue())) return true;
+        }
+        return false;
+    }
+
+    private Class<?> define(String name, byte[] data)
+    throws ClassNotFoundException {
+	Class<?> c;
 	try {
 	    System.out.println("Intentando definir la Clase: " + name + " tamao: " + data.length);
   
-         
-            URL srcURL = new URL ("http", sourceHost.host.getHostAddress(), sourceHost.port, "/");
+            CodeSource codeSrc = null;
+            if (sourceHost != null && sourceHost.host != null){
+                URL srcURL = new URL ("http", sourceHost.host.getHostAddress(), sourceHost.port, "/");
             
-            //Error corregido, aadida variable Certificate para que el constructor funcione
-            CodeSource codeSrc = new CodeSource(srcURL, (java.security.cert.Certificate[]) null);
-            c = defineClass ("raf.agentes.Chat" , data, 0, data.length, codeSrc);
+                //Error corregido, aadida variable Certificate para que el constructor funcione
+                codeSrc = new CodeSource(srcURL, (java.security.cert.Certificate[]) null);
+            }
+            c = defineClass (name, data, 0, data.length, codeSrc);
         }
 	catch (java.net.MalformedURLException e) {
 	    System.out.println("Secure Class Loader: URL mal formada!");
@@ -111,6 +230,7 @@ public class RaClassLoader extends SecureClassLoader{
         
 	System.out.println("Clase definida con exito");
         classManager.addClass(name, c, data);
+        hashes.put(name, classManager.putCode(name, data));
 
         return c;
     }
@@ -0,0 +1,281 @@
+package raf.principal;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+
+/**
+ * Repositorio del codigo de los agentes de esta agencia (agentsPath).
+ *
+ * El camino puede tener varios directorios y ficheros .jar separados por
+ * File.pathSeparator. La primera vez que se usa se recorren todos, y los
+ * .jar que hay dentro de los directorios, y se guarda en un indice donde
+ * esta cada clase por su nombre completo. En los directorios el nombre se
+ * saca del propio fichero .class, de modo que no hace falta que sean la
+ * raiz de los paquetes. Los bytecodes se leen cuando se piden, con un
+ * mapeo en memoria en el caso de los ficheros.
+ */
+public class RaCodeRepository
+{
+    /**
+     * Donde esta una clase: un fichero .class o una entrada de un .jar.
+     */
+    static class Location{
+        File file;
+        ZipFile jar;
+        ZipEntry entry;
+
+        Location(File file){
+            this.file = file;
+        }
+
+        Location(ZipFile jar, ZipEntry entry){
+            this.jar = jar;
+            this.entry = entry;
+        }
+    } // Location
+
+    private String path;
+
+    /**
+     * Clases por su nombre completo; es null hasta que se recorre el camino.
+     */
+    private HashMap<String, Location> index;
+
+    /**
+     * @param path Directorios y ficheros .jar separados por File.pathSeparator.
+     */
+    public RaCodeRepository(String path){
+        this.path = (path == null) ? "" : path;
+    }
+
+    /**
+     * Recorre el camino la primera vez que se usa el repositorio.
+     */
+    private synchronized HashMap<String, Location> index(){
+        if (index != null) return index;
+        index = new HashMap<String, Location>();
+        StringTokenizer st = new StringTokenizer(path, File.pathSeparator);
+        while (st.hasMoreTokens()){
+            File f = new File(st.nextToken().trim());
+            if (f.isDirectory()) scanDirectory(f);
+            else if (f.isFile() && isJar(f)) scanJar(f);
+            else System.err.println ("! RaCodeRepository: no se encuentra " + f);
+        }
+        System.out.println ("RaCodeRepository: " + index.size() + " clases en " + path);
+        return index;
+    }
+
+    private static boolean isJar(File f){
+        String n = f.getName().toLowerCase();
+        return n.endsWith(".jar") || n.endsWith(".zip");
+    }
+
+    private void scanDirectory(File dir){
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files){
+            if (f.isDirectory()) scanDirectory(f);
+            else if (isJar(f)) scanJar(f);
+            else if (f.getName().endsWith(".class")){
+                try {
+                    add(className(read(f)), new Location(f));
+                }
+                catch (IOException e){
+                    System.err.println ("! RaCodeRepository: " + f + " no es un fichero .class valido: " + e);
+                }
+            }
+        }
+    }
+
+    private void scanJar(File f){
+        try {
+            ZipFile jar = new ZipFile(f);
+            Enumeration<? extends ZipEntry> entries = jar.entries();
+            while (entries.hasMoreElements()){
+                ZipEntry e = entries.nextElement();
+                String n = e.getName();
+                if (e.isDirectory() || !n.endsWith(".class") || n.startsWith("META-INF/")) continue;
+                add(n.substring(0, n.length() - 6).replace('/', '.'), new Location(jar, e));
+            }
+        }
+        catch (IOException e){
+            System.err.println ("! RaCodeRepository: No se puede leer " + f + ": " + e);
+        }
+    }
+
+    /**
+     * La primera aparicion de una clase en el camino es la que vale.
+     */
+    private void add(String name, Location location){
+        if (!index.containsKey(name)) index.put(name, location);
+    }
+
+    /**
+     * Indica si el repositorio tiene la clase.
+     */
+    public boolean contains(String name){
+        return index().containsKey(name);
+    }
+
+    /**
+     * Devuelve el bytecode de una clase por su nombre completo, o null si no
+     * esta en el repositorio.
+     */
+    public byte[] get(String name){
+        Location l = index().get(name);
+        if (l == null) return null;
+        try {
+            return (l.file != null) ? read(l.file) : read(l.jar, l.entry);
+        }
+        catch (IOException e){
+            System.err.println ("! RaCodeRepository: No se puede leer " + name + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Nombres de las clases del repositorio, sin las clases internas.
+     */
+    public List<String> getClassNames(){
+        ArrayList<String> names = new ArrayList<String>();
+        for (String n : index().keySet()) if (n.indexOf('$') < 0) names.add(n);
+        Collections.sort(names);
+        return names;
+    }
+
+    static byte[] read(File file) throws IOException{
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel ch = in.getChannel();
+            MappedByteBuffer mb = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            byte[] data = new byte[mb.remaining()];
+            mb.get(data);
+            return data;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    static byte[] read(ZipFile jar, ZipEntry entry) throws IOException{
+        DataInputStream in = new DataInputStream(jar.getInputStream(entry));
+        try {
+            long size = entry.getSize();
+            if (size >= 0){
+                byte[] data = new byte[(int) size];
+                in.readFully(data);
+                return data;
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) != -1) bos.write(buf, 0, n);
+            return bos.toByteArray();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Devuelve el nombre completo de la clase de un fichero .class, que se
+     * saca de su constant pool (this_class).
+     */
+    public static String className(byte[] data) throws IOException{
+        return parse(data, null);
+    }
+
+    /**
+     * Devuelve los nombres de las clases a las que hace referencia un
+     * fichero .class: las de su constant pool y las que aparecen en los
+     * descriptores y firmas de campos y metodos. Puede incluir la propia
+     * clase.
+     */
+    public static Set<String> referencedClasses(byte[] data) throws IOException{
+        LinkedHashSet<String> refs = new LinkedHashSet<String>();
+        parse(data, refs);
+        return refs;
+    }
+
+    /**
+     * Lee el constant pool de un fichero .class y devuelve el nombre de la
+     * clase. Si refs no es null anade las clases referenciadas.
+     */
+    private static String parse(byte[] data, Set<String> refs) throws IOException{
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if (in.readInt() != 0xCAFEBABE) throw new IOException("no es un fichero .class");
+        in.readUnsignedShort();     // minor
+        in.readUnsignedShort();     // major
+        int n = in.readUnsignedShort();
+        String[] utf8 = new String[n];
+        int[] classes = new int[n];
+        for (int i = 1; i < n; ++i){
+            int tag = in.readUnsignedByte();
+            switch (tag){
+                case 1:  utf8[i] = in.readUTF(); break;             // Utf8
+                case 7:                                             // Class
+                    classes[i] = in.readUnsignedShort();
+                    if (classes[i] <= 0 || classes[i] >= n) throw new IOException("constant pool no valido, clase " + i);
+                    break;
+                case 8: case 16: case 19: case 20:                  // String, MethodType, Module, Package
+                    in.skipBytes(2); break;
+                case 15: in.skipBytes(3); break;                    // MethodHandle
+                case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+                    in.skipBytes(4); break;
+                case 5: case 6:                                     // Long y Double ocupan dos entradas
+                    in.skipBytes(8); ++i; break;
+                default:
+                    throw new IOException("constant pool no valido, tag " + tag);
+            }
+        }
+        in.readUnsignedShort();     // access_flags
+        int thisClass = in.readUnsignedShort();
+        if (thisClass <= 0 || thisClass >= n || utf8[classes[thisClass]] == null)
+            throw new IOException("this_class no valido");
+
+        if (refs != null){
+            for (int i = 1; i < n; ++i){
+                if (classes[i] > 0 && utf8[classes[i]] != null){
+                    String c = utf8[classes[i]];
+                    if (c.startsWith("[")) descriptorClasses(c, refs);
+                    else refs.add(c.replace('/', '.'));
+                }
+                else if (utf8[i] != null && utf8[i].length() > 2){
+                    char c = utf8[i].charAt(0);
+                    if (c == '(' || c == 'L' || c == '[' || c == '<') descriptorClasses(utf8[i], refs);
+                }
+            }
+        }
+        return utf8[classes[thisClass]].replace('/', '.');
+    }
+
+    /**
+     * Anade las clases "Lpaquete/Clase;" de un descriptor o una firma.
+     */
+    private static void descriptorClasses(String d, Set<String> refs){
+        int i = 0;
+        while ((i = d.indexOf('L', i)) >= 0){
+            int end = i + 1;
+            while (end < d.length() && isNameChar(d.charAt(end))) ++end;
+            if (end < d.length() && end > i + 1 && (d.charAt(end) == ';' || d.charAt(end) == '<'))
+                refs.add(d.substring(i + 1, end).replace('/', '.'));
+            i = end;
+        }
+    }
+
+    private static boolean isNameChar(char c){
+        return Character.isJavaIdentifierPart(c) || c == '/';
+    }
+}
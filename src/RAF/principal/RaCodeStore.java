@@ -0,0 +1,260 @@
+package raf.principal;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+
+
+/**
+ * Almacen en disco del bytecode recibido de otras agencias, para que al
+ * reiniciar la agencia no haya que volver a pedirlo.
+ *
+ * Cada bytecode se guarda en un fichero "hash-clase.class" del directorio
+ * y se busca por el hash de su contenido: el nombre de una clase no basta,
+ * porque dos agencias pueden tener clases distintas con el mismo nombre,
+ * asi que solo se aprovecha con los hashes de un RA_MANIFEST. El
+ * directorio se recorre la primera vez que se usa, sin leer los ficheros,
+ * y cada bytecode se lee con un mapeo en memoria cuando se pide. Si los
+ * ficheros ocupan mas de budget bytes se borran los usados hace mas
+ * tiempo.
+ */
+public class RaCodeStore
+{
+    /**
+     * Bytecode guardado.
+     */
+    static class Entry{
+        String hash;
+        String name;
+        File file;
+        long size;
+
+        /**
+         * Ultima vez que se actualizo la fecha del fichero al usarlo.
+         */
+        long touched;
+
+        Entry(String hash, String name, File file){
+            this.hash = hash;
+            this.name = name;
+            this.file = file;
+            size = file.length();
+            touched = file.lastModified();
+        }
+    } // Entry
+
+    static final String SUFFIX = ".class";
+
+    /**
+     * Longitud del hash en hexadecimal (SHA-256).
+     */
+    static final int HASH_LENGTH = 64;
+
+    /**
+     * La fecha de un fichero, que conserva el orden de uso entre reinicios,
+     * se actualiza como mucho una vez en este intervalo en milisegundos.
+     */
+    static final long TOUCH_INTERVAL = 60000;
+
+    private File dir;
+
+    /**
+     * Bytes que pueden ocupar los ficheros, 0 sin limite.
+     */
+    private long budget;
+
+    private long used = 0;
+
+    /**
+     * Bytecodes por hash, del usado hace mas tiempo al ultimo. Es null
+     * hasta que se recorre el directorio.
+     */
+    private LinkedHashMap<String, Entry> entries;
+
+    private int hits = 0;
+    private int misses = 0;
+    private int evictions = 0;
+
+    /**
+     * @param dir Directorio del almacen; se crea si no existe.
+     * @param budget Bytes que pueden ocupar los ficheros, 0 sin limite.
+     */
+    public RaCodeStore(File dir, long budget) throws IOException{
+        this.dir = dir;
+        this.budget = budget;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("No se puede crear el directorio " + dir);
+    }
+
+    /**
+     * Recorre el directorio la primera vez que se usa el almacen.
+     */
+    private void load(){
+        if (entries != null) return;
+        entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+        File[] files = dir.listFiles();
+        if (files == null) files = new File[0];
+        Arrays.sort(files, new Comparator<File>(){
+            public int compare(File a, File b){
+                long x = a.lastModified(), y = b.lastModified();
+                return (x < y) ? -1 : (x == y ? 0 : 1);
+            }
+        });
+        for (File f : files){
+            String fn = f.getName();
+            if (fn.endsWith(".tmp")){
+                // un bytecode a medio escribir al pararse la agencia
+                f.delete();
+                continue;
+            }
+            if (!fn.endsWith(SUFFIX) || fn.length() <= HASH_LENGTH + 1 + SUFFIX.length()
+                || fn.charAt(HASH_LENGTH) != '-') continue;
+            String hash = fn.substring(0, HASH_LENGTH);
+            String name = fn.substring(HASH_LENGTH + 1, fn.length() - SUFFIX.length());
+            add(new Entry(hash, name, f));
+        }
+        System.out.println ("RaCodeStore: " + entries.size() + " clases en " + dir + " (" + used + " bytes)");
+        evict();
+    }
+
+    private void add(Entry e){
+        entries.put(e.hash, e);
+        used += e.size;
+    }
+
+    private void remove(Entry e){
+        entries.remove(e.hash);
+        used -= e.size;
+        e.file.delete();
+    }
+
+    /**
+     * Borra los bytecodes usados hace mas tiempo hasta bajar del limite.
+     * El ultimo guardado no se borra nunca.
+     */
+    private void evict(){
+        if (budget <= 0) return;
+        while (used > budget && entries.size() > 1){
+            remove(entries.values().iterator().next());
+            evictions++;
+        }
+    }
+
+    /**
+     * Indica si se tiene el bytecode con ese hash.
+     */
+    public synchronized boolean contains(String hash){
+        load();
+        return entries.containsKey(hash);
+    }
+
+    /**
+     * Devuelve el bytecode con ese hash, o null si no se tiene. Si el
+     * fichero no corresponde al hash se borra.
+     */
+    public byte[] get(String hash){
+        Entry e;
+        synchronized (this){
+            load();
+            e = entries.get(hash);
+            if (e == null){
+                misses++;
+                return null;
+            }
+        }
+        byte[] data;
+        try {
+            data = map(e.file);
+        }
+        catch (IOException ex){
+            data = null;
+        }
+        synchronized (this){
+            if (data == null || !ClassManager.hash(data).equals(hash)){
+                System.err.println ("! RaCodeStore: fichero no valido " + e.file);
+                if (entries.get(hash) == e) remove(e);
+                misses++;
+                return null;
+            }
+            hits++;
+            long now = System.currentTimeMillis();
+            if (now - e.touched > TOUCH_INTERVAL){
+                e.touched = now;
+                e.file.setLastModified(now);
+            }
+        }
+        return data;
+    }
+
+    private static byte[] map(File file) throws IOException{
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel ch = in.getChannel();
+            MappedByteBuffer mb = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            byte[] data = new byte[mb.remaining()];
+            mb.get(data);
+            return data;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Guarda el bytecode de una clase con su hash, si no se tenia. Se
+     * escribe primero en un fichero temporal para no dejar nunca un
+     * bytecode a medio escribir.
+     */
+    public void put(String name, String hash, byte[] data){
+        synchronized (this){
+            load();
+            if (entries.containsKey(hash)) return;
+        }
+        File file = new File(dir, hash + "-" + name + SUFFIX);
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(hash, ".tmp", dir);
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data);
+            }
+            finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) throw new IOException("no se puede renombrar " + tmp);
+        }
+        catch (IOException e){
+            System.err.println ("! RaCodeStore: No se puede guardar " + name + ": " + e);
+            if (tmp != null) tmp.delete();
+            return;
+        }
+        synchronized (this){
+            if (entries.containsKey(hash)) return;
+            add(new Entry(hash, name, file));
+            evict();
+        }
+    }
+
+    /**
+     * Numero de clases y bytes guardados.
+     */
+    public synchronized int size(){
+        load();
+        return entries.size();
+    }
+
+    public synchronized long bytes(){
+        load();
+        return used;
+    }
+
+    public String toString(){
+        synchronized (this){
+            return "RaCodeStore " + dir + ": " + ((entries == null) ? 0 : entries.size()) + " clases, "
+                + used + " bytes, aciertos=" + hits + " fallos=" + misses + " descartes=" + evictions;
+        }
+    }
+}
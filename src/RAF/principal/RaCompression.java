@@ -0,0 +1,265 @@
+package raf.principal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import raf.messages.MessagesEv;
+
+
+/**
+ * Compresion del campo binary de los mensajes que llevan agentes, clases o
+ * la lista de agencias (version 3 del formato).
+ *
+ * El binary se comprime con Deflater, con un diccionario inicial con los
+ * nombres y cadenas que aparecen en casi todos los ficheros .class y
+ * agentes serializados, de modo que tambien se reducen los mensajes
+ * pequenios. El diccionario va identificado en el propio stream (su
+ * Adler-32), asi que el destino detecta si no es el suyo. Solo se comprimen
+ * los binary de threshold bytes o mas, y se envian sin comprimir si no se
+ * reducen.
+ *
+ * <pre>
+ * varint  longitud original
+ * byte[]  stream zlib con el diccionario
+ * </pre>
+ */
+public class RaCompression
+{
+    /**
+     * Cadenas frecuentes en los ficheros .class y en la serializacion de
+     * los agentes. Deflater encuentra antes las del final, asi que van al
+     * final las mas frecuentes. Cambiar el diccionario lo hace incompatible
+     * con el de las agencias anteriores.
+     */
+    private static final String[] COMMON = {
+        "java/lang/Throwable", "java/lang/Exception", "java/lang/InterruptedException",
+        "java/lang/Thread", "sleep", "(J)V", "java/lang/Integer", "java/lang/Long",
+        "valueOf", "intValue", "java/util/Hashtable", "java/util/Vector", "java/util/HashMap",
+        "java/util/ArrayList", "java/util/List", "java/util/Iterator", "hasNext", "()Z", "next",
+        "()Ljava/lang/Object;", "add", "(Ljava/lang/Object;)Z", "get", "(I)Ljava/lang/Object;",
+        "put", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", "size", "()I",
+        "java/io/Serializable", "serialVersionUID", "J", "I", "Z",
+        "java/lang/System", "out", "Ljava/io/PrintStream;", "java/io/PrintStream", "println",
+        "(Ljava/lang/String;)V", "java/lang/StringBuilder", "append",
+        "(Ljava/lang/String;)Ljava/lang/StringBuilder;", "(I)Ljava/lang/StringBuilder;",
+        "toString", "()Ljava/lang/String;", "Ljava/lang/String;", "Ljava/lang/Object;",
+        "raf/principal/RaAddress", "Lraf/principal/RaAddress;", "raf/principal/RaMessage",
+        "Lraf/principal/RaMessage;", "handleMessage", "(Lraf/principal/RaMessage;)V",
+        "onArrival", "onDispatch", "onCreate", "onDestroy", "getName", "run",
+        "raf/principal/Ra", "Lraf/principal/Ra;", "java/lang/String", "java/lang/Object",
+        "Code", "LineNumberTable", "LocalVariableTable", "StackMapTable", "InnerClasses",
+        "Exceptions", "Signature", "ConstantValue", "SourceFile", "this", "<clinit>", "<init>", "()V",
+        "java.lang.Number", "java.lang.Integer", "java.lang.Long", "java.util.Date",
+        "java.util.Vector", "elementCount", "capacityIncrement", "[Ljava.lang.Object;",
+        "java.util.Hashtable", "java.util.HashMap", "loadFactor", "threshold",
+        "java.util.ArrayList", "elementData", "[B", "java.lang.String",
+        "raf.principal.RaAddress", "host", "Ljava/net/InetAddress;", "port",
+        "raf.principal.RaSerializer/1", "raf.principal.Ra", "name", "state"
+    };
+
+    /**
+     * Diccionario inicial de los streams zlib.
+     */
+    static final byte[] DICTIONARY = dictionary();
+
+    /**
+     * Identificador del diccionario en los streams zlib.
+     */
+    static final long DICTIONARY_ADLER = adler(DICTIONARY);
+
+    private static byte[] dictionary(){
+        Charset latin1 = Charset.forName("ISO-8859-1");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        // cabeceras de un fichero .class y de un stream de objetos
+        byte[] magic = { (byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE, 0, 0, 0, 52,
+                         (byte) 0xAC, (byte) 0xED, 0, 5, 0x73, 0x72 };
+        bos.write(magic, 0, magic.length);
+        for (String s : COMMON){
+            byte[] b = s.getBytes(latin1);
+            // como en el constant pool: tag Utf8 y longitud
+            bos.write(1);
+            bos.write(b.length >>> 8);
+            bos.write(b.length);
+            bos.write(b, 0, b.length);
+        }
+        return bos.toByteArray();
+    }
+
+    private static long adler(byte[] data){
+        Adler32 a = new Adler32();
+        a.update(data, 0, data.length);
+        return a.getValue();
+    }
+
+    /**
+     * Si se comprimen los mensajes que salen, y tamanio minimo del binary
+     * para comprimirlo.
+     */
+    static volatile boolean enabled = true;
+    static volatile int threshold = 512;
+
+    private static final int MAX_POOLED = 16;
+
+    private static ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+    private static ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+
+    /**
+     * Mensajes comprimidos y sus bytes antes y despues, mensajes que no se
+     * han comprimido porque no se reducian y mensajes descomprimidos.
+     */
+    private static AtomicLong compressed = new AtomicLong();
+    private static AtomicLong rawBytes = new AtomicLong();
+    private static AtomicLong compressedBytes = new AtomicLong();
+    private static AtomicLong incompressible = new AtomicLong();
+    private static AtomicLong inflated = new AtomicLong();
+
+    /**
+     * Indica si se comprime el binary de los mensajes de ese tipo: los que
+     * llevan agentes, diferencias o firmas de agentes, bytecode o la lista
+     * de agencias.
+     */
+    static boolean applies(String kind){
+        return MessagesEv.RA.equals(kind) || MessagesEv.CLASS.equals(kind) || MessagesEv.AGENS.equals(kind)
+            || MessagesEv.RA_GROUP.equals(kind) || MessagesEv.RA_BUNDLE.equals(kind)
+            || MessagesEv.RA_MANIFEST.equals(kind) || MessagesEv.RA_STREAM.equals(kind)
+            || MessagesEv.CODE.equals(kind) || MessagesEv.CLASSES.equals(kind)
+            || MessagesEv.RA_DELTA.equals(kind) || MessagesEv.SNAPSHOT.equals(kind);
+    }
+
+    /**
+     * Devuelve el binary de un mensaje comprimido, o null si no hay que
+     * comprimirlo o no se reduce.
+     */
+    static byte[] compress(RaMessage msg){
+        if (!enabled || msg.binary == null || msg.binary.length < Math.max(threshold, 16) || !applies(msg.kind))
+            return null;
+        byte[] data = msg.binary;
+
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try{
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(data, 0, data.length);
+            deflater.finish();
+            // solo interesa si se reduce: no se escribe mas que el original
+            byte[] out = new byte[data.length];
+            int pos = 0;
+            int v = data.length;
+            while ((v & ~0x7F) != 0){
+                out[pos++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out[pos++] = (byte) v;
+            while (!deflater.finished() && pos < out.length) pos += deflater.deflate(out, pos, out.length - pos);
+            if (!deflater.finished()){
+                incompressible.incrementAndGet();
+                return null;
+            }
+            compressed.incrementAndGet();
+            rawBytes.addAndGet(data.length);
+            compressedBytes.addAndGet(pos);
+            byte[] result = new byte[pos];
+            System.arraycopy(out, 0, result, 0, pos);
+            return result;
+        }
+        finally{
+            deflater.reset();
+            if (deflaters.size() < MAX_POOLED) deflaters.add(deflater);
+            else deflater.end();
+        }
+    }
+
+    /**
+     * Descomprime un binary escrito con compress().
+     */
+    static byte[] decompress(byte[] buf, int off, int len) throws IOException{
+        int end = off + len;
+        int length = 0;
+        for (int shift = 0; ; shift += 7){
+            if (off >= end || shift > 28) throw new StreamCorruptedException("Binario comprimido mal formado");
+            int b = buf[off++] & 0xFF;
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+        }
+        if (length < 0 || length > RaWire.MAX_FRAME)
+            throw new StreamCorruptedException("Longitud descomprimida no valida: " + length);
+
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) inflater = new Inflater();
+        try{
+            byte[] data = new byte[length];
+            inflater.setInput(buf, off, end - off);
+            int pos = 0;
+            while (pos < length){
+                int n = inflater.inflate(data, pos, length - pos);
+                if (n == 0){
+                    if (inflater.needsDictionary()){
+                        if (inflater.getAdler() != DICTIONARY_ADLER)
+                            throw new StreamCorruptedException("Diccionario de compresion desconocido");
+                        inflater.setDictionary(DICTIONARY);
+                    }
+                    else if (inflater.finished() || inflater.needsInput()) break;
+                }
+                pos += n;
+            }
+            if (pos != length || !inflater.finished())
+                throw new StreamCorruptedException("Binario comprimido truncado");
+            inflated.incrementAndGet();
+            return data;
+        }
+        catch (DataFormatException e){
+            throw new StreamCorruptedException("Binario comprimido no valido: " + e.getMessage());
+        }
+        finally{
+            inflater.reset();
+            if (inflaters.size() < MAX_POOLED) inflaters.add(inflater);
+            else inflater.end();
+        }
+    }
+
+    /**
+     * Establece si se comprimen los mensajes que salen. Los que llegan
+     * comprimidos se descomprimen siempre.
+     */
+    public static void setEnabled(boolean enabled){
+        RaCompression.enabled = enabled;
+    }
+
+    /**
+     * Establece el tamanio minimo en bytes del binary para comprimirlo.
+     */
+    public static void setThreshold(int threshold){
+        RaCompression.threshold = threshold;
+    }
+
+    public static long getRawBytes(){
+        return rawBytes.get();
+    }
+
+    public static long getCompressedBytes(){
+        return compressedBytes.get();
+    }
+
+    /**
+     * Proporcion entre los bytes comprimidos y los originales de los
+     * mensajes comprimidos, 1 si no se ha comprimido ninguno.
+     */
+    public static double getRatio(){
+        long raw = rawBytes.get();
+        return (raw == 0) ? 1.0 : (double) compressedBytes.get() / raw;
+    }
+
+    public static String stats(){
+        return "RaCompression: " + compressed.get() + " mensajes comprimidos, " + rawBytes.get() + " -> "
+            + compressedBytes.get() + " bytes (" + Math.round(getRatio() * 1000) / 10.0 + "%), "
+            + incompressible.get() + " sin reducir, " + inflated.get() + " descomprimidos";
+    }
+}
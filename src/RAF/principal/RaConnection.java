@@ -0,0 +1,358 @@
+package raf.principal;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import raf.messages.MessagesEv;
+
+
+/**
+ * Conexion persistente hacia otra agencia (o hacia el RaModel).
+ * Las conexiones son creadas y reutilizadas por el RaConnectionPool,
+ * de forma que varios mensajes viajan por el mismo socket.
+ *
+ * Los mensajes enviados con sendAsync() llevan un id y quedan pendientes
+ * hasta que el otro extremo contesta con un ACK, un ERROR o una respuesta
+ * con ese id en replyTo. Un thread ReplyReader lee esas respuestas, de modo
+ * que puede haber muchos envios en vuelo por la misma conexion.
+ */
+public class RaConnection
+{
+    /**
+     * Lee las respuestas del otro extremo y completa los envios pendientes.
+     */
+    class ReplyReader extends Thread{
+
+        public ReplyReader(){
+            super("RaConnection.ReplyReader " + key);
+            setDaemon(true);
+        }
+
+        public void run(){
+            IOException cause = null;
+            try{
+                while (true){
+                    RaMessage reply = receive();
+                    if (reply.replyTo == 0) continue;
+                    CompletableFuture<RaMessage> future = pending.remove(reply.replyTo);
+                    if (future == null) continue;
+                    if (MessagesEv.ERROR.equals(reply.kind))
+                        future.completeExceptionally(new IOException(reply.content));
+                    else
+                        future.complete(reply);
+                }
+            }
+            catch (IOException e){
+                cause = e;
+            }
+            catch (ClassNotFoundException e){
+                cause = new IOException(e.toString());
+            }
+            closed = true;
+            failPending(cause);
+        }
+    } // ReplyReader
+
+    /**
+     * Pasa el resultado de un envio al futuro de quien lo pidio.
+     */
+    static class Relay implements BiConsumer<RaMessage, Throwable>{
+
+        private CompletableFuture<RaMessage> target;
+
+        Relay(CompletableFuture<RaMessage> target){
+            this.target = target;
+        }
+
+        public void accept(RaMessage reply, Throwable error){
+            if (error != null) target.completeExceptionally(error);
+            else target.complete(reply);
+        }
+    } // Relay
+
+
+    /**
+     * Generador de los ids de los mensajes enviados con sendAsync().
+     */
+    private static AtomicLong ids = new AtomicLong();
+
+    /**
+     * Clave del destino (host:puerto) en el pool.
+     */
+    final String key;
+
+    private Socket socket;
+
+    private DataOutputStream outStream;
+
+    private DataInputStream inStream = null;
+
+    /**
+     * Momento en milisegundos en el que la conexion se uso por ultima vez.
+     */
+    volatile long lastUsed;
+
+    /**
+     * Version del formato acordada con el otro extremo.
+     */
+    int version = 0;
+
+    /**
+     * Tiempo maximo en milisegundos de espera de la respuesta al HELLO.
+     */
+    static final int HELLO_TIMEOUT = 5000;
+
+    /**
+     * Envios que esperan confirmacion, por id.
+     */
+    private ConcurrentHashMap<Long, CompletableFuture<RaMessage>> pending =
+        new ConcurrentHashMap<Long, CompletableFuture<RaMessage>>();
+
+    private ReplyReader replyReader = null;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Abre una nueva conexion con el destino indicado.
+     *
+     * @param address Direccion de la agencia destino.
+     * @param connectTimeout Tiempo maximo en milisegundos para establecer la conexion.
+     */
+    RaConnection(String key, RaAddress address, int connectTimeout) throws IOException{
+        this.key = key;
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        socket.connect(new InetSocketAddress(address.host, address.port), connectTimeout);
+        outStream = new DataOutputStream(
+                            new BufferedOutputStream(
+                                socket.getOutputStream()));
+        lastUsed = System.currentTimeMillis();
+        handshake(address);
+    }
+
+    /**
+     * Acuerda con el otro extremo la version del formato. Si no contesta
+     * al HELLO se sigue usando la serializacion Java (version 0).
+     */
+    private void handshake(RaAddress address) throws IOException{
+        try{
+            send(RaWire.hello(null, address));
+            socket.setSoTimeout(HELLO_TIMEOUT);
+            try{
+                RaMessage reply = receive();
+                if (MessagesEv.HELLO.equals(reply.kind)) version = RaWire.negotiate(reply);
+            }
+            finally{
+                socket.setSoTimeout(0);
+            }
+        }
+        catch (SocketTimeoutException e){
+            System.err.println("RaConnection: " + key + " no ha contestado al HELLO");
+            version = 0;
+        }
+        catch (ClassNotFoundException e){
+            version = 0;
+        }
+    }
+
+    /**
+     * Indica si el otro extremo confirma los mensajes. Los ids solo
+     * viajan a partir de la version 2 del formato.
+     */
+    boolean supportsAck(){
+        return version >= 2;
+    }
+
+    /**
+     * Escribe un mensaje en la conexion como una trama.
+     */
+    public void send(RaMessage msg) throws IOException{
+        RaWire.writeFrame(outStream, msg, version);
+        outStream.flush();
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Escribe varios mensajes al mismo destino en una sola trama BATCH.
+     */
+    public void send(List<RaMessage> messages) throws IOException{
+        RaWire.writeBatchFrame(outStream, messages, version);
+        outStream.flush();
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Escribe un mensaje y devuelve un futuro que se completa con la
+     * confirmacion (o la respuesta) del otro extremo. Si el otro extremo no
+     * confirma mensajes el futuro se completa, con null, al escribirlo.
+     */
+    public CompletableFuture<RaMessage> sendAsync(RaMessage msg) throws IOException{
+        CompletableFuture<RaMessage> future = expect(msg);
+        try{
+            send(msg);
+        }
+        catch (IOException e){
+            pending.remove(msg.id);
+            throw e;
+        }
+        if (!supportsAck()) future.complete(null);
+        return future;
+    }
+
+    /**
+     * Escribe varios mensajes en una trama BATCH. Los mensajes que tienen un
+     * futuro en la misma posicion de futures esperan confirmacion.
+     */
+    public void sendAsync(List<RaMessage> messages, List<CompletableFuture<RaMessage>> futures)
+    throws IOException{
+        for (int i = 0; i < messages.size(); ++i){
+            CompletableFuture<RaMessage> future = futures.get(i);
+            if (future != null) expect(messages.get(i)).whenComplete(new Relay(future));
+        }
+        try{
+            send(messages);
+        }
+        catch (IOException e){
+            for (RaMessage msg : messages) if (msg.id != 0) pending.remove(msg.id);
+            throw e;
+        }
+        if (!supportsAck()){
+            for (CompletableFuture<RaMessage> future : futures) if (future != null) future.complete(null);
+        }
+    }
+
+    /**
+     * Asigna un id al mensaje y registra el futuro que espera su confirmacion.
+     */
+    private CompletableFuture<RaMessage> expect(RaMessage msg) throws IOException{
+        if (closed) throw new EOFException("Conexion cerrada: " + key);
+        CompletableFuture<RaMessage> future = new CompletableFuture<RaMessage>();
+        if (supportsAck()){
+            msg.id = ids.incrementAndGet();
+            pending.put(msg.id, future);
+            startReplyReader();
+        }
+        return future;
+    }
+
+    private synchronized void startReplyReader(){
+        if (replyReader != null) return;
+        replyReader = new ReplyReader();
+        replyReader.start();
+    }
+
+    /**
+     * Hace fallar los envios pendientes al cerrarse la conexion.
+     */
+    private void failPending(IOException cause){
+        if (cause == null) cause = new EOFException("Conexion cerrada: " + key);
+        for (Long id : pending.keySet()){
+            CompletableFuture<RaMessage> future = pending.remove(id);
+            if (future != null) future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Lee el siguiente mensaje de la conexion (la respuesta a una peticion).
+     */
+    public RaMessage receive() throws IOException, ClassNotFoundException{
+        if (inStream == null){
+            inStream = new DataInputStream(
+                            new BufferedInputStream(
+                                socket.getInputStream()));
+        }
+        RaMessage msg = RaWire.readFrame(inStream);
+        lastUsed = System.currentTimeMillis();
+        return msg;
+    }
+
+    /**
+     * Comprueba que el socket sigue abierto y que el otro extremo no lo ha cerrado.
+     * Si la conexion lleva parada mas de validateAfter milisegundos se hace una
+     * lectura de prueba con un timeout muy corto: el otro extremo nunca envia
+     * datos sin que se le pidan, asi que solo un timeout indica que sigue vivo.
+     * Si la conexion tiene un ReplyReader es el quien detecta el cierre.
+     */
+    boolean isHealthy(long validateAfter){
+        if (closed) return false;
+        if (replyReader != null) return true;
+        if (socket.isClosed() || !socket.isConnected()
+                || socket.isInputShutdown() || socket.isOutputShutdown()) return false;
+        if (System.currentTimeMillis() - lastUsed < validateAfter) return true;
+
+        int timeout = 0;
+        try{
+            InputStream in = socket.getInputStream();
+            if (in.available() > 0) return false;
+            timeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            try{
+                in.read();
+                return false;
+            }
+            catch (SocketTimeoutException e){
+                return true;
+            }
+            finally{
+                socket.setSoTimeout(timeout);
+            }
+        }
+        catch (IOException e){
+            return false;
+        }
+    }
+
+    /**
+     * Cierra la conexion en cuanto no quede ningun envio esperando
+     * confirmacion. Hasta entonces el ReplyReader sigue leyendo las
+     * respuestas. La conexion ya no debe usarse para enviar.
+     */
+    void closeWhenDrained(){
+        BiConsumer<RaMessage, Throwable> drain = new BiConsumer<RaMessage, Throwable>(){
+            public void accept(RaMessage reply, Throwable error){
+                closeIfDrained();
+            }
+        };
+        for (CompletableFuture<RaMessage> future : pending.values()) future.whenComplete(drain);
+        closeIfDrained();
+    }
+
+    private void closeIfDrained(){
+        if (closed) return;
+        for (CompletableFuture<RaMessage> future : pending.values()) if (!future.isDone()) return;
+        close();
+    }
+
+    /**
+     * Cierra la conexion. Los envios pendientes fallan.
+     */
+    public void close(){
+        closed = true;
+        try{
+            if (inStream != null) inStream.close();
+            outStream.close();
+        }
+        catch (IOException e){
+            // el socket ya estaba cerrado
+        }
+        try{
+            socket.close();
+        }
+        catch (IOException e){
+            System.err.println("! RaConnection.close: " + e);
+        }
+        failPending(null);
+    }
+
+    public String toString(){
+        return "RaConnection " + key;
+    }
+}
@@ -0,0 +1,402 @@
+package raf.principal;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Pool de conexiones persistentes entre agencias.
+ * Las conexiones se agrupan por destino (host:puerto) y se reutilizan
+ * entre mensajes, en lugar de abrir un socket nuevo para cada mensaje.
+ * Un unico thread Evictor cierra las conexiones que llevan demasiado
+ * tiempo sin usarse.
+ */
+public class RaConnectionPool
+{
+    /**
+     * Thread que cierra periodicamente las conexiones paradas.
+     */
+    class Evictor extends Thread{
+
+        public Evictor(){
+            super("RaConnectionPool.Evictor");
+            setDaemon(true);
+        }
+
+        public void run(){
+            while (true){
+                try {
+                    Thread.sleep(evictionInterval);
+                }
+                catch (InterruptedException e){
+                    System.err.println ("El thread Evictor ha sido interrumpido!");
+                    return;
+                }
+                evictIdle();
+            }
+        }
+    }
+
+    /**
+     * Pool compartido por todas las agencias de la maquina virtual.
+     */
+    private static RaConnectionPool defaultPool = null;
+
+    /**
+     * Conexiones libres por destino. La primera de cada lista es la
+     * usada mas recientemente.
+     */
+    private Hashtable<String, LinkedList<RaConnection>> idle;
+
+    /**
+     * Tiempo en milisegundos tras el cual se cierra una conexion libre.
+     */
+    long idleTimeout = 60000;
+
+    /**
+     * Cada cuanto tiempo en milisegundos se buscan conexiones paradas.
+     */
+    long evictionInterval = 15000;
+
+    /**
+     * Las conexiones que llevan mas de este tiempo sin usarse se
+     * comprueban antes de reutilizarlas.
+     */
+    long validateAfter = 2000;
+
+    /**
+     * Numero maximo de conexiones libres por destino.
+     */
+    int maxIdle = 4;
+
+    /**
+     * Tiempo maximo en milisegundos para establecer una conexion.
+     */
+    int connectTimeout = 10000;
+
+    /**
+     * Tiempo maximo en milisegundos de espera de la confirmacion de un envio.
+     */
+    long ackTimeout = 30000;
+
+    private Evictor evictor = null;
+
+    /**
+     * Thread que hace fallar los envios que no se confirman a tiempo.
+     */
+    private static ScheduledExecutorService timeouts = null;
+
+
+    public RaConnectionPool(){
+        idle = new Hashtable<String, LinkedList<RaConnection>>();
+    }
+
+    /**
+     * Devuelve el pool compartido, creandolo si es necesario.
+     */
+    public static synchronized RaConnectionPool getDefault(){
+        if (defaultPool == null) defaultPool = new RaConnectionPool();
+        return defaultPool;
+    }
+
+    /**
+     * Clave de un destino en el pool.
+     */
+    static String keyOf(RaAddress address){
+        return address.host.getHostAddress() + ":" + address.port;
+    }
+
+    /**
+     * Devuelve una conexion sana hacia el destino, reutilizando una libre
+     * si existe. La conexion debe devolverse con release() o invalidate().
+     */
+    public RaConnection borrow(RaAddress address) throws IOException{
+        String key = keyOf(address);
+        while (true){
+            RaConnection connection = null;
+            synchronized (this){
+                LinkedList<RaConnection> list = idle.get(key);
+                if (list != null){
+                    connection = list.poll();
+                    if (list.isEmpty()) idle.remove(key);
+                }
+            }
+            if (connection == null) break;
+            if (connection.isHealthy(validateAfter)) return connection;
+            connection.close();
+        }
+        startEvictor();
+        return new RaConnection(key, address, connectTimeout);
+    }
+
+    /**
+     * Devuelve al pool una conexion que se ha usado sin errores. Si ya hay
+     * maxIdle libres la conexion se cierra, pero no antes de que lleguen
+     * las confirmaciones que espera.
+     */
+    public void release(RaConnection connection){
+        synchronized (this){
+            LinkedList<RaConnection> list = idle.get(connection.key);
+            if (list == null){
+                list = new LinkedList<RaConnection>();
+                idle.put(connection.key, list);
+            }
+            if (list.size() < maxIdle){
+                list.addFirst(connection);
+                return;
+            }
+        }
+        connection.closeWhenDrained();
+    }
+
+    /**
+     * Cierra una conexion que ha fallado para que no vuelva a usarse.
+     */
+    public void invalidate(RaConnection connection){
+        connection.close();
+    }
+
+    /**
+     * Envia un mensaje sin esperar respuesta. Si la conexion reutilizada
+     * estaba rota se reintenta una vez con una conexion nueva.
+     */
+    public void send(RaMessage msg) throws IOException{
+        for (int attempt = 0; ; ++attempt){
+            RaConnection connection = borrow(msg.recipient);
+            try {
+                connection.send(msg);
+                release(connection);
+                return;
+            }
+            catch (IOException e){
+                invalidate(connection);
+                if (attempt > 0) throw e;
+            }
+        }
+    }
+
+    /**
+     * Envia varios mensajes al mismo destino en una sola trama BATCH.
+     */
+    public void send(List<RaMessage> messages) throws IOException{
+        RaAddress recipient = messages.get(0).recipient;
+        for (int attempt = 0; ; ++attempt){
+            RaConnection connection = borrow(recipient);
+            try {
+                connection.send(messages);
+                release(connection);
+                return;
+            }
+            catch (IOException e){
+                invalidate(connection);
+                if (attempt > 0) throw e;
+            }
+        }
+    }
+
+    /**
+     * Envia un mensaje sin esperar a la confirmacion. La conexion vuelve al
+     * pool en cuanto se escribe el mensaje, de modo que otros envios pueden
+     * usarla mientras tanto. El futuro se completa con la confirmacion del
+     * destino, o falla si el destino contesta ERROR, si se cierra la conexion
+     * o si pasan ackTimeout milisegundos sin respuesta.
+     */
+    public CompletableFuture<RaMessage> sendAsync(RaMessage msg) throws IOException{
+        for (int attempt = 0; ; ++attempt){
+            RaConnection connection = borrow(msg.recipient);
+            try {
+                CompletableFuture<RaMessage> future = connection.sendAsync(msg);
+                release(connection);
+                return withTimeout(future);
+            }
+            catch (IOException e){
+                invalidate(connection);
+                if (attempt > 0) throw e;
+            }
+        }
+    }
+
+    /**
+     * Envia varios mensajes en una trama BATCH; los que tienen futuro en
+     * futures esperan confirmacion igual que con sendAsync().
+     */
+    public void sendAsync(List<RaMessage> messages, List<CompletableFuture<RaMessage>> futures)
+    throws IOException{
+        for (CompletableFuture<RaMessage> future : futures) if (future != null) withTimeout(future);
+        RaAddress recipient = messages.get(0).recipient;
+        for (int attempt = 0; ; ++attempt){
+            RaConnection connection = borrow(recipient);
+            try {
+                connection.sendAsync(messages, futures);
+                release(connection);
+                return;
+            }
+            catch (IOException e){
+                invalidate(connection);
+                if (attempt > 0) throw e;
+            }
+        }
+    }
+
+    /**
+     * Hace fallar el futuro si no se completa en ackTimeout milisegundos.
+     */
+    CompletableFuture<RaMessage> withTimeout(final CompletableFuture<RaMessage> future){
+        if (future.isDone() || ackTimeout <= 0) return future;
+        timeouts().schedule(new Runnable(){
+            public void run(){
+                future.completeExceptionally(new TimeoutException("Sin confirmacion en " + ackTimeout + " ms"));
+            }
+        }, ackTimeout, TimeUnit.MILLISECONDS);
+        return future;
+    }
+
+    private static synchronized ScheduledExecutorService timeouts(){
+        if (timeouts == null){
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory(){
+                public Thread newThread(Runnable r){
+                    Thread thread = new Thread(r, "RaConnectionPool.Timeouts");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            timeouts = executor;
+        }
+        return timeouts;
+    }
+
+    /**
+     * Envia una peticion y espera la respuesta. Si el destino confirma
+     * mensajes la respuesta se recibe como cualquier otra confirmacion, sin
+     * bloquear la conexion; si no, se lee de la misma conexion.
+     */
+    public RaMessage request(RaMessage msg) throws IOException, ClassNotFoundException{
+        RaConnection connection = borrow(msg.recipient);
+        if (connection.supportsAck()){
+            CompletableFuture<RaMessage> future;
+            try {
+                future = connection.sendAsync(msg);
+                release(connection);
+            }
+            catch (IOException e){
+                invalidate(connection);
+                throw e;
+            }
+            return await(future);
+        }
+        try {
+            connection.send(msg);
+            RaMessage reply = connection.receive();
+            release(connection);
+            return reply;
+        }
+        catch (IOException e){
+            invalidate(connection);
+            throw e;
+        }
+        catch (ClassNotFoundException e){
+            invalidate(connection);
+            throw e;
+        }
+    }
+
+    /**
+     * Espera como mucho ackTimeout milisegundos a que se complete un envio.
+     */
+    RaMessage await(CompletableFuture<RaMessage> future) throws IOException{
+        try {
+            if (ackTimeout <= 0) return future.get();
+            return future.get(ackTimeout, TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException e){
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof TimeoutException) throw new IOException(cause.getMessage());
+            throw new IOException(cause.toString());
+        }
+        catch (TimeoutException e){
+            throw new IOException("Sin respuesta en " + ackTimeout + " ms");
+        }
+        catch (InterruptedException e){
+            throw new InterruptedIOException(e.toString());
+        }
+    }
+
+    /**
+     * Cierra las conexiones libres que llevan mas de idleTimeout sin usarse.
+     */
+    public void evictIdle(){
+        long now = System.currentTimeMillis();
+        LinkedList<RaConnection> expired = new LinkedList<RaConnection>();
+        synchronized (this){
+            for (Iterator<LinkedList<RaConnection>> i = idle.values().iterator(); i.hasNext();){
+                LinkedList<RaConnection> list = i.next();
+                for (Iterator<RaConnection> j = list.iterator(); j.hasNext();){
+                    RaConnection connection = j.next();
+                    if (now - connection.lastUsed > idleTimeout){
+                        j.remove();
+                        expired.add(connection);
+                    }
+                }
+                if (list.isEmpty()) i.remove();
+            }
+        }
+        for (RaConnection connection : expired) connection.closeWhenDrained();
+    }
+
+    /**
+     * Cierra todas las conexiones libres.
+     */
+    public void closeAll(){
+        LinkedList<RaConnection> all = new LinkedList<RaConnection>();
+        synchronized (this){
+            for (Enumeration<LinkedList<RaConnection>> e = idle.elements(); e.hasMoreElements();){
+                all.addAll(e.nextElement());
+            }
+            idle.clear();
+        }
+        for (RaConnection connection : all) connection.close();
+    }
+
+    /**
+     * Establece el tiempo en milisegundos tras el cual se cierra una conexion libre.
+     */
+    public void setIdleTimeout(long idleTimeout){
+        this.idleTimeout = idleTimeout;
+        evictionInterval = Math.max(1000, idleTimeout / 4);
+    }
+
+    /**
+     * Establece el numero maximo de conexiones libres por destino.
+     */
+    public void setMaxIdle(int maxIdle){
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Establece el tiempo maximo en milisegundos de espera de una confirmacion.
+     * Con 0 se espera indefinidamente.
+     */
+    public void setAckTimeout(long ackTimeout){
+        this.ackTimeout = ackTimeout;
+    }
+
+    private synchronized void startEvictor(){
+        if (evictor != null) return;
+        evictor = new Evictor();
+        evictor.start();
+    }
+}
@@ -0,0 +1,291 @@
+package raf.principal;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+/**
+ * Diferencias entre dos versiones de un agente serializado, para enviar a
+ * una agencia solo lo que ha cambiado desde la ultima vez que el agente
+ * salio de ella.
+ *
+ * Como en rsync, la agencia que tiene la version base no la envia: envia
+ * su firma, un checksum rodante y un hash de cada bloque. El emisor busca
+ * esos bloques en cualquier posicion del agente actual, de modo que se
+ * encuentran aunque los datos se hayan desplazado, y envia las referencias
+ * a los bloques y los bytes que no estan en la base.
+ *
+ * <pre>
+ * firma:       int tamanio de bloque, int n, n veces (int checksum, long hash)
+ * diferencias: operaciones hasta un 0
+ *              1 varint bloque, varint n   copia n bloques de la base
+ *              2 varint n, n bytes         bytes nuevos
+ * </pre>
+ */
+public class RaDelta
+{
+    static final int END = 0;
+    static final int COPY = 1;
+    static final int LITERAL = 2;
+
+    /**
+     * Texto de los errores por no tener la version base, o por no coincidir
+     * el resultado; el emisor envia entonces el agente entero.
+     */
+    static final String MISSING_BASE = "RaDelta: no se tiene la version base";
+
+    /**
+     * Firma de una version base.
+     */
+    static class Signature{
+        int blockSize;
+        int[] weak;
+        long[] strong;
+
+        /**
+         * Bloques por su checksum rodante: un Integer o un ArrayList de ellos.
+         */
+        private HashMap<Integer, Object> index;
+
+        /**
+         * Devuelve el bloque de la base igual al de data en off, o -1.
+         */
+        @SuppressWarnings("unchecked")
+        int find(byte[] data, int off, int weakSum){
+            Object o = index.get(weakSum);
+            if (o == null) return -1;
+            long h = strong(data, off, blockSize);
+            if (o instanceof Integer){
+                int i = ((Integer) o).intValue();
+                return (strong[i] == h) ? i : -1;
+            }
+            for (Integer i : (ArrayList<Integer>) o) if (strong[i] == h) return i;
+            return -1;
+        }
+
+        @SuppressWarnings("unchecked")
+        void buildIndex(){
+            index = new HashMap<Integer, Object>(weak.length * 2);
+            for (int i = 0; i < weak.length; ++i){
+                Object o = index.get(weak[i]);
+                if (o == null) index.put(weak[i], i);
+                else if (o instanceof Integer){
+                    ArrayList<Integer> list = new ArrayList<Integer>(2);
+                    list.add((Integer) o);
+                    list.add(i);
+                    index.put(weak[i], list);
+                }
+                else ((ArrayList<Integer>) o).add(i);
+            }
+        }
+    } // Signature
+
+    /**
+     * Tamanio de bloque para una base: al menos 1 KB y de modo que haya
+     * como mucho unos 8192 bloques.
+     */
+    static int blockSize(int length){
+        return Math.max(1024, Integer.highestOneBit(Math.max(1, length / 4096)));
+    }
+
+    /**
+     * Firma de una version base. Solo se firman los bloques completos.
+     */
+    public static byte[] signature(byte[] base) throws IOException{
+        int bs = blockSize(base.length);
+        int n = base.length / bs;
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(8 + n * 12);
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(bs);
+        dos.writeInt(n);
+        for (int i = 0; i < n; ++i){
+            dos.writeInt(weak(base, i * bs, bs));
+            dos.writeLong(strong(base, i * bs, bs));
+        }
+        dos.flush();
+        return bos.toByteArray();
+    }
+
+    static Signature readSignature(byte[] data) throws IOException{
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        Signature s = new Signature();
+        s.blockSize = in.readInt();
+        int n = in.readInt();
+        if (s.blockSize <= 0 || n < 0 || n > (data.length - 8) / 12)
+            throw new StreamCorruptedException("Firma no valida");
+        s.weak = new int[n];
+        s.strong = new long[n];
+        for (int i = 0; i < n; ++i){
+            s.weak[i] = in.readInt();
+            s.strong[i] = in.readLong();
+        }
+        s.buildIndex();
+        return s;
+    }
+
+    /**
+     * Escribe las diferencias entre la base de la firma y target.
+     *
+     * @return Bytes escritos.
+     */
+    public static int delta(byte[] target, byte[] signature, OutputStream out) throws IOException{
+        Signature sig = readSignature(signature);
+        DataOutputStream dos = new DataOutputStream(out);
+        int bs = sig.blockSize;
+        int len = target.length;
+        int literal = 0;
+        int lastBlock = -2, run = 0;
+        int i = 0;
+        int a = 0, b = 0;
+        boolean rolling = false;
+
+        while (sig.weak.length > 0 && i + bs <= len){
+            if (!rolling){
+                a = 0;
+                b = 0;
+                for (int k = 0; k < bs; ++k){
+                    int x = target[i + k] & 0xFF;
+                    a += x;
+                    b += (bs - k) * x;
+                }
+                a &= 0xFFFF;
+                b &= 0xFFFF;
+                rolling = true;
+            }
+            int block = sig.find(target, i, a | (b << 16));
+            if (block >= 0){
+                if (literal < i){
+                    if (run > 0) writeCopy(dos, lastBlock - run + 1, run);
+                    run = 0;
+                    writeLiteral(dos, target, literal, i - literal);
+                }
+                if (run > 0 && block == lastBlock + 1) ++run;
+                else {
+                    if (run > 0) writeCopy(dos, lastBlock - run + 1, run);
+                    run = 1;
+                }
+                lastBlock = block;
+                i += bs;
+                literal = i;
+                rolling = false;
+                continue;
+            }
+            if (i + bs < len){
+                // sale del bloque el byte i y entra el i + bs
+                int x = target[i] & 0xFF;
+                int y = target[i + bs] & 0xFF;
+                a = (a - x + y) & 0xFFFF;
+                b = (b - bs * x + a) & 0xFFFF;
+            }
+            ++i;
+        }
+        if (run > 0) writeCopy(dos, lastBlock - run + 1, run);
+        if (literal < len) writeLiteral(dos, target, literal, len - literal);
+        dos.write(END);
+        dos.flush();
+        return dos.size();
+    }
+
+    private static void writeCopy(DataOutputStream out, int block, int n) throws IOException{
+        out.write(COPY);
+        writeVarInt(out, block);
+        writeVarInt(out, n);
+    }
+
+    private static void writeLiteral(DataOutputStream out, byte[] data, int off, int n) throws IOException{
+        out.write(LITERAL);
+        writeVarInt(out, n);
+        out.write(data, off, n);
+    }
+
+    /**
+     * Reconstruye la version nueva a partir de la base y las diferencias.
+     *
+     * @param length Longitud de la version nueva.
+     */
+    public static byte[] apply(byte[] base, int blockSize, int length, InputStream delta) throws IOException{
+        if (length < 0 || length > RaWire.MAX_FRAME || blockSize <= 0)
+            throw new StreamCorruptedException("Diferencias no validas");
+        DataInputStream in = new DataInputStream(delta);
+        byte[] result = new byte[length];
+        int pos = 0;
+        while (true){
+            int op = in.read();
+            if (op == END) break;
+            if (op == COPY){
+                long from = (long) readVarInt(in) * blockSize;
+                long n = (long) readVarInt(in) * blockSize;
+                if (from < 0 || n <= 0 || from + n > base.length || pos + n > length)
+                    throw new StreamCorruptedException("Copia fuera de la base");
+                System.arraycopy(base, (int) from, result, pos, (int) n);
+                pos += n;
+            }
+            else if (op == LITERAL){
+                int n = readVarInt(in);
+                if (n < 0 || pos + n > length) throw new StreamCorruptedException("Diferencias no validas");
+                in.readFully(result, pos, n);
+                pos += n;
+            }
+            else throw new StreamCorruptedException("Operacion no valida: " + op);
+        }
+        if (pos != length) throw new StreamCorruptedException("Diferencias truncadas");
+        return result;
+    }
+
+    /**
+     * Checksum rodante de un bloque (el de rsync).
+     */
+    static int weak(byte[] data, int off, int len){
+        int a = 0, b = 0;
+        for (int k = 0; k < len; ++k){
+            int x = data[off + k] & 0xFF;
+            a += x;
+            b += (len - k) * x;
+        }
+        return (a & 0xFFFF) | ((b & 0xFFFF) << 16);
+    }
+
+    /**
+     * Hash de 64 bits de un bloque (FNV-1a). La version reconstruida se
+     * comprueba entera con SHA-256, asi que basta con que las colisiones
+     * sean raras.
+     */
+    static long strong(byte[] data, int off, int len){
+        long h = 0xcbf29ce484222325L;
+        for (int k = 0; k < len; ++k){
+            h ^= data[off + k] & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    static void writeVarInt(DataOutputStream out, int v) throws IOException{
+        while ((v & ~0x7F) != 0){
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException{
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7){
+            int b = in.readUnsignedByte();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new StreamCorruptedException("Entero mal formado");
+    }
+
+    /**
+     * Indica si un envio ha fallado porque el destino no podia reconstruir
+     * el agente.
+     */
+    static boolean isMissingBase(Throwable error){
+        for (Throwable t = error; t != null; t = t.getCause()){
+            if (t.getMessage() != null && t.getMessage().indexOf(MISSING_BASE) >= 0) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,80 @@
+package raf.principal;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+
+/**
+ * Bucles de eventos de una agencia. Entregan de modo asincrono los eventos
+ * que lanzan los agentes (dispatch, destroy, sleep y mensajes) y los eventos
+ * de la agencia a sus AgencyListener, sin crear un thread por evento.
+ *
+ * Cada evento lleva una clave, normalmente el nombre del agente; los
+ * eventos con la misma clave van siempre al mismo bucle y se entregan en el
+ * orden en que se lanzaron.
+ */
+public class RaEventDispatcher
+{
+    /**
+     * Thread que entrega en orden los eventos de su cola.
+     */
+    class Loop extends Thread{
+
+        private LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
+
+        Loop(int n){
+            super("RaEventDispatcher-" + n);
+            setDaemon(true);
+        }
+
+        public void run(){
+            while (running){
+                Runnable task;
+                try {
+                    task = queue.take();
+                }
+                catch (InterruptedException e){
+                    continue;
+                }
+                try {
+                    task.run();
+                }
+                catch (RuntimeException e){
+                    System.err.println("! RaEventDispatcher: " + e);
+                    e.printStackTrace();
+                }
+            }
+        }
+    } // Loop
+
+    private Loop[] loops;
+
+    private volatile boolean running = true;
+
+    /**
+     * @param threads Numero de bucles de eventos.
+     */
+    public RaEventDispatcher(int threads){
+        loops = new Loop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; ++i){
+            loops[i] = new Loop(i);
+            loops[i].start();
+        }
+    }
+
+    /**
+     * Encola un evento en el bucle que corresponde a la clave.
+     */
+    public void post(Object key, Runnable task){
+        int h = (key == null) ? 0 : key.hashCode();
+        h ^= (h >>> 16);
+        loops[(h & 0x7fffffff) % loops.length].queue.add(task);
+    }
+
+    /**
+     * Para los bucles. Los eventos pendientes no se entregan.
+     */
+    public void shutdown(){
+        running = false;
+        for (int i = 0; i < loops.length; ++i) loops[i].interrupt();
+    }
+}
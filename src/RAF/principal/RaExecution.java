@@ -0,0 +1,158 @@
+package raf.principal;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Estrategia con la que una agencia ejecuta el metodo run() de sus agentes
+ * y la entrega de los mensajes de sus buzones.
+ *
+ * <ul>
+ * <li>"thread": un thread de plataforma por agente y por lote de mensajes.</li>
+ * <li>"virtual": un thread virtual por agente y por lote de mensajes. Necesita
+ *     Java 21 o posterior; con versiones anteriores se usan threads de
+ *     plataforma.</li>
+ * <li>"pool": un numero fijo de threads compartidos. El run() de un agente
+ *     ocupa un thread mientras dura, asi que los agentes deben terminarlo
+ *     pronto y reaccionar a los mensajes.</li>
+ * </ul>
+ */
+public abstract class RaExecution
+{
+    /**
+     * Arranca una tarea larga, normalmente el run() de un agente.
+     *
+     * @param name Nombre del thread, si la estrategia los nombra.
+     * @return Futuro con el que se puede saber si la tarea ha terminado.
+     */
+    public abstract Future<?> start(Runnable task, String name);
+
+    /**
+     * Ejecuta una tarea corta, como la entrega de un evento o de un mensaje.
+     */
+    public void execute(Runnable task){
+        start(task, null);
+    }
+
+    /**
+     * Para los threads propios de la estrategia, si los tiene.
+     */
+    public void shutdown(){
+    }
+
+    /**
+     * Crea la estrategia indicada por su nombre.
+     *
+     * @param threads Numero de threads de la estrategia "pool".
+     */
+    public static RaExecution create(String mode, int threads){
+        if (mode.equals("pool")) return new Pool(threads);
+        if (mode.equals("virtual")){
+            ThreadFactory factory = virtualThreadFactory();
+            if (factory != null) return new Threads(factory);
+            System.err.println("RaExecution: no hay threads virtuales en esta maquina virtual, se usan threads normales");
+        }
+        else if (!mode.equals("thread")){
+            System.err.println("RaExecution: estrategia desconocida " + mode + ", se usan threads normales");
+        }
+        return new Threads(null);
+    }
+
+    /**
+     * Devuelve una factoria de threads virtuales, o null si la maquina
+     * virtual no los tiene. Se obtiene por reflexion para seguir
+     * compilando con Java 8.
+     */
+    static ThreadFactory virtualThreadFactory(){
+        try{
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "Ra-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        }
+        catch (Exception e){
+            return null;
+        }
+    }
+
+
+    /**
+     * Tarea de un agente. Las excepciones no capturadas se muestran, igual
+     * que cuando cada agente tenia su propio thread.
+     */
+    static class Task extends FutureTask<Object>{
+
+        Task(Runnable task){
+            super(task, null);
+        }
+
+        protected void setException(Throwable t){
+            System.err.println("! RaExecution: excepcion no capturada en un agente: " + t);
+            t.printStackTrace();
+            super.setException(t);
+        }
+    } // Task
+
+
+    /**
+     * Un thread nuevo por tarea: de plataforma, como hasta ahora, o virtual.
+     */
+    static class Threads extends RaExecution{
+
+        private ThreadFactory factory;
+
+        /**
+         * @param factory Factoria de threads, o null para threads de plataforma.
+         */
+        Threads(ThreadFactory factory){
+            this.factory = factory;
+        }
+
+        public Future<?> start(Runnable task, String name){
+            Task future = new Task(task);
+            Thread thread;
+            if (factory != null) thread = factory.newThread(future);
+            else if (name != null) thread = new Thread(future, name);
+            else thread = new Thread(future);
+            thread.start();
+            return future;
+        }
+    } // Threads
+
+
+    /**
+     * Un numero fijo de threads compartidos por todos los agentes.
+     */
+    static class Pool extends RaExecution{
+
+        private ExecutorService executor;
+
+        Pool(int threads){
+            final AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory(){
+                public Thread newThread(Runnable r){
+                    return new Thread(r, "RaExecution.Pool-" + count.incrementAndGet());
+                }
+            });
+        }
+
+        public Future<?> start(Runnable task, String name){
+            Task future = new Task(task);
+            executor.execute(future);
+            return future;
+        }
+
+        public void execute(Runnable task){
+            executor.execute(new Task(task));
+        }
+
+        public void shutdown(){
+            executor.shutdown();
+        }
+    } // Pool
+}
@@ -0,0 +1,266 @@
+package raf.principal;
+
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * Ejecuta varias agencias, cada una en su puerto, dentro de una misma
+ * maquina virtual. Todas comparten el ClassManager, el pool de conexiones,
+ * un unico RaNioServer con sus threads de lectura, los threads que
+ * procesan los mensajes, la cola de salida y la estrategia de ejecucion
+ * de los agentes.
+ */
+public class RaHost
+{
+    private ClassManager classManager;
+
+    private RaNioServer nioServer;
+
+    private ExecutorService workers;
+
+    private RaOutbox outbox;
+
+    private RaExecution execution = RaExecution.create("thread", 0);
+
+    private RaEventDispatcher events = new RaEventDispatcher(1);
+
+    /**
+     * Agencias arrancadas, por puerto.
+     */
+    private Hashtable<Integer, RaAgency> agencies;
+
+    /**
+     * Como se entregan los agentes entre agencias de la misma maquina virtual.
+     */
+    String localTransfer = "reference";
+
+    /**
+     * Envio del codigo de los agentes con ellos.
+     */
+    String codeBundle = "none";
+    boolean codeTransitive = false;
+
+    /**
+     * Serializacion de los agentes: "java" o "fast".
+     */
+    String agentSerializer = "java";
+
+    /**
+     * Como salen los agentes: "message" o "stream", y tamanio de los trozos.
+     */
+    String agentTransfer = "message";
+    int streamChunk = RaStream.CHUNK_SIZE;
+
+    /**
+     * Envio como diferencias de los agentes que vuelven, y retencion de
+     * las versiones con las que salen.
+     */
+    boolean agentDelta = false;
+    int deltaThreshold = 16384;
+    long snapshotBudget = 16 * 1024 * 1024;
+    long snapshotAge = 600000;
+
+    /**
+     * Capacidad y politica de los buzones de los agentes.
+     */
+    int mailboxCapacity = 1000;
+    String mailboxOverflow = RaMailbox.REJECT;
+
+    /**
+     * Pasivacion de los agentes; cada agencia usa un subdirectorio con su
+     * puerto.
+     */
+    String passivationDir = null;
+    long passivationBudget = 0;
+    long passivateAfter = 0;
+
+    /**
+     * @param classManager ClassManager compartido por todas las agencias.
+     * @param ioThreads Numero de threads de lectura del RaNioServer.
+     * @param workerThreads Numero de threads que procesan los mensajes.
+     */
+    public RaHost(ClassManager classManager, int ioThreads, int workerThreads) throws IOException{
+        this.classManager = classManager;
+        agencies = new Hashtable<Integer, RaAgency>();
+        workers = Executors.newFixedThreadPool(workerThreads);
+        nioServer = new RaNioServer(ioThreads, workers);
+        outbox = new RaOutbox(RaConnectionPool.getDefault(), 2);
+    }
+
+    /**
+     * Crea y arranca una agencia en el puerto indicado.
+     *
+     * @param raServer Direccion del servidor de dominio, o null.
+     * @return La agencia, o null si no se ha podido abrir el puerto.
+     */
+    public synchronized RaAgency startAgency(int port, RaAddress raServer){
+        if (agencies.containsKey(port))
+            throw new IllegalStateException("Ya hay una agencia en el puerto " + port);
+        RaAgency agency = new RaAgency(this, classManager);
+        agency.setSharedIo(nioServer, workers, outbox);
+        agency.setLocalTransfer(localTransfer);
+        agency.setCodeBundle(codeBundle);
+        agency.setCodeTransitive(codeTransitive);
+        agency.setAgentSerializer(agentSerializer);
+        agency.setAgentTransfer(agentTransfer, streamChunk);
+        agency.setDelta(agentDelta, deltaThreshold, snapshotBudget, snapshotAge);
+        agency.setExecution(execution);
+        agency.setEventDispatcher(events);
+        agency.setMailbox(mailboxCapacity, mailboxOverflow);
+        if (passivationDir != null) agency.setPassivation(passivationDir, passivationBudget, passivateAfter);
+        if (!agency.startAgency(this, port, raServer)) return null;
+        agencies.put(port, agency);
+        return agency;
+    }
+
+    /**
+     * Para la agencia del puerto indicado.
+     */
+    public synchronized void stopAgency(int port){
+        RaAgency agency = agencies.remove(port);
+        if (agency != null) agency.stopAgency(this);
+    }
+
+    /**
+     * Devuelve la agencia del puerto indicado, o null.
+     */
+    public RaAgency getAgency(int port){
+        return agencies.get(port);
+    }
+
+    /**
+     * Devuelve las agencias arrancadas.
+     */
+    public synchronized Enumeration<RaAgency> getAgencies(){
+        return new Vector<RaAgency>(agencies.values()).elements();
+    }
+
+    public ClassManager getClassManager(){
+        return classManager;
+    }
+
+    /**
+     * Establece la ventana en milisegundos y los limites de los lotes de la
+     * cola de salida compartida.
+     */
+    public void setBatching(long linger, int maxBytes, int maxMessages){
+        outbox.setBatching(linger, maxBytes, maxMessages);
+    }
+
+    /**
+     * Establece el tiempo tras el cual se cierra una conexion entrante sin actividad.
+     */
+    public void setConnectionTimeout(long connectionTimeout){
+        nioServer.setConnectionTimeout(connectionTimeout);
+    }
+
+    /**
+     * Establece como se entregan los agentes entre agencias de esta maquina
+     * virtual ("reference" o "copy"). Afecta a las agencias que se arranquen despues.
+     */
+    public void setLocalTransfer(String localTransfer){
+        this.localTransfer = localTransfer;
+    }
+
+    /**
+     * Establece si se envia el codigo de los agentes con ellos ("none",
+     * "closure", "missing" o "manifest"). Afecta a las agencias que se arranquen despues.
+     */
+    public void setCodeBundle(String codeBundle){
+        this.codeBundle = codeBundle;
+    }
+
+    /**
+     * Establece si con el codigo de los agentes se envian tambien las
+     * clases de las que depende. Afecta a las agencias que se arranquen despues.
+     */
+    public void setCodeTransitive(boolean codeTransitive){
+        this.codeTransitive = codeTransitive;
+    }
+
+    /**
+     * Establece como se serializan los agentes ("java" o "fast"). Afecta a
+     * las agencias que se arranquen despues.
+     */
+    public void setAgentSerializer(String agentSerializer){
+        this.agentSerializer = agentSerializer;
+    }
+
+    /**
+     * Establece si los agentes salen en un solo mensaje ("message") o por
+     * trozos de chunkSize bytes ("stream"). Afecta a las agencias que se
+     * arranquen despues.
+     */
+    public void setAgentTransfer(String agentTransfer, int chunkSize){
+        this.agentTransfer = agentTransfer;
+        if (chunkSize > 0) streamChunk = chunkSize;
+    }
+
+    /**
+     * Establece si los agentes que vuelven a una agencia salen como
+     * diferencias con la version con la que salieron de ella. Afecta a las
+     * agencias que se arranquen despues.
+     */
+    public void setDelta(boolean agentDelta, int threshold, long budget, long maxAge){
+        this.agentDelta = agentDelta;
+        if (threshold > 0) deltaThreshold = threshold;
+        snapshotBudget = budget;
+        snapshotAge = maxAge;
+    }
+
+    /**
+     * Establece la capacidad del buzon de los agentes y la politica al
+     * llenarse. Afecta a las agencias que se arranquen despues.
+     */
+    public void setMailbox(int capacity, String overflow){
+        mailboxCapacity = capacity;
+        mailboxOverflow = overflow;
+    }
+
+    /**
+     * Activa la pasivacion de los agentes de las agencias que se arranquen
+     * despues. El limite de bytes es por agencia.
+     */
+    public void setPassivation(String dir, long budget, long idleTimeout){
+        passivationDir = dir;
+        passivationBudget = budget;
+        passivateAfter = idleTimeout;
+    }
+
+    /**
+     * Establece como se ejecutan los agentes de todas las agencias: "thread",
+     * "virtual" o "pool". Debe llamarse antes de arrancar las agencias.
+     */
+    public synchronized void setExecution(String mode, int threads){
+        execution.shutdown();
+        execution = RaExecution.create(mode, threads);
+    }
+
+    /**
+     * Establece el numero de bucles de eventos que comparten todas las
+     * agencias. Debe llamarse antes de arrancar las agencias.
+     */
+    public synchronized void setEventThreads(int threads){
+        events.shutdown();
+        events = new RaEventDispatcher(threads);
+    }
+
+    /**
+     * Para todas las agencias y los recursos compartidos.
+     */
+    public synchronized void shutdown(){
+        for (RaAgency agency : new Vector<RaAgency>(agencies.values())) agency.stopAgency(this);
+        agencies.clear();
+        outbox.shutdown();
+        nioServer.shutdown();
+        workers.shutdown();
+        execution.shutdown();
+        events.shutdown();
+        System.out.println ("RaHost parado");
+    }
+}
@@ -4,6 +4,7 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectStreamClass;
 import java.io.IOException;
+import java.io.StreamCorruptedException;
 
 
 
@@ -17,22 +18,94 @@ public class RaInputStream extends ObjectInputStream{
     
     
     ClassManager classManager; 
+
+    /**
+     * Loader con el que se resuelven las clases del stream.
+     */
+    ClassLoader loader;
+
+    /**
+     * Si el loader lo ha dado el ClassManager y hay que devolverlo al
+     * terminar de leer.
+     */
+    private boolean pinned = false;
     
     
     public RaInputStream(ClassManager clManager, RaAddress agency, InputStream in, RaAddress host) throws IOException{
+        this(clManager, agency, in, host, "");
+    }
+
+    /**
+     * @param version Version del codigo de la agencia host; las clases se
+     * resuelven con el RaClassLoader que el ClassManager tiene para esa
+     * agencia y version.
+     */
+    public RaInputStream(ClassManager clManager, RaAddress agency, InputStream in, RaAddress host, String version) throws IOException{
         super(in);
         this.agency = agency;
         this.host = host;
         this.classManager = clManager;
+        loader = clManager.getLoader(agency, host, version);
+        pinned = true;
+    }
+
+    /**
+     * Lee con un loader ya conocido, por ejemplo el de un agente pasivado.
+     */
+    public RaInputStream(ClassLoader loader, InputStream in) throws IOException{
+        super(in);
+        this.loader = loader;
     }
 
    
+    /**
+     * Agentes que esta leyendo RaSerializer, por su posicion.
+     */
+    private Object[] agents = null;
+
+    /**
+     * Lee un agente o un grupo de agentes, escrito con writeObject() o con
+     * RaSerializer.
+     */
+    public Object readAgent() throws IOException, ClassNotFoundException{
+        try {
+            Object o = readObject();
+            if (RaSerializer.MAGIC.equals(o)) return RaSerializer.read(this);
+            return o;
+        }
+        finally {
+            // los agentes leidos ya retienen el loader al registrarse
+            if (pinned){
+                pinned = false;
+                classManager.releaseLoader(loader);
+            }
+        }
+    }
+
+    void beginAgents(Object[] agents){
+        enableResolveObject(true);
+        this.agents = agents;
+    }
+
+    void endAgents(){
+        agents = null;
+    }
+
+    protected Object resolveObject(Object obj) throws IOException{
+        if (agents != null && obj instanceof RaSerializer.AgentRef){
+            int i = ((RaSerializer.AgentRef) obj).index;
+            if (i < 0 || i >= agents.length) throw new StreamCorruptedException("AgentRef no valido: " + i);
+            return agents[i];
+        }
+        return obj;
+    }
+
     protected Class<?> resolveClass(ObjectStreamClass v) 
     throws IOException, ClassNotFoundException{
         Class<?> result;
-        RaClassLoader loader = new RaClassLoader(classManager, agency, host);
         System.out.println ("RaInputStream esta argando la clase " + v.getName());        
-        result = loader.loadClass(v.getName());
+        // Class.forName resuelve tambien las clases de los arrays ("[B")
+        result = Class.forName(v.getName(), false, loader);
         System.out.println ("Clase cargada");         
         return result;
     }
@@ -0,0 +1,180 @@
+package raf.principal;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Registro de las agencias que se ejecutan en esta maquina virtual.
+ * Los mensajes y los agentes dirigidos a una de ellas se entregan
+ * directamente, sin pasar por un socket ni por la serializacion.
+ */
+public class RaLocal
+{
+    /**
+     * Agencias arrancadas en esta maquina virtual, por puerto.
+     */
+    private static Hashtable<Integer, RaAgency> agencies = new Hashtable<Integer, RaAgency>();
+
+    /**
+     * Resultado de isLocalHost() para cada direccion ya consultada.
+     */
+    private static Hashtable<InetAddress, Boolean> localHosts = new Hashtable<InetAddress, Boolean>();
+
+    /**
+     * Generador de los ids de los mensajes entregados localmente.
+     */
+    private static AtomicLong ids = new AtomicLong();
+
+    /**
+     * Threads que entregan los mensajes locales, para que el que envia
+     * no ejecute el codigo de la agencia destino. Son tantos como
+     * procesadores, no uno por mensaje.
+     */
+    private static ExecutorService executor = null;
+
+    /**
+     * Mensajes locales pendientes, por remitente y destino.
+     */
+    private static HashMap<String, Lane> lanes = new HashMap<String, Lane>();
+
+    /**
+     * Mensajes que entrega un Lane antes de dejar el thread a los demas.
+     */
+    static final int BATCH = 32;
+
+    /**
+     * Mensajes de un remitente a un destino. Se procesan de uno en uno y en
+     * el orden en que se enviaron, como los que llegan por una conexion.
+     */
+    static class Lane implements Runnable{
+        String key;
+        ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+
+        Lane(String key){
+            this.key = key;
+        }
+
+        public void run(){
+            for (int n = 0; n < BATCH; ++n){
+                Runnable task;
+                synchronized (lanes){
+                    task = tasks.poll();
+                    if (task == null){
+                        lanes.remove(key);
+                        return;
+                    }
+                }
+                try{
+                    task.run();
+                }
+                catch (RuntimeException e){
+                    System.err.println("! RaLocal: fallo al entregar un mensaje: " + e);
+                }
+            }
+            // deja el thread a los demas y sigue despues
+            synchronized (lanes){
+                if (tasks.isEmpty()){
+                    lanes.remove(key);
+                    return;
+                }
+            }
+            executor().execute(this);
+        }
+    } // Lane
+
+    /**
+     * Registra una agencia arrancada en el puerto indicado.
+     */
+    static void register(int port, RaAgency agency){
+        agencies.put(port, agency);
+    }
+
+    /**
+     * Borra el registro de una agencia parada.
+     */
+    static void unregister(int port, RaAgency agency){
+        agencies.remove(port, agency);
+    }
+
+    /**
+     * Devuelve la agencia de esta maquina virtual a la que va dirigida la
+     * direccion, o null si la direccion es de otro proceso.
+     */
+    static RaAgency lookup(RaAddress address){
+        if (address == null || agencies.isEmpty()) return null;
+        RaAgency agency = agencies.get(address.port);
+        if (agency == null) return null;
+        return (address.host == null || isLocalHost(address.host)) ? agency : null;
+    }
+
+    /**
+     * Indica si la direccion es de esta maquina.
+     */
+    static boolean isLocalHost(InetAddress host){
+        Boolean local = localHosts.get(host);
+        if (local == null){
+            boolean result = host.isLoopbackAddress() || host.isAnyLocalAddress();
+            try{
+                result = result || host.equals(InetAddress.getLocalHost())
+                                || NetworkInterface.getByInetAddress(host) != null;
+            }
+            catch (UnknownHostException e){
+                // solo cuentan las direcciones de loopback
+            }
+            catch (SocketException e){
+                // solo cuentan las direcciones de loopback
+            }
+            local = Boolean.valueOf(result);
+            localHosts.put(host, local);
+        }
+        return local.booleanValue();
+    }
+
+    static long nextId(){
+        return ids.incrementAndGet();
+    }
+
+    /**
+     * Procesa un mensaje local despues de los que el mismo remitente haya
+     * enviado antes al mismo destino.
+     */
+    static void execute(RaAddress sender, RaAddress recipient, Runnable task){
+        String key = recipient.port + "/" + recipient.name + "<" + sender;
+        Lane lane;
+        synchronized (lanes){
+            lane = lanes.get(key);
+            if (lane != null){
+                lane.tasks.add(task);
+                return;
+            }
+            lane = new Lane(key);
+            lane.tasks.add(task);
+            lanes.put(key, lane);
+        }
+        executor().execute(lane);
+    }
+
+    static synchronized ExecutorService executor(){
+        if (executor == null){
+            int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+                public Thread newThread(Runnable r){
+                    Thread thread = new Thread(r, "RaLocal");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,173 @@
+package raf.principal;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Buzon de mensajes de un agente. Cualquier thread puede dejar mensajes;
+ * una sola tarea de la RaExecution de la agencia los entrega en orden
+ * llamando a handleMessage(), por lotes, de modo que un agente lento no
+ * bloquea a quien le envia los mensajes.
+ *
+ * Si el buzon tiene capacidad limitada, al llenarse se aplica una de estas
+ * politicas: "reject" descarta el mensaje nuevo, "dropOldest" descarta el
+ * mensaje mas antiguo y "block" espera a que haya sitio.
+ */
+public class RaMailbox implements Runnable
+{
+    public static final String REJECT = "reject";
+    public static final String DROP_OLDEST = "dropOldest";
+    public static final String BLOCK = "block";
+
+    /**
+     * Numero maximo de mensajes que se entregan antes de dejar el thread a
+     * otros agentes.
+     */
+    static final int BATCH = 32;
+
+    /**
+     * El agente, o null mientras esta pasivado; los mensajes esperan en el
+     * buzon hasta que se reactive.
+     */
+    private volatile Ra ra;
+
+    private RaExecution execution;
+
+    private ConcurrentLinkedQueue<RaMessage> queue = new ConcurrentLinkedQueue<RaMessage>();
+
+    /**
+     * Huecos libres del buzon, o null si no tiene limite.
+     */
+    private Semaphore free;
+
+    private String overflow;
+
+    /**
+     * Indica si hay una tarea de entrega en cola o en curso.
+     */
+    private AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /**
+     * Tiempo maximo en milisegundos de espera con la politica "block".
+     */
+    long blockTimeout = 10000;
+
+    /**
+     * @param capacity Numero maximo de mensajes pendientes, 0 sin limite.
+     * @param overflow Politica al llenarse el buzon.
+     */
+    public RaMailbox(Ra ra, RaExecution execution, int capacity, String overflow){
+        this.ra = ra;
+        this.execution = execution;
+        this.overflow = overflow;
+        if (capacity > 0) free = new Semaphore(capacity);
+    }
+
+    /**
+     * Deja un mensaje en el buzon.
+     *
+     * @return false si el mensaje se ha descartado porque el buzon esta lleno.
+     */
+    public boolean offer(RaMessage msg){
+        if (free != null && !free.tryAcquire()){
+            if (overflow.equals(DROP_OLDEST)){
+                // el hueco del mensaje descartado pasa al nuevo
+                if (queue.poll() == null && !acquire()) return false;
+            }
+            else if (!overflow.equals(BLOCK) || !acquire()){
+                return false;
+            }
+        }
+        queue.add(msg);
+        schedule();
+        return true;
+    }
+
+    private boolean acquire(){
+        try{
+            return free.tryAcquire(blockTimeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e){
+            return false;
+        }
+    }
+
+    private void schedule(){
+        if (scheduled.compareAndSet(false, true)) execution.execute(this);
+    }
+
+    /**
+     * Entrega un lote de mensajes al agente.
+     */
+    public void run(){
+        RaMessage msg;
+        int n = 0;
+        Ra ra = this.ra;
+        while (ra != null && n++ < BATCH && (msg = queue.poll()) != null){
+            if (free != null) free.release();
+            try{
+                ra.handleMessage(msg);
+            }
+            catch (RuntimeException e){
+                System.err.println("! RaMailbox: el agente " + ra.getName() + " ha fallado con " + msg.kind + ": " + e);
+            }
+        }
+        scheduled.set(false);
+        if (ra != null && !queue.isEmpty()) schedule();
+    }
+
+    /**
+     * Cambia el agente al que se entregan los mensajes: null al pasivarlo,
+     * el objeto reactivado al despertarlo.
+     */
+    void setRa(Ra ra){
+        this.ra = ra;
+        if (ra != null && !queue.isEmpty()) schedule();
+    }
+
+    public boolean isEmpty(){
+        return queue.isEmpty();
+    }
+
+    /**
+     * Indica si no hay mensajes pendientes ni se esta entregando ninguno.
+     */
+    boolean isIdle(){
+        return queue.isEmpty() && !scheduled.get();
+    }
+
+    /**
+     * Numero de mensajes pendientes.
+     */
+    public int size(){
+        return queue.size();
+    }
+
+    /**
+     * Pasa los mensajes pendientes, en orden, al buzon del mismo agente en
+     * otra agencia.
+     */
+    void transferTo(RaMailbox other){
+        RaMessage msg;
+        while ((msg = queue.poll()) != null){
+            if (free != null) free.release();
+            if (!other.offer(msg))
+                System.err.println("! RaMailbox: buzon lleno, mensaje descartado");
+        }
+    }
+
+    /**
+     * Vacia el buzon y devuelve cuantos mensajes tenia.
+     */
+    int clear(){
+        int n = 0;
+        while (queue.poll() != null){
+            if (free != null) free.release();
+            n++;
+        }
+        return n;
+    }
+}
@@ -6,6 +6,10 @@ import java.io.Serializable;
 @SuppressWarnings("serial")
 public class RaMessage implements Serializable{
   
+    /**
+     * Version del formato con el que llego el mensaje por la red
+     * (0 = serializacion Java, ver RaWire).
+     */
     public int version;
 
     
@@ -22,6 +26,17 @@ public class RaMessage implements Serializable{
    
     public byte binary[];
 
+    /**
+     * Identificador asignado por la conexion cuando el emisor espera una
+     * confirmacion (ACK) o una respuesta. 0 si no se espera nada.
+     */
+    public long id;
+
+    /**
+     * En una respuesta o ACK, el id del mensaje al que responde.
+     */
+    public long replyTo;
+
    
     public RaMessage(RaAddress sender,
                             RaAddress recipient,
@@ -0,0 +1,337 @@
+package raf.principal;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+
+import raf.messages.MessagesEv;
+
+
+/**
+ * Codificacion binaria compacta de un RaMessage (versiones 1 a 4 del formato).
+ * El tipo del mensaje viaja como un byte, las direcciones como los bytes
+ * de la IP mas el puerto, y el campo binary va al final sin ninguna
+ * cabecera adicional, ocupando el resto de la trama.
+ *
+ * <pre>
+ * byte    version
+ * byte    opcode del tipo (0 = tipo no conocido por la version, seguido del nombre)
+ * byte    flags (content, binary, id y replyTo presentes, binary comprimido)
+ * string  tipo, solo si el opcode es 0
+ * varlong id, solo en version 2 y si el flag esta puesto
+ * varlong replyTo, solo en version 2 y si el flag esta puesto
+ * addr    sender
+ * addr    recipient
+ * string  content
+ * byte[]  binary (resto de la trama), comprimido con RaCompression si
+ *         el flag esta puesto, solo en version 3
+ * </pre>
+ */
+public class RaMessageCodec
+{
+    /**
+     * Version mas alta del formato que implementa esta clase.
+     * La version 2 anade los campos id y replyTo, la 3 la compresion
+     * del binary y la 4 los opcodes de GET_SNAPSHOT, SNAPSHOT y RA_DELTA.
+     */
+    public static final int VERSION = 4;
+
+    /**
+     * Tipos de mensaje conocidos; el indice es el opcode.
+     * Solo se pueden anadir tipos al final, y con una version nueva: una
+     * agencia anterior corta la conexion si recibe un opcode que no conoce.
+     */
+    static final String[] KINDS = {
+        null,
+        MessagesEv.RA,
+        MessagesEv.AGENS,
+        MessagesEv.GET_C,
+        MessagesEv.GET,
+        MessagesEv.CLASS,
+        MessagesEv.ERROR,
+        MessagesEv.ONLINE,
+        MessagesEv.OFFLINE,
+        MessagesEv.HELLO,
+        MessagesEv.BATCH,
+        MessagesEv.ACK,
+        MessagesEv.RA_GROUP,
+        MessagesEv.RA_BUNDLE,
+        MessagesEv.RA_MANIFEST,
+        MessagesEv.GET_CODE,
+        MessagesEv.CODE,
+        MessagesEv.GET_CLASSES,
+        MessagesEv.CLASSES,
+        MessagesEv.RA_STREAM,
+        MessagesEv.GET_SNAPSHOT,
+        MessagesEv.SNAPSHOT,
+        MessagesEv.RA_DELTA
+    };
+
+    /**
+     * Opcodes que conocen las versiones 1 a 3. A esas agencias los tipos
+     * posteriores se les envian por su nombre.
+     */
+    private static final int KINDS_V3 = 20;
+
+    private static final int HAS_CONTENT = 1;
+    private static final int HAS_BINARY = 2;
+    private static final int HAS_ID = 4;
+    private static final int HAS_REPLY = 8;
+    private static final int COMPRESSED = 16;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Buffer de escritura que crece segun se necesita.
+     */
+    static class Writer{
+        byte[] buf;
+        int count = 0;
+
+        Writer(int size){
+            buf = new byte[size];
+        }
+
+        void ensure(int n){
+            if (count + n <= buf.length) return;
+            byte[] bigger = new byte[Math.max(buf.length * 2, count + n)];
+            System.arraycopy(buf, 0, bigger, 0, count);
+            buf = bigger;
+        }
+
+        void write(int b){
+            ensure(1);
+            buf[count++] = (byte) b;
+        }
+
+        void write(byte[] b, int off, int len){
+            ensure(len);
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        void writeVarInt(int v){
+            while ((v & ~0x7F) != 0){
+                write((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            write(v);
+        }
+
+        void writeVarLong(long v){
+            while ((v & ~0x7FL) != 0){
+                write((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            write((int) v);
+        }
+
+        void writeString(String s){
+            if (s == null){
+                writeVarInt(0);
+                return;
+            }
+            byte[] b = s.getBytes(UTF8);
+            writeVarInt(b.length + 1);
+            write(b, 0, b.length);
+        }
+
+        void writeAddress(RaAddress a){
+            if (a == null){
+                write(0);
+                return;
+            }
+            byte[] ip = (a.host == null) ? new byte[0] : a.host.getAddress();
+            write(1 + ip.length);
+            write(ip, 0, ip.length);
+            write(a.port >>> 8);
+            write(a.port);
+            writeString(a.name);
+        }
+    }
+
+    /**
+     * Lector sobre un array de bytes.
+     */
+    static class Reader{
+        byte[] buf;
+        int pos;
+        int end;
+
+        Reader(byte[] buf, int off, int len){
+            this.buf = buf;
+            pos = off;
+            end = off + len;
+        }
+
+        int read() throws IOException{
+            if (pos >= end) throw new StreamCorruptedException("Mensaje truncado");
+            return buf[pos++] & 0xFF;
+        }
+
+        int readVarInt() throws IOException{
+            int v = 0;
+            for (int shift = 0; shift < 32; shift += 7){
+                int b = read();
+                v |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            throw new StreamCorruptedException("Entero mal formado");
+        }
+
+        long readVarLong() throws IOException{
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7){
+                int b = read();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            throw new StreamCorruptedException("Entero mal formado");
+        }
+
+        byte[] readBytes(int n) throws IOException{
+            if (n < 0 || pos + n > end) throw new StreamCorruptedException("Mensaje truncado");
+            byte[] b = new byte[n];
+            System.arraycopy(buf, pos, b, 0, n);
+            pos += n;
+            return b;
+        }
+
+        String readString() throws IOException{
+            int n = readVarInt();
+            if (n == 0) return null;
+            if (n - 1 > end - pos) throw new StreamCorruptedException("Mensaje truncado");
+            String s = new String(buf, pos, n - 1, UTF8);
+            pos += n - 1;
+            return s;
+        }
+
+        RaAddress readAddress() throws IOException{
+            int n = read();
+            if (n == 0) return null;
+            byte[] ip = readBytes(n - 1);
+            InetAddress host = (ip.length == 0) ? null : InetAddress.getByAddress(ip);
+            int port = (read() << 8) | read();
+            return new RaAddress(host, port, readString());
+        }
+    }
+
+    /**
+     * Devuelve el opcode de un tipo de mensaje, o 0 si no es un tipo conocido.
+     */
+    static int opcode(String kind){
+        if (kind == null) return 0;
+        for (int i = 1; i < KINDS.length; ++i){
+            if (KINDS[i].equals(kind)) return i;
+        }
+        return 0;
+    }
+
+    /**
+     * Devuelve el opcode de un tipo de mensaje en la version indicada, o 0 si
+     * esa version no lo conoce.
+     */
+    static int opcode(String kind, int version){
+        int op = opcode(kind);
+        return (version < 4 && op >= KINDS_V3) ? 0 : op;
+    }
+
+    /**
+     * Codifica un mensaje con la version indicada (1 a 4).
+     */
+    public static byte[] encode(RaMessage msg, int version){
+        Writer w = write(msg, version);
+        byte[] result = new byte[w.count];
+        System.arraycopy(w.buf, 0, result, 0, w.count);
+        return result;
+    }
+
+    static Writer write(RaMessage msg, int version){
+        byte[] packed = compressed(msg, version);
+        byte[] binary = (packed != null) ? packed : msg.binary;
+        int size = 64 + ((binary == null) ? 0 : binary.length);
+        Writer w = new Writer(size);
+        writeHeader(w, msg, version, binary != null, packed != null);
+        if (binary != null) w.write(binary, 0, binary.length);
+        return w;
+    }
+
+    /**
+     * Devuelve el binary del mensaje comprimido, si la version lo permite y
+     * vale la pena, o null.
+     */
+    static byte[] compressed(RaMessage msg, int version){
+        return (version >= 3) ? RaCompression.compress(msg) : null;
+    }
+
+    /**
+     * Codifica todos los campos del mensaje salvo binary, que siempre va al
+     * final y sin longitud, de modo que se puede escribir aparte sin copiarlo.
+     *
+     * @param hasBinary Si el mensaje lleva binary.
+     */
+    static Writer writeHeader(RaMessage msg, int version, boolean hasBinary){
+        return writeHeader(msg, version, hasBinary, false);
+    }
+
+    /**
+     * @param compressed Si el binary que sigue es el de compressed().
+     */
+    static Writer writeHeader(RaMessage msg, int version, boolean hasBinary, boolean compressed){
+        Writer w = new Writer(64);
+        writeHeader(w, msg, version, hasBinary, compressed);
+        return w;
+    }
+
+    private static void writeHeader(Writer w, RaMessage msg, int version, boolean hasBinary, boolean compressed){
+        version = Math.min(version, VERSION);
+        w.write(version);
+        int op = opcode(msg.kind, version);
+        w.write(op);
+        int flags = 0;
+        if (msg.content != null) flags |= HAS_CONTENT;
+        if (hasBinary) flags |= HAS_BINARY;
+        if (version >= 2 && msg.id != 0) flags |= HAS_ID;
+        if (version >= 2 && msg.replyTo != 0) flags |= HAS_REPLY;
+        if (version >= 3 && hasBinary && compressed) flags |= COMPRESSED;
+        w.write(flags);
+        if (op == 0) w.writeString(msg.kind);
+        if ((flags & HAS_ID) != 0) w.writeVarLong(msg.id);
+        if ((flags & HAS_REPLY) != 0) w.writeVarLong(msg.replyTo);
+        w.writeAddress(msg.sender);
+        w.writeAddress(msg.recipient);
+        if (msg.content != null) w.writeString(msg.content);
+    }
+
+    /**
+     * Decodifica un mensaje codificado con encode().
+     */
+    public static RaMessage decode(byte[] data, int offset, int length) throws IOException{
+        Reader r = new Reader(data, offset, length);
+        int version = r.read();
+        if (version < 1 || version > VERSION)
+            throw new StreamCorruptedException("Version de mensaje no soportada: " + version);
+        int op = r.read();
+        if (op >= KINDS.length)
+            throw new StreamCorruptedException("Tipo de mensaje desconocido: " + op);
+        int flags = r.read();
+        String kind = (op == 0) ? r.readString() : KINDS[op];
+        long id = ((flags & HAS_ID) != 0) ? r.readVarLong() : 0;
+        long replyTo = ((flags & HAS_REPLY) != 0) ? r.readVarLong() : 0;
+        RaAddress sender = r.readAddress();
+        RaAddress recipient = r.readAddress();
+        String content = ((flags & HAS_CONTENT) != 0) ? r.readString() : null;
+        byte[] binary = null;
+        if ((flags & HAS_BINARY) != 0){
+            if ((flags & COMPRESSED) != 0) binary = RaCompression.decompress(r.buf, r.pos, r.end - r.pos);
+            else binary = r.readBytes(r.end - r.pos);
+        }
+
+        RaMessage msg = new RaMessage(sender, recipient, kind, content, binary);
+        msg.version = version;
+        msg.id = id;
+        msg.replyTo = replyTo;
+        return msg;
+    }
+}
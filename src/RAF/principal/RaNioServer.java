@@ -0,0 +1,525 @@
+package raf.principal;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Servidor de red basado en un Selector NIO.
+ * Un thread Acceptor acepta las conexiones de todos los puertos enlazados y
+ * las reparte entre unos pocos threads Reader, que leen las tramas de forma
+ * no bloqueante. Cada mensaje decodificado se entrega al RaReceiver del
+ * puerto en un Executor de trabajo, respetando el orden de llegada de
+ * cada conexion. Si una conexion tiene mas de maxQueued bytes recibidos
+ * sin procesar se deja de leer de ella hasta que baje a la mitad.
+ */
+public class RaNioServer
+{
+    /**
+     * Acepta las conexiones entrantes de todos los puertos.
+     */
+    class Acceptor extends Thread{
+
+        /**
+         * No es daemon: igual que el ListenThread de la agencia, mantiene
+         * viva la maquina virtual mientras el servidor escucha.
+         */
+        public Acceptor(){
+            super("RaNioServer.Acceptor");
+        }
+
+        public void run(){
+            while (running){
+                try{
+                    acceptSelector.select();
+                    Runnable task;
+                    while ((task = acceptTasks.poll()) != null) task.run();
+
+                    Iterator<SelectionKey> i = acceptSelector.selectedKeys().iterator();
+                    while (i.hasNext()){
+                        SelectionKey key = i.next();
+                        i.remove();
+                        if (!key.isValid() || !key.isAcceptable()) continue;
+                        accept((ServerSocketChannel) key.channel(), (RaReceiver) key.attachment());
+                    }
+                }
+                catch (IOException e){
+                    System.err.println("! RaNioServer.Acceptor: " + e);
+                }
+                catch (ClosedSelectorException e){
+                    return;
+                }
+            }
+            try{
+                acceptSelector.close();
+            }
+            catch (IOException e){
+                System.err.println("! RaNioServer.Acceptor: " + e);
+            }
+        }
+
+        private void accept(ServerSocketChannel server, RaReceiver receiver){
+            SocketChannel channel;
+            try{
+                while ((channel = server.accept()) != null){
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    Reader reader = readers[nextReader++ % readers.length];
+                    reader.add(new Connection(channel, receiver, reader, server.socket().getLocalPort()));
+                }
+            }
+            catch (IOException e){
+                System.err.println("! RaNioServer.accept: " + e);
+            }
+        }
+    } // Acceptor
+
+
+    /**
+     * Lee y escribe las tramas de las conexiones que tiene asignadas.
+     */
+    class Reader extends Thread{
+
+        Selector selector;
+
+        /**
+         * Conexiones nuevas pendientes de registrar en el selector.
+         */
+        ConcurrentLinkedQueue<Connection> added = new ConcurrentLinkedQueue<Connection>();
+
+        /**
+         * Conexiones con respuestas pendientes de escribir.
+         */
+        ConcurrentLinkedQueue<Connection> writers = new ConcurrentLinkedQueue<Connection>();
+
+        /**
+         * Puertos cerrados con unbind() cuyas conexiones hay que cerrar.
+         */
+        ConcurrentLinkedQueue<Integer> unbound = new ConcurrentLinkedQueue<Integer>();
+
+        /**
+         * Conexiones sin leer que ya pueden volver a leerse.
+         */
+        ConcurrentLinkedQueue<Connection> resumed = new ConcurrentLinkedQueue<Connection>();
+
+        /**
+         * Buffer de lectura compartido por todas las conexiones del Reader.
+         */
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        private long lastIdleCheck = System.currentTimeMillis();
+
+        public Reader(int n) throws IOException{
+            super("RaNioServer.Reader-" + n);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void add(Connection connection){
+            added.add(connection);
+            selector.wakeup();
+        }
+
+        void requestWrite(Connection connection){
+            writers.add(connection);
+            selector.wakeup();
+        }
+
+        void requestResume(Connection connection){
+            resumed.add(connection);
+            selector.wakeup();
+        }
+
+        void closePort(int port){
+            unbound.add(port);
+            selector.wakeup();
+        }
+
+        public void run(){
+            while (running){
+                try{
+                    selector.select(1000);
+
+                    Connection connection;
+                    while ((connection = added.poll()) != null){
+                        connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    }
+                    while ((connection = writers.poll()) != null){
+                        connection.flush();
+                    }
+                    while ((connection = resumed.poll()) != null){
+                        connection.resume();
+                    }
+                    Integer port;
+                    while ((port = unbound.poll()) != null){
+                        for (SelectionKey key : selector.keys()){
+                            Connection c = (Connection) key.attachment();
+                            if (c != null && c.port == port.intValue()) c.close();
+                        }
+                    }
+
+                    Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+                    while (i.hasNext()){
+                        SelectionKey key = i.next();
+                        i.remove();
+                        connection = (Connection) key.attachment();
+                        try{
+                            if (key.isValid() && key.isReadable()) connection.read(buffer);
+                            if (key.isValid() && key.isWritable()) connection.flush();
+                        }
+                        catch (IOException e){
+                            connection.close();
+                        }
+                    }
+                    closeIdle();
+                }
+                catch (IOException e){
+                    System.err.println("! RaNioServer.Reader: " + e);
+                }
+                catch (ClosedSelectorException e){
+                    return;
+                }
+            }
+            for (SelectionKey key : selector.keys()){
+                ((Connection) key.attachment()).close();
+            }
+            try{
+                selector.close();
+            }
+            catch (IOException e){
+                System.err.println("! RaNioServer.Reader: " + e);
+            }
+        }
+
+        /**
+         * Cierra las conexiones sin actividad desde hace connectionTimeout milisegundos.
+         */
+        private void closeIdle(){
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck < 1000) return;
+            lastIdleCheck = now;
+            for (SelectionKey key : selector.keys()){
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && now - connection.lastActivity > connectionTimeout){
+                    System.out.println ("RaNioServer: cerrando conexion inactiva.");
+                    connection.close();
+                }
+            }
+        }
+    } // Reader
+
+
+    /**
+     * Estado de una conexion aceptada. Tambien es la tarea que entrega
+     * en orden los mensajes recibidos al RaReceiver.
+     */
+    class Connection implements RaChannel, Runnable{
+
+        SocketChannel channel;
+        SelectionKey key;
+        Reader reader;
+        RaReceiver receiver;
+        InetAddress address;
+
+        /**
+         * Puerto local por el que se acepto la conexion.
+         */
+        int port;
+
+        /**
+         * Cabecera de la trama que se esta leyendo.
+         */
+        ByteBuffer header = ByteBuffer.allocate(4);
+
+        /**
+         * Contenido de la trama que se esta leyendo, null mientras se lee la cabecera.
+         */
+        ByteBuffer payload = null;
+
+        ConcurrentLinkedQueue<RaMessage> incoming = new ConcurrentLinkedQueue<RaMessage>();
+
+        /**
+         * Bytes de los mensajes de incoming, y si se ha dejado de leer de
+         * la conexion porque son demasiados.
+         */
+        AtomicLong queued = new AtomicLong(0);
+        volatile boolean suspended = false;
+
+        ConcurrentLinkedQueue<ByteBuffer[]> outgoing = new ConcurrentLinkedQueue<ByteBuffer[]>();
+
+        /**
+         * Indica si la conexion esta en cola o siendo atendida en el Executor.
+         */
+        AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        volatile long lastActivity = System.currentTimeMillis();
+
+        /**
+         * Version del formato del ultimo mensaje recibido; las respuestas la usan.
+         */
+        volatile int version = 0;
+
+        Connection(SocketChannel channel, RaReceiver receiver, Reader reader, int port){
+            this.channel = channel;
+            this.port = port;
+            this.receiver = receiver;
+            this.reader = reader;
+            address = channel.socket().getInetAddress();
+        }
+
+        /**
+         * Lee los bytes disponibles y decodifica las tramas completas.
+         */
+        void read(ByteBuffer buffer) throws IOException{
+            buffer.clear();
+            int n = channel.read(buffer);
+            if (n < 0){
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            buffer.flip();
+            while (buffer.hasRemaining()){
+                if (payload == null){
+                    transfer(buffer, header);
+                    if (header.hasRemaining()) break;
+                    header.flip();
+                    int length = header.getInt();
+                    header.clear();
+                    RaWire.checkLength(length);
+                    payload = ByteBuffer.allocate(length);
+                }
+                transfer(buffer, payload);
+                if (payload.hasRemaining()) break;
+                byte[] data = payload.array();
+                payload = null;
+                try{
+                    RaMessage msg = RaWire.decode(data, 0, data.length);
+                    version = msg.version;
+                    incoming.add(msg);
+                    if (queued.addAndGet(size(msg)) > maxQueued && !suspended){
+                        suspended = true;
+                        key.interestOps(interest());
+                    }
+                }
+                catch (ClassNotFoundException e){
+                    System.err.println ("RaNioServer: ClassNotFoundException al recibir el mensaje!");
+                    continue;
+                }
+                schedule();
+            }
+        }
+
+        private void schedule(){
+            if (scheduled.compareAndSet(false, true)) workers.execute(this);
+        }
+
+        /**
+         * Entrega los mensajes recibidos, en orden, en un thread de trabajo.
+         */
+        public void run(){
+            RaMessage msg;
+            while ((msg = incoming.poll()) != null){
+                try{
+                    receiver.receive(msg, address, this);
+                }
+                catch (RuntimeException e){
+                    System.err.println ("! RaNioServer: error al procesar " + msg.kind + ": " + e);
+                }
+                long left = queued.addAndGet(-size(msg));
+                if (suspended && left <= maxQueued / 2) reader.requestResume(this);
+            }
+            scheduled.set(false);
+            if (!incoming.isEmpty()) schedule();
+        }
+
+        /**
+         * Bytes que se cuentan por un mensaje en incoming.
+         */
+        private long size(RaMessage msg){
+            return (msg.binary == null) ? 64 : msg.binary.length + 64;
+        }
+
+        /**
+         * Vuelve a leer de la conexion. Llamado solo desde el Reader.
+         */
+        void resume(){
+            if (!suspended || queued.get() > maxQueued / 2) return;
+            suspended = false;
+            if (key != null && key.isValid()) key.interestOps(interest());
+        }
+
+        private int interest(){
+            int ops = suspended ? 0 : SelectionKey.OP_READ;
+            return outgoing.isEmpty() ? ops : ops | SelectionKey.OP_WRITE;
+        }
+
+        /**
+         * Pone en cola una respuesta; el Reader la escribe en el canal.
+         */
+        public void send(RaMessage msg) throws IOException{
+            if (!channel.isOpen()) throw new ClosedChannelException();
+            outgoing.add(RaWire.frame(msg, version));
+            reader.requestWrite(this);
+        }
+
+        /**
+         * Escribe las respuestas pendientes. Llamado solo desde el Reader.
+         */
+        void flush(){
+            if (key == null || !key.isValid()) return;
+            try{
+                ByteBuffer[] frame;
+                while ((frame = outgoing.peek()) != null){
+                    channel.write(frame);
+                    if (frame[frame.length - 1].hasRemaining()) break;
+                    outgoing.poll();
+                }
+                lastActivity = System.currentTimeMillis();
+                key.interestOps(interest());
+            }
+            catch (IOException e){
+                close();
+            }
+        }
+
+        void close(){
+            if (key != null) key.cancel();
+            try{
+                channel.close();
+            }
+            catch (IOException e){
+                System.err.println("! RaNioServer.close: " + e);
+            }
+        }
+    } // Connection
+
+
+    private Selector acceptSelector;
+
+    private ConcurrentLinkedQueue<Runnable> acceptTasks = new ConcurrentLinkedQueue<Runnable>();
+
+    private Reader[] readers;
+
+    private int nextReader = 0;
+
+    /**
+     * Executor en el que se procesan los mensajes.
+     */
+    private Executor workers;
+
+    /**
+     * Canales de servidor por numero de puerto.
+     */
+    private Hashtable<Integer, ServerSocketChannel> servers;
+
+    private volatile boolean running = true;
+
+    /**
+     * Tiempo en milisegundos tras el cual se cierra una conexion sin actividad.
+     */
+    long connectionTimeout = 300000;
+
+    /**
+     * Bytes recibidos sin procesar por conexion a partir de los cuales se
+     * deja de leer de ella.
+     */
+    long maxQueued = 1024 * 1024;
+
+    /**
+     * Crea el servidor y arranca sus threads.
+     *
+     * @param ioThreads Numero de threads Reader.
+     * @param workers Executor en el que se procesan los mensajes recibidos.
+     */
+    public RaNioServer(int ioThreads, Executor workers) throws IOException{
+        this.workers = workers;
+        servers = new Hashtable<Integer, ServerSocketChannel>();
+        acceptSelector = Selector.open();
+        readers = new Reader[Math.max(1, ioThreads)];
+        for (int i = 0; i < readers.length; ++i){
+            readers[i] = new Reader(i);
+            readers[i].start();
+        }
+        new Acceptor().start();
+    }
+
+    /**
+     * Empieza a aceptar conexiones en el puerto indicado. Los mensajes
+     * que lleguen por ese puerto se entregan al receiver.
+     */
+    public void bind(int port, final RaReceiver receiver) throws IOException{
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        servers.put(port, server);
+        acceptTasks.add(new Runnable(){
+            public void run(){
+                try{
+                    server.register(acceptSelector, SelectionKey.OP_ACCEPT, receiver);
+                }
+                catch (ClosedChannelException e){
+                    System.err.println("! RaNioServer.bind: " + e);
+                }
+            }
+        });
+        acceptSelector.wakeup();
+    }
+
+    /**
+     * Deja de aceptar conexiones en el puerto indicado y cierra las que
+     * se aceptaron por el.
+     */
+    public void unbind(int port) throws IOException{
+        ServerSocketChannel server = servers.remove(port);
+        if (server != null) server.close();
+        acceptSelector.wakeup();
+        for (int i = 0; i < readers.length; ++i) readers[i].closePort(port);
+    }
+
+    /**
+     * Cierra todos los puertos y conexiones y para los threads.
+     */
+    public void shutdown(){
+        running = false;
+        for (ServerSocketChannel server : servers.values()){
+            try{
+                server.close();
+            }
+            catch (IOException e){
+                System.err.println("! RaNioServer.shutdown: " + e);
+            }
+        }
+        servers.clear();
+        acceptSelector.wakeup();
+        for (int i = 0; i < readers.length; ++i) readers[i].selector.wakeup();
+    }
+
+    /**
+     * Establece el tiempo en milisegundos tras el cual se cierra una conexion sin actividad.
+     */
+    public void setConnectionTimeout(long connectionTimeout){
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    /**
+     * Copia de un buffer a otro tantos bytes como quepan.
+     */
+    static void transfer(ByteBuffer from, ByteBuffer to){
+        int n = Math.min(from.remaining(), to.remaining());
+        int limit = from.limit();
+        from.limit(from.position() + n);
+        to.put(from);
+        from.limit(limit);
+    }
+}
@@ -0,0 +1,242 @@
+package raf.principal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import raf.messages.MessagesEv;
+
+
+/**
+ * Cola de salida de mensajes por agencia destino.
+ * Los mensajes enviados a un mismo destino dentro de una pequenia ventana
+ * de tiempo (o hasta llenar un tamanio maximo) se escriben juntos en una
+ * sola trama BATCH. Mientras se escribe un lote se van acumulando los
+ * siguientes, de modo que cada destino tiene como mucho un escritor y los
+ * mensajes salen en el orden en que se enviaron.
+ * Un mensaje AGENCYS pendiente se sustituye por uno nuevo al mismo destino,
+ * ya que solo importa la ultima lista de agencias.
+ * Los mensajes enviados con sendAsync() tienen un futuro que se completa
+ * con la confirmacion del destino.
+ */
+public class RaOutbox
+{
+    /**
+     * Mensajes pendientes hacia un destino. Tambien es la tarea que los escribe.
+     */
+    class Destination implements Runnable{
+
+        String key;
+
+        ArrayList<RaMessage> pending = new ArrayList<RaMessage>();
+
+        /**
+         * Futuro de cada mensaje pendiente, en la misma posicion, o null
+         * si el mensaje no espera confirmacion.
+         */
+        ArrayList<CompletableFuture<RaMessage>> futures = new ArrayList<CompletableFuture<RaMessage>>();
+
+        int bytes = 0;
+
+        /**
+         * Indica si hay una tarea de escritura programada o en curso.
+         */
+        boolean scheduled = false;
+
+        /**
+         * Tarea programada tras la ventana de espera, si no ha empezado.
+         */
+        ScheduledFuture<?> timer = null;
+
+        Destination(String key){
+            this.key = key;
+        }
+
+        public void run(){
+            while (true){
+                ArrayList<RaMessage> batch;
+                ArrayList<CompletableFuture<RaMessage>> batchFutures;
+                synchronized (RaOutbox.this){
+                    timer = null;
+                    if (pending.isEmpty()){
+                        scheduled = false;
+                        destinations.remove(key);
+                        return;
+                    }
+                    batch = pending;
+                    batchFutures = futures;
+                    pending = new ArrayList<RaMessage>();
+                    futures = new ArrayList<CompletableFuture<RaMessage>>();
+                    bytes = 0;
+                }
+                write(batch, batchFutures);
+            }
+        }
+    } // Destination
+
+
+    private Hashtable<String, Destination> destinations;
+
+    private ScheduledExecutorService scheduler;
+
+    private RaConnectionPool pool;
+
+    /**
+     * Milisegundos que se espera a otros mensajes antes de escribir un lote.
+     */
+    long linger = 2;
+
+    /**
+     * Tamanio aproximado en bytes a partir del cual el lote se escribe sin esperar.
+     */
+    int maxBytes = 64 * 1024;
+
+    /**
+     * Numero de mensajes a partir del cual el lote se escribe sin esperar.
+     */
+    int maxMessages = 64;
+
+    /**
+     * @param pool Pool de conexiones por el que se escriben los lotes.
+     * @param threads Numero de threads que escriben los lotes.
+     */
+    public RaOutbox(RaConnectionPool pool, int threads){
+        this.pool = pool;
+        destinations = new Hashtable<String, Destination>();
+        scheduler = new ScheduledThreadPoolExecutor(threads, new ThreadFactory(){
+            public Thread newThread(Runnable r){
+                Thread thread = new Thread(r, "RaOutbox");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Pone un mensaje en la cola de su destino.
+     */
+    public void send(RaMessage msg){
+        enqueue(msg, null);
+    }
+
+    /**
+     * Pone un mensaje en la cola de su destino y devuelve un futuro que se
+     * completa con la confirmacion del destino, o falla si no se puede enviar.
+     */
+    public CompletableFuture<RaMessage> sendAsync(RaMessage msg){
+        CompletableFuture<RaMessage> future = new CompletableFuture<RaMessage>();
+        enqueue(msg, future);
+        return future;
+    }
+
+    private void enqueue(RaMessage msg, CompletableFuture<RaMessage> future){
+        String key = RaConnectionPool.keyOf(msg.recipient);
+        synchronized (this){
+            Destination d = destinations.get(key);
+            if (d == null){
+                d = new Destination(key);
+                destinations.put(key, d);
+            }
+            if (future != null || !coalesce(d, msg)){
+                d.pending.add(msg);
+                d.futures.add(future);
+                d.bytes += sizeOf(msg);
+            }
+            boolean full = d.bytes >= maxBytes || d.pending.size() >= maxMessages;
+            if (!d.scheduled){
+                d.scheduled = true;
+                if (full || linger <= 0) scheduler.execute(d);
+                else d.timer = scheduler.schedule(d, linger, TimeUnit.MILLISECONDS);
+            }
+            else if (full && d.timer != null && d.timer.cancel(false)){
+                d.timer = null;
+                scheduler.execute(d);
+            }
+        }
+    }
+
+    /**
+     * Sustituye un AGENCYS pendiente por uno nuevo al mismo destino.
+     */
+    private boolean coalesce(Destination d, RaMessage msg){
+        if (!MessagesEv.AGENS.equals(msg.kind)) return false;
+        for (int i = d.pending.size() - 1; i >= 0; --i){
+            RaMessage old = d.pending.get(i);
+            if (MessagesEv.AGENS.equals(old.kind) && d.futures.get(i) == null){
+                d.bytes += sizeOf(msg) - sizeOf(old);
+                d.pending.set(i, msg);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int sizeOf(RaMessage msg){
+        int size = 64;
+        if (msg.binary != null) size += msg.binary.length;
+        if (msg.content != null) size += msg.content.length();
+        return size;
+    }
+
+    /**
+     * Escribe un lote: un mensaje solo va en su propia trama, varios en una trama BATCH.
+     */
+    private void write(ArrayList<RaMessage> batch, ArrayList<CompletableFuture<RaMessage>> futures){
+        RaMessage first = batch.get(0);
+        boolean async = false;
+        for (CompletableFuture<RaMessage> future : futures) async |= (future != null);
+        try{
+            if (!async){
+                if (batch.size() == 1) pool.send(first);
+                else pool.send(batch);
+            }
+            else if (batch.size() == 1){
+                pool.sendAsync(first).whenComplete(new RaConnection.Relay(futures.get(0)));
+            }
+            else pool.sendAsync(batch, futures);
+        }
+        catch (IOException e){
+            System.err.println("! RaOutbox: no se han podido enviar " + batch.size()
+                               + " mensajes a " + first.recipient + ": " + e);
+            for (CompletableFuture<RaMessage> future : futures){
+                if (future != null) future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Establece la ventana de espera y los limites de un lote.
+     */
+    public void setBatching(long linger, int maxBytes, int maxMessages){
+        this.linger = linger;
+        this.maxBytes = maxBytes;
+        this.maxMessages = maxMessages;
+    }
+
+    /**
+     * Espera a que se escriban los mensajes pendientes y para los threads.
+     */
+    public void shutdown(){
+        synchronized (this){
+            for (Destination d : destinations.values()){
+                if (d.timer != null && d.timer.cancel(false)){
+                    d.timer = null;
+                    scheduler.execute(d);
+                }
+            }
+        }
+        scheduler.shutdown();
+        try{
+            scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e){
+            System.err.println("! RaOutbox.shutdown: " + e);
+        }
+    }
+}
@@ -1,11 +1,100 @@
 package raf.principal;
 
 import java.io.*;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 
 public class RaOutputStream extends ObjectOutputStream
 {
+    /**
+     * Clases de los objetos escritos, en orden, o null si no se anotan.
+     */
+    private LinkedHashSet<Class<?>> classes = null;
+
+    /**
+     * Si los agentes se escriben con RaSerializer.
+     */
+    private boolean fastAgents = false;
+
+    /**
+     * Agentes que esta escribiendo RaSerializer, con su posicion.
+     */
+    private IdentityHashMap<Object, Integer> agents = null;
+
     public RaOutputStream(OutputStream in) throws IOException{
         super(in);
     }
-}
\ No newline at end of file
+
+    /**
+     * @param recordClasses Si se anotan las clases de los objetos escritos,
+     * para enviar su bytecode junto con el agente.
+     */
+    public RaOutputStream(OutputStream in, boolean recordClasses) throws IOException{
+        super(in);
+        if (recordClasses) classes = new LinkedHashSet<Class<?>>();
+    }
+
+    protected void annotateClass(Class<?> cl) throws IOException{
+        if (classes != null) classes.add(cl);
+    }
+
+    /**
+     * Anota una clase escrita sin descriptor, por RaSerializer.
+     */
+    void record(Class<?> cl){
+        if (classes != null) classes.add(cl);
+    }
+
+    /**
+     * Establece si writeAgent() usa RaSerializer.
+     */
+    public void setFastAgents(boolean fastAgents){
+        this.fastAgents = fastAgents;
+    }
+
+    /**
+     * Escribe un agente o un grupo de agentes: con RaSerializer si esta
+     * activado y sus clases lo permiten, o con writeObject().
+     */
+    public void writeAgent(Object agent) throws IOException{
+        if (fastAgents && RaSerializer.write(this, agent)) return;
+        writeObject(agent);
+    }
+
+    /**
+     * Empieza a sustituir las referencias a los agentes por AgentRef.
+     *
+     * @return false si no se pueden sustituir objetos en este stream.
+     */
+    boolean beginAgents(IdentityHashMap<Object, Integer> agents){
+        try {
+            enableReplaceObject(true);
+        }
+        catch (SecurityException e){
+            return false;
+        }
+        this.agents = agents;
+        return true;
+    }
+
+    void endAgents(){
+        agents = null;
+    }
+
+    protected Object replaceObject(Object obj) throws IOException{
+        if (agents != null){
+            Integer i = agents.get(obj);
+            if (i != null) return new RaSerializer.AgentRef(i.intValue());
+        }
+        return obj;
+    }
+
+    /**
+     * Devuelve las clases de los objetos escritos hasta ahora.
+     */
+    public Set<Class<?>> getClasses(){
+        return classes;
+    }
+}
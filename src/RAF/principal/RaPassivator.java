@@ -0,0 +1,134 @@
+package raf.principal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+
+/**
+ * Thread que pasiva los agentes de una agencia y los despierta.
+ *
+ * Cada cierto tiempo recorre los agentes y:
+ * <ul>
+ * <li>despierta los agentes pasivados cuya hora de despertar ha pasado, o
+ *     que tienen mensajes en el buzon;</li>
+ * <li>pasiva los agentes que han pedido dormir y los que llevan mas de
+ *     idleTimeout milisegundos sin usarse;</li>
+ * <li>si los agentes residentes ocupan mas de budget bytes, pasiva los
+ *     usados hace mas tiempo hasta bajar del limite.</li>
+ * </ul>
+ * Solo se pasivan agentes cuyo run() ha terminado y con el buzon vacio.
+ */
+public class RaPassivator extends Thread
+{
+    /**
+     * Agente residente que se puede pasivar, con el momento de su ultimo uso
+     * fijado al recorrerlos.
+     */
+    static class Candidate{
+        RaBox box;
+        long lastUsed;
+
+        Candidate(RaBox box){
+            this.box = box;
+            lastUsed = box.lastUsed;
+        }
+    } // Candidate
+
+    /**
+     * Tamanio supuesto de un agente cuyo tamanio serializado no se conoce.
+     */
+    static final long DEFAULT_SIZE = 4096;
+
+    private RaAgency agency;
+
+    /**
+     * Bytes que pueden ocupar los agentes residentes, 0 sin limite.
+     */
+    long budget;
+
+    /**
+     * Milisegundos sin usarse tras los que se pasiva un agente, 0 nunca.
+     */
+    long idleTimeout;
+
+    /**
+     * Cada cuanto tiempo en milisegundos se recorren los agentes.
+     */
+    long interval = 1000;
+
+    private volatile boolean running = true;
+
+    public RaPassivator(RaAgency agency, long budget, long idleTimeout){
+        super("RaPassivator");
+        setDaemon(true);
+        this.agency = agency;
+        this.budget = budget;
+        this.idleTimeout = idleTimeout;
+    }
+
+    public void run(){
+        while (running){
+            try {
+                Thread.sleep(interval);
+            }
+            catch (InterruptedException e){
+                if (!running) return;
+            }
+            try {
+                sweep();
+            }
+            catch (RuntimeException e){
+                System.err.println("! RaPassivator: " + e);
+            }
+        }
+    }
+
+    /**
+     * Para el thread.
+     */
+    public void shutdown(){
+        running = false;
+        interrupt();
+    }
+
+    /**
+     * Recorre los agentes una vez.
+     */
+    void sweep(){
+        long now = System.currentTimeMillis();
+        long used = 0;
+        ArrayList<Candidate> candidates = new ArrayList<Candidate>();
+
+        for (RaBox box : agency.boxes.snapshot()){
+            if (box.ra == null){
+                if ((box.wakeAt > 0 && box.wakeAt <= now) || !box.mailbox.isEmpty()) agency.activate(box);
+                continue;
+            }
+            long size = sizeOf(box);
+            if (box.sleeping || (idleTimeout > 0 && now - box.lastUsed > idleTimeout)){
+                if (agency.passivate(box)) continue;
+            }
+            used += size;
+            candidates.add(new Candidate(box));
+        }
+
+        if (budget <= 0 || used <= budget) return;
+
+        // los usados hace mas tiempo salen primero
+        Collections.sort(candidates, new Comparator<Candidate>(){
+            public int compare(Candidate a, Candidate b){
+                return (a.lastUsed < b.lastUsed) ? -1 : (a.lastUsed == b.lastUsed ? 0 : 1);
+            }
+        });
+        for (Candidate c : candidates){
+            if (used <= budget) break;
+            long size = sizeOf(c.box);
+            if (agency.passivate(c.box)) used -= size;
+        }
+    }
+
+    static long sizeOf(RaBox box){
+        return (box.size > 0) ? box.size : DEFAULT_SIZE;
+    }
+}
@@ -0,0 +1,20 @@
+package raf.principal;
+
+import java.net.InetAddress;
+
+
+/**
+ * Interfaz de los objetos que procesan los mensajes recibidos por la red,
+ * ya sea desde un ReceiveMessageThread o desde el RaNioServer.
+ */
+public interface RaReceiver
+{
+    /**
+     * Procesa un mensaje recibido.
+     *
+     * @param msg El mensaje recibido.
+     * @param address Direccion desde la que llego el mensaje.
+     * @param channel Conexion por la que se pueden enviar respuestas.
+     */
+    public void receive(RaMessage msg, InetAddress address, RaChannel channel);
+}
@@ -0,0 +1,182 @@
+package raf.principal;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+
+/**
+ * Registro de los agentes de una agencia.
+ * Las busquedas por nombre no bloquean. Ademas del indice por nombre se
+ * mantienen indices por clase del agente, por host desde el que llego y por
+ * momento de llegada, para consultar y tratar grupos de agentes sin
+ * recorrerlos todos. Las altas y bajas se serializan entre si para que los
+ * indices y las copias devueltas por snapshot() sean coherentes.
+ */
+public class RaRegistry
+{
+    /**
+     * Entrada del indice por momento de llegada, ordenada por tiempo y nombre.
+     */
+    static class Arrival implements Comparable<Arrival>{
+
+        long time;
+        String name;
+
+        Arrival(long time, String name){
+            this.time = time;
+            this.name = name;
+        }
+
+        public int compareTo(Arrival other){
+            if (time != other.time) return (time < other.time) ? -1 : 1;
+            return name.compareTo(other.name);
+        }
+
+        public boolean equals(Object o){
+            return (o instanceof Arrival) && compareTo((Arrival) o) == 0;
+        }
+
+        public int hashCode(){
+            return name.hashCode() ^ (int) time;
+        }
+    } // Arrival
+
+
+    private ConcurrentHashMap<String, RaBox> byName = new ConcurrentHashMap<String, RaBox>();
+
+    private ConcurrentHashMap<String, Set<String>> byClass = new ConcurrentHashMap<String, Set<String>>();
+
+    private ConcurrentHashMap<String, Set<String>> byHost = new ConcurrentHashMap<String, Set<String>>();
+
+    private ConcurrentSkipListSet<Arrival> byArrival = new ConcurrentSkipListSet<Arrival>();
+
+    /**
+     * Devuelve la caja del agente, o null.
+     */
+    public RaBox get(String name){
+        return byName.get(name);
+    }
+
+    /**
+     * Registra un agente. Si ya habia uno con el mismo nombre se sustituye.
+     */
+    public synchronized void put(RaBox box){
+        RaBox old = byName.put(box.name, box);
+        if (old != null) unindex(old);
+        index(box);
+    }
+
+    /**
+     * Borra el agente con ese nombre y devuelve su caja, o null.
+     */
+    public synchronized RaBox remove(String name){
+        RaBox box = byName.remove(name);
+        if (box != null) unindex(box);
+        return box;
+    }
+
+    /**
+     * Borra la caja solo si sigue registrada con ese nombre.
+     *
+     * @return true si se ha borrado.
+     */
+    public synchronized boolean remove(String name, RaBox box){
+        if (!byName.remove(name, box)) return false;
+        unindex(box);
+        return true;
+    }
+
+    public int size(){
+        return byName.size();
+    }
+
+    /**
+     * Copia de las cajas registradas en este momento.
+     */
+    public synchronized List<RaBox> snapshot(){
+        return new ArrayList<RaBox>(byName.values());
+    }
+
+    /**
+     * Copia de los nombres de los agentes registrados en este momento.
+     */
+    public synchronized List<String> names(){
+        return new ArrayList<String>(byName.keySet());
+    }
+
+    /**
+     * Agentes de la clase indicada (nombre completo de la clase).
+     */
+    public List<RaBox> byClass(String className){
+        return lookup(byClass.get(className));
+    }
+
+    /**
+     * Agentes que llegaron desde el host indicado; null para los creados aqui.
+     */
+    public List<RaBox> bySendingHost(InetAddress host){
+        return lookup(byHost.get(hostKey(host)));
+    }
+
+    /**
+     * Agentes que llegaron o se crearon entre from (incluido) y to (excluido),
+     * en orden de llegada.
+     */
+    public List<RaBox> arrivedBetween(Date from, Date to){
+        ArrayList<RaBox> result = new ArrayList<RaBox>();
+        for (Arrival a : byArrival.subSet(new Arrival(from.getTime(), ""), new Arrival(to.getTime(), ""))){
+            RaBox box = byName.get(a.name);
+            if (box != null && box.timeOfArrival.getTime() == a.time) result.add(box);
+        }
+        return result;
+    }
+
+    private List<RaBox> lookup(Set<String> names){
+        ArrayList<RaBox> result = new ArrayList<RaBox>();
+        if (names == null) return result;
+        for (String name : names){
+            RaBox box = byName.get(name);
+            if (box != null) result.add(box);
+        }
+        return result;
+    }
+
+    private void index(RaBox box){
+        String name = box.name;
+        add(byClass, box.className, name);
+        add(byHost, hostKey(box.sendingHost), name);
+        byArrival.add(new Arrival(box.timeOfArrival.getTime(), name));
+    }
+
+    private void unindex(RaBox box){
+        String name = box.name;
+        remove(byClass, box.className, name);
+        remove(byHost, hostKey(box.sendingHost), name);
+        byArrival.remove(new Arrival(box.timeOfArrival.getTime(), name));
+    }
+
+    private static void add(ConcurrentHashMap<String, Set<String>> index, String key, String name){
+        Set<String> names = index.get(key);
+        if (names == null){
+            names = ConcurrentHashMap.<String>newKeySet();
+            index.put(key, names);
+        }
+        names.add(name);
+    }
+
+    private static void remove(ConcurrentHashMap<String, Set<String>> index, String key, String name){
+        Set<String> names = index.get(key);
+        if (names == null) return;
+        names.remove(name);
+        if (names.isEmpty()) index.remove(key);
+    }
+
+    private static String hostKey(InetAddress host){
+        return (host == null) ? "" : host.getHostAddress();
+    }
+}
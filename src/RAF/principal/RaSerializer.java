@@ -0,0 +1,348 @@
+package raf.principal;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
+
+/**
+ * Serializacion rapida de los agentes (subclases de Ra).
+ *
+ * En lugar de describir la clase del agente y recorrer sus campos por
+ * reflexion en cada envio, se calcula una vez por clase una disposicion de
+ * sus campos con MethodHandles que los leen y escriben. El agente se
+ * escribe en el mismo RaOutputStream como una marca, el nombre de su clase
+ * y sus campos uno detras de otro: los primitivos tal cual y el resto con
+ * writeObject(), es decir, con la serializacion de Java. Las referencias a
+ * los agentes que se estan escribiendo se sustituyen por AgentRef, de modo
+ * que los ciclos y las referencias entre los agentes de un grupo se
+ * conservan.
+ *
+ * Las clases con writeObject, readObject, writeReplace, readResolve o
+ * serialPersistentFields, o que no se pueden tratar asi, se escriben con
+ * la serializacion de Java. RaInputStream.readAgent() lee los dos formatos.
+ */
+public class RaSerializer
+{
+    /**
+     * Marca con la que empieza un agente escrito con RaSerializer.
+     */
+    static final String MAGIC = "raf.principal.RaSerializer/1";
+
+    /**
+     * Referencia, dentro del stream, a uno de los agentes que se estan
+     * escribiendo.
+     */
+    static class AgentRef implements Serializable{
+        private static final long serialVersionUID = 1L;
+
+        int index;
+
+        AgentRef(int index){
+            this.index = index;
+        }
+    } // AgentRef
+
+    /**
+     * Disposicion de los campos de una clase de agente.
+     */
+    static class Layout{
+        /**
+         * false si la clase se escribe con la serializacion de Java.
+         */
+        boolean fast = false;
+
+        /**
+         * Crea instancias sin llamar a los constructores de las clases
+         * serializables, como la serializacion de Java.
+         */
+        Constructor<?> allocator;
+
+        /**
+         * Tipo de cada campo: el descriptor del primitivo o 'L'.
+         */
+        char[] kinds;
+
+        MethodHandle[] getters;
+        MethodHandle[] setters;
+
+        /**
+         * Hash de los nombres y tipos de los campos; el destino lo compara
+         * con el suyo para no leer con otra disposicion.
+         */
+        int fingerprint;
+    } // Layout
+
+    private static final ClassValue<Layout> layouts = new ClassValue<Layout>(){
+        protected Layout computeValue(Class<?> cl){
+            Layout layout = new Layout();
+            try {
+                if (canLayout(cl)) build(cl, layout);
+            }
+            catch (Exception e){
+                layout.fast = false;
+                System.err.println ("RaSerializer: " + cl.getName() + " se serializa con Java: " + e);
+            }
+            return layout;
+        }
+    };
+
+    /**
+     * newConstructorForSerialization() de sun.reflect.ReflectionFactory, o
+     * null si esta maquina virtual no lo tiene.
+     */
+    private static Object reflectionFactory;
+    private static Method newConstructorForSerialization;
+
+    static {
+        try {
+            Class<?> rf = Class.forName("sun.reflect.ReflectionFactory");
+            reflectionFactory = rf.getMethod("getReflectionFactory").invoke(null);
+            newConstructorForSerialization = rf.getMethod("newConstructorForSerialization",
+                                                          Class.class, Constructor.class);
+        }
+        catch (Exception e){
+            System.err.println ("RaSerializer: no disponible, se usa la serializacion de Java: " + e);
+        }
+    }
+
+    /**
+     * Indica si los agentes de una clase se escriben con RaSerializer.
+     */
+    public static boolean isFast(Class<?> cl){
+        return layouts.get(cl).fast;
+    }
+
+    private static boolean canLayout(Class<?> cl){
+        if (newConstructorForSerialization == null || !Ra.class.isAssignableFrom(cl)) return false;
+        if (Externalizable.class.isAssignableFrom(cl) || cl.isAnonymousClass() || cl.isLocalClass()) return false;
+        for (Class<?> c = cl; c != null && Serializable.class.isAssignableFrom(c); c = c.getSuperclass()){
+            if (declares(c, "writeObject", ObjectOutputStream.class) || declares(c, "readObject", ObjectInputStream.class)
+                || declares(c, "readObjectNoData") || declares(c, "writeReplace") || declares(c, "readResolve"))
+                return false;
+            try {
+                c.getDeclaredField("serialPersistentFields");
+                return false;
+            }
+            catch (NoSuchFieldException e){
+            }
+        }
+        return true;
+    }
+
+    private static boolean declares(Class<?> c, String name, Class<?>... params){
+        try {
+            c.getDeclaredMethod(name, params);
+            return true;
+        }
+        catch (NoSuchMethodException e){
+            return false;
+        }
+    }
+
+    private static void build(Class<?> cl, Layout layout) throws Exception{
+        // campos de las clases serializables, de la superclase a la clase
+        ArrayList<Class<?>> hierarchy = new ArrayList<Class<?>>();
+        Class<?> ns = cl;
+        for (; ns != null && Serializable.class.isAssignableFrom(ns); ns = ns.getSuperclass()) hierarchy.add(0, ns);
+
+        ArrayList<Field> fields = new ArrayList<Field>();
+        for (Class<?> c : hierarchy){
+            Field[] declared = c.getDeclaredFields();
+            Arrays.sort(declared, new Comparator<Field>(){
+                public int compare(Field a, Field b){
+                    return a.getName().compareTo(b.getName());
+                }
+            });
+            for (Field f : declared){
+                int m = f.getModifiers();
+                if (!Modifier.isStatic(m) && !Modifier.isTransient(m)) fields.add(f);
+            }
+        }
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        int n = fields.size();
+        layout.kinds = new char[n];
+        layout.getters = new MethodHandle[n];
+        layout.setters = new MethodHandle[n];
+        int fingerprint = cl.getName().hashCode();
+        for (int i = 0; i < n; ++i){
+            Field f = fields.get(i);
+            f.setAccessible(true);
+            Class<?> type = f.getType();
+            Class<?> t = type.isPrimitive() ? type : Object.class;
+            layout.kinds[i] = type.isPrimitive() ? descriptor(type) : 'L';
+            layout.getters[i] = lookup.unreflectGetter(f).asType(MethodType.methodType(t, Object.class));
+            layout.setters[i] = lookup.unreflectSetter(f).asType(MethodType.methodType(void.class, Object.class, t));
+            fingerprint = 31 * fingerprint + (f.getDeclaringClass().getName() + "." + f.getName() + ":" + type.getName()).hashCode();
+        }
+        layout.fingerprint = fingerprint;
+
+        Constructor<?> c = (Constructor<?>) newConstructorForSerialization.invoke(reflectionFactory, cl,
+                                                                              ns.getDeclaredConstructor());
+        c.setAccessible(true);
+        layout.allocator = c;
+        layout.fast = true;
+    }
+
+    private static char descriptor(Class<?> p){
+        if (p == int.class) return 'I';
+        if (p == long.class) return 'J';
+        if (p == boolean.class) return 'Z';
+        if (p == byte.class) return 'B';
+        if (p == char.class) return 'C';
+        if (p == short.class) return 'S';
+        if (p == float.class) return 'F';
+        return 'D';
+    }
+
+    /**
+     * Escribe un agente, o un grupo (un array de agentes), si todas sus
+     * clases se pueden escribir con RaSerializer.
+     *
+     * @return false si no se ha escrito nada y hay que usar writeObject().
+     */
+    static boolean write(RaOutputStream out, Object object) throws IOException{
+        boolean group = object instanceof Object[];
+        Object[] agents = group ? (Object[]) object : new Object[] { object };
+        Layout[] ls = new Layout[agents.length];
+        for (int i = 0; i < agents.length; ++i){
+            if (agents[i] == null) return false;
+            ls[i] = layouts.get(agents[i].getClass());
+            if (!ls[i].fast) return false;
+        }
+
+        IdentityHashMap<Object, Integer> index = new IdentityHashMap<Object, Integer>();
+        for (int i = 0; i < agents.length; ++i) index.put(agents[i], i);
+        if (!out.beginAgents(index)) return false;
+        try {
+            out.writeObject(MAGIC);
+            out.writeBoolean(group);
+            if (group) out.writeUTF(object.getClass().getComponentType().getName());
+            out.writeInt(agents.length);
+            for (int i = 0; i < agents.length; ++i){
+                out.writeUTF(agents[i].getClass().getName());
+                out.writeInt(ls[i].fingerprint);
+                out.record(agents[i].getClass());
+            }
+            for (int i = 0; i < agents.length; ++i) writeFields(out, agents[i], ls[i]);
+        }
+        finally {
+            out.endAgents();
+        }
+        return true;
+    }
+
+    private static void writeFields(RaOutputStream out, Object o, Layout l) throws IOException{
+        MethodHandle[] g = l.getters;
+        try {
+            for (int i = 0; i < g.length; ++i){
+                switch (l.kinds[i]){
+                    case 'I': out.writeInt((int) g[i].invokeExact(o)); break;
+                    case 'J': out.writeLong((long) g[i].invokeExact(o)); break;
+                    case 'Z': out.writeBoolean((boolean) g[i].invokeExact(o)); break;
+                    case 'B': out.writeByte((byte) g[i].invokeExact(o)); break;
+                    case 'C': out.writeChar((char) g[i].invokeExact(o)); break;
+                    case 'S': out.writeShort((short) g[i].invokeExact(o)); break;
+                    case 'F': out.writeFloat((float) g[i].invokeExact(o)); break;
+                    case 'D': out.writeDouble((double) g[i].invokeExact(o)); break;
+                    default:  out.writeObject((Object) g[i].invokeExact(o));
+                }
+            }
+        }
+        catch (IOException e){
+            throw e;
+        }
+        catch (RuntimeException e){
+            throw e;
+        }
+        catch (Error e){
+            throw e;
+        }
+        catch (Throwable t){
+            throw new IOException("RaSerializer: " + t);
+        }
+    }
+
+    /**
+     * Lee un agente, o un grupo, escrito con write(). La marca ya se ha
+     * leido.
+     */
+    static Object read(RaInputStream in) throws IOException, ClassNotFoundException{
+        boolean group = in.readBoolean();
+        Class<?> component = group ? Class.forName(in.readUTF(), false, in.loader) : null;
+        int n = in.readInt();
+        Object[] agents = new Object[n];
+        Layout[] ls = new Layout[n];
+        for (int i = 0; i < n; ++i){
+            String name = in.readUTF();
+            int fingerprint = in.readInt();
+            Class<?> cl = Class.forName(name, false, in.loader);
+            ls[i] = layouts.get(cl);
+            if (!ls[i].fast || ls[i].fingerprint != fingerprint)
+                throw new InvalidClassException(name, "los campos no coinciden con los del agente enviado");
+            try {
+                agents[i] = ls[i].allocator.newInstance();
+            }
+            catch (Exception e){
+                throw new InvalidClassException(name, "no se puede crear el agente: " + e);
+            }
+        }
+
+        in.beginAgents(agents);
+        try {
+            for (int i = 0; i < n; ++i) readFields(in, agents[i], ls[i]);
+        }
+        finally {
+            in.endAgents();
+        }
+        if (!group) return agents[0];
+        Object array = Array.newInstance(component, n);
+        for (int i = 0; i < n; ++i) Array.set(array, i, agents[i]);
+        return array;
+    }
+
+    private static void readFields(RaInputStream in, Object o, Layout l) throws IOException, ClassNotFoundException{
+        MethodHandle[] s = l.setters;
+        try {
+            for (int i = 0; i < s.length; ++i){
+                switch (l.kinds[i]){
+                    case 'I': s[i].invokeExact(o, in.readInt()); break;
+                    case 'J': s[i].invokeExact(o, in.readLong()); break;
+                    case 'Z': s[i].invokeExact(o, in.readBoolean()); break;
+                    case 'B': s[i].invokeExact(o, in.readByte()); break;
+                    case 'C': s[i].invokeExact(o, in.readChar()); break;
+                    case 'S': s[i].invokeExact(o, in.readShort()); break;
+                    case 'F': s[i].invokeExact(o, in.readFloat()); break;
+                    case 'D': s[i].invokeExact(o, in.readDouble()); break;
+                    default:  s[i].invokeExact(o, in.readObject());
+                }
+            }
+        }
+        catch (IOException e){
+            throw e;
+        }
+        catch (ClassNotFoundException e){
+            throw e;
+        }
+        catch (RuntimeException e){
+            throw e;
+        }
+        catch (Error e){
+            throw e;
+        }
+        catch (Throwable t){
+            throw new IOException("RaSerializer: " + t);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package raf.principal;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+
+/**
+ * Ultima version serializada de los agentes que han salido de la agencia,
+ * para que al volver el emisor solo tenga que enviar las diferencias
+ * (RaDelta). Cada version se identifica por el hash de sus bytes.
+ *
+ * Se guarda una version por agente. Si entre todas ocupan mas de budget
+ * bytes se descartan las usadas hace mas tiempo, y las que tienen mas de
+ * maxAge milisegundos se descartan al buscarlas.
+ */
+public class RaSnapshots
+{
+    /**
+     * Version guardada de un agente.
+     */
+    static class Snapshot{
+        String id;
+        byte[] data;
+        long time;
+
+        private byte[] signature;
+
+        Snapshot(byte[] data){
+            this.data = data;
+            id = ClassManager.hash(data);
+            time = System.currentTimeMillis();
+        }
+
+        /**
+         * Firma de la version (RaDelta), calculada la primera vez que se pide.
+         */
+        byte[] signature() throws IOException{
+            if (signature == null) signature = RaDelta.signature(data);
+            return signature;
+        }
+    } // Snapshot
+
+    /**
+     * Versiones por nombre del agente, de la usada hace mas tiempo a la ultima.
+     */
+    private LinkedHashMap<String, Snapshot> snapshots = new LinkedHashMap<String, Snapshot>(16, 0.75f, true);
+
+    /**
+     * Bytes que pueden ocupar las versiones (0 sin limite) y milisegundos
+     * que se guardan (0 sin limite).
+     */
+    private long budget;
+    private long maxAge;
+
+    private long used = 0;
+
+    private int hits = 0;
+    private int misses = 0;
+    private int evictions = 0;
+
+    public RaSnapshots(long budget, long maxAge){
+        this.budget = budget;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Guarda la version de un agente que ha salido, en lugar de la anterior.
+     */
+    public synchronized void put(String name, byte[] data){
+        Snapshot old = snapshots.put(name, new Snapshot(data));
+        if (old != null) used -= old.data.length;
+        used += data.length;
+        // las primeras son las usadas hace mas tiempo
+        for (Iterator<Snapshot> i = snapshots.values().iterator(); budget > 0 && used > budget && i.hasNext();){
+            Snapshot s = i.next();
+            i.remove();
+            used -= s.data.length;
+            evictions++;
+        }
+    }
+
+    /**
+     * Devuelve la version guardada de un agente, o null.
+     */
+    synchronized Snapshot get(String name){
+        Snapshot s = snapshots.get(name);
+        if (s != null && maxAge > 0 && System.currentTimeMillis() - s.time > maxAge){
+            snapshots.remove(name);
+            used -= s.data.length;
+            evictions++;
+            return null;
+        }
+        return s;
+    }
+
+    /**
+     * Devuelve los bytes de la version de un agente con ese id, o null si
+     * ya no se tiene.
+     */
+    public synchronized byte[] get(String name, String id){
+        Snapshot s = get(name);
+        if (s == null || !s.id.equals(id)){
+            misses++;
+            return null;
+        }
+        hits++;
+        return s.data;
+    }
+
+    /**
+     * Descarta la version de un agente.
+     */
+    public synchronized void remove(String name){
+        Snapshot s = snapshots.remove(name);
+        if (s != null) used -= s.data.length;
+    }
+
+    public synchronized int size(){
+        return snapshots.size();
+    }
+
+    public synchronized long bytes(){
+        return used;
+    }
+
+    public synchronized String toString(){
+        return "RaSnapshots: " + snapshots.size() + " agentes, " + used + " bytes, aciertos=" + hits
+            + " fallos=" + misses + " descartes=" + evictions;
+    }
+}
@@ -0,0 +1,79 @@
+package raf.principal;
+
+import java.io.*;
+import java.net.URLEncoder;
+
+
+/**
+ * Almacen en disco de los agentes pasivados de una agencia. Cada agente se
+ * guarda serializado en un fichero del directorio, con su nombre codificado
+ * para que sea un nombre de fichero valido.
+ */
+public class RaStore
+{
+    private File dir;
+
+    /**
+     * @param dir Directorio del almacen; se crea si no existe.
+     */
+    public RaStore(File dir) throws IOException{
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("No se puede crear el directorio " + dir);
+    }
+
+    private File fileOf(String name) throws IOException{
+        return new File(dir, URLEncoder.encode(name, "UTF-8") + ".ra");
+    }
+
+    /**
+     * Guarda los bytes de un agente. Se escriben primero en un fichero
+     * temporal para no dejar nunca un agente a medio escribir.
+     */
+    public void write(String name, byte[] data) throws IOException{
+        write(name, data, 0, data.length);
+    }
+
+    public void write(String name, byte[] data, int off, int len) throws IOException{
+        File file = fileOf(name);
+        File tmp = new File(dir, file.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try{
+            out.write(data, off, len);
+            out.getFD().sync();
+        }
+        finally{
+            out.close();
+        }
+        if (file.exists()) file.delete();
+        if (!tmp.renameTo(file)) throw new IOException("No se puede guardar el agente " + name);
+    }
+
+    /**
+     * Lee los bytes de un agente guardado.
+     */
+    public byte[] read(String name) throws IOException{
+        File file = fileOf(name);
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try{
+            in.readFully(data);
+        }
+        finally{
+            in.close();
+        }
+        return data;
+    }
+
+    /**
+     * Borra un agente guardado.
+     */
+    public void delete(String name){
+        try{
+            fileOf(name).delete();
+        }
+        catch (IOException e){
+            System.err.println("! RaStore.delete: " + e);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package raf.principal;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import raf.messages.MessagesEv;
+
+
+/**
+ * Envio de un agente por trozos (mensajes RA_STREAM), sin montar nunca el
+ * agente serializado entero en memoria.
+ *
+ * El emisor serializa el agente sobre un Output, que envia un RA_STREAM
+ * por la conexion cada vez que llena un trozo. El destino mete cada trozo
+ * en un Input, del que un thread va leyendo el agente segun llegan. Cada
+ * transferencia ocupa una conexion hasta que termina, asi que sus trozos
+ * llegan en orden y el destino los asocia por la conexion.
+ *
+ * <pre>
+ * content "0 version"   primer trozo, con la version del codigo del emisor
+ * content "n"           trozo n
+ * content "n", sin binary   fin del agente; lleva id y se confirma con
+ *                           ACK cuando el agente se ha leido entero
+ * </pre>
+ */
+public class RaStream
+{
+    /**
+     * Tamanio por defecto de los trozos.
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Trozos que el destino guarda de cada transferencia mientras se leen;
+     * si se llenan deja de leer de la conexion.
+     */
+    static final int WINDOW = 4;
+
+    /**
+     * Tiempo maximo en milisegundos de espera de un trozo, o de sitio
+     * para guardarlo.
+     */
+    static final long TIMEOUT = 30000;
+
+    /**
+     * Transferencias que se escriben a la vez; las demas esperan su turno.
+     */
+    static final int WRITERS = 4;
+
+    private static ExecutorService writers = null;
+
+    /**
+     * Threads que escriben las transferencias, para que quien envia el
+     * agente no espere a las confirmaciones de los trozos.
+     */
+    static synchronized ExecutorService writers(){
+        if (writers == null){
+            writers = Executors.newFixedThreadPool(WRITERS, new ThreadFactory(){
+                public Thread newThread(Runnable r){
+                    Thread thread = new Thread(r, "RaStream");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return writers;
+    }
+
+    /**
+     * Envia lo que se escribe en trozos RA_STREAM por una conexion.
+     */
+    static class Output extends OutputStream{
+
+        private RaConnection connection;
+        private RaAddress sender;
+        private RaAddress recipient;
+        private String codeVersion;
+
+        private byte[] buf;
+        private int count = 0;
+        private int seq = 0;
+
+        /**
+         * Bytes enviados.
+         */
+        long sent = 0;
+
+        Output(RaConnection connection, RaAddress sender, RaAddress recipient, String codeVersion, int chunkSize){
+            this.connection = connection;
+            this.sender = sender;
+            this.recipient = recipient;
+            this.codeVersion = codeVersion;
+            buf = new byte[Math.max(1024, chunkSize)];
+        }
+
+        public void write(int b) throws IOException{
+            if (count == buf.length) chunk(buf);
+            buf[count++] = (byte) b;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException{
+            while (len > 0){
+                if (count == buf.length) chunk(buf);
+                int n = Math.min(len, buf.length - count);
+                System.arraycopy(b, off, buf, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * No envia nada: los trozos solo salen llenos o con finish().
+         */
+        public void flush(){
+        }
+
+        /**
+         * Envia un trozo. El array se puede reutilizar al volver, porque
+         * la trama ya se ha escrito en la conexion.
+         */
+        private void chunk(byte[] data) throws IOException{
+            String content = (seq == 0) ? ((codeVersion == null) ? "0" : "0 " + codeVersion)
+                                        : Integer.toString(seq);
+            connection.send(new RaMessage(sender, recipient, MessagesEv.RA_STREAM, content, data));
+            ++seq;
+            sent += count;
+            count = 0;
+        }
+
+        /**
+         * Envia el ultimo trozo y el fin del agente. El futuro se completa
+         * con la confirmacion del destino.
+         */
+        CompletableFuture<RaMessage> finish() throws IOException{
+            if (count > 0 || seq == 0) chunk(Arrays.copyOf(buf, count));
+            buf = null;
+            return connection.sendAsync(new RaMessage(sender, recipient, MessagesEv.RA_STREAM,
+                                                      Integer.toString(seq), null));
+        }
+    } // Output
+
+    /**
+     * Trozos recibidos de una transferencia, leidos como un stream.
+     */
+    static class Input extends InputStream{
+
+        private static final byte[] END = new byte[0];
+
+        private ArrayBlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(WINDOW);
+
+        private byte[] current = null;
+        private int pos = 0;
+        private boolean ended = false;
+        private volatile boolean closed = false;
+
+        /**
+         * Si se ha dejado de esperar un trozo que no llegaba.
+         */
+        volatile boolean expired = false;
+
+        /**
+         * Guarda un trozo; espera si ya hay WINDOW sin leer. Si el stream
+         * se ha cerrado el trozo se descarta.
+         */
+        void offer(byte[] chunk) throws IOException{
+            try{
+                if (!closed && !chunks.offer(chunk, TIMEOUT, TimeUnit.MILLISECONDS) && !closed)
+                    throw new IOException("RaStream: el agente no se lee");
+            }
+            catch (InterruptedException e){
+                throw new InterruptedIOException(e.toString());
+            }
+        }
+
+        void end() throws IOException{
+            offer(END);
+        }
+
+        private boolean next() throws IOException{
+            if (ended || closed) return false;
+            try{
+                byte[] chunk = chunks.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+                if (chunk == null){
+                    expired = true;
+                    throw new IOException("RaStream: transferencia incompleta");
+                }
+                if (chunk == END){
+                    ended = true;
+                    return false;
+                }
+                current = chunk;
+                pos = 0;
+                return true;
+            }
+            catch (InterruptedException e){
+                throw new InterruptedIOException(e.toString());
+            }
+        }
+
+        public int read() throws IOException{
+            while (current == null || pos == current.length){
+                if (!next()) return -1;
+            }
+            return current[pos++] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException{
+            if (len == 0) return 0;
+            while (current == null || pos == current.length){
+                if (!next()) return -1;
+            }
+            int n = Math.min(len, current.length - pos);
+            System.arraycopy(current, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        public int available(){
+            return (current == null) ? 0 : current.length - pos;
+        }
+
+        /**
+         * Descarta los trozos pendientes y los que lleguen despues.
+         */
+        public void close(){
+            closed = true;
+            current = null;
+            chunks.clear();
+        }
+    } // Input
+}
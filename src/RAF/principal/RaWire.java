@@ -0,0 +1,260 @@
+package raf.principal;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import raf.messages.MessagesEv;
+
+
+/**
+ * Formato de los mensajes en la red.
+ * Cada RaMessage viaja en una trama: un entero con la longitud seguido
+ * de los bytes del mensaje. Las tramas permiten leer los mensajes tanto
+ * desde un stream como desde un canal NIO no bloqueante.
+ *
+ * El contenido de la trama puede ser la serializacion Java del mensaje
+ * (version 0) o la codificacion binaria de RaMessageCodec (version 1 o
+ * superior). Al abrir una conexion los dos extremos intercambian un
+ * mensaje HELLO, siempre en version 0, para acordar la version a usar.
+ * A partir de la version 3 el binary de los mensajes con agentes, clases
+ * o la lista de agencias puede ir comprimido (RaCompression).
+ */
+public class RaWire
+{
+    /**
+     * Tamanio maximo de una trama. Las tramas mayores se consideran corruptas.
+     */
+    public static final int MAX_FRAME = 64 * 1024 * 1024;
+
+    /**
+     * Version mas alta del formato que entiende esta agencia.
+     */
+    public static final int VERSION = RaMessageCodec.VERSION;
+
+    /**
+     * Convierte un mensaje en los bytes que forman el contenido de su trama,
+     * usando la version mas alta del formato.
+     */
+    public static byte[] encode(RaMessage msg) throws IOException{
+        return encode(msg, VERSION);
+    }
+
+    /**
+     * Convierte un mensaje en los bytes de su trama con la version indicada.
+     */
+    public static byte[] encode(RaMessage msg, int version) throws IOException{
+        if (version > 0) return RaMessageCodec.encode(msg, version);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(msg);
+        oos.close();
+        return bos.toByteArray();
+    }
+
+    /**
+     * Reconstruye un mensaje a partir del contenido de una trama.
+     * La version se reconoce por la cabecera de la serializacion Java
+     * (0xACED); en otro caso el primer byte es la version del formato.
+     * El campo version del mensaje indica el formato con el que llego.
+     */
+    public static RaMessage decode(byte[] data, int offset, int length)
+    throws IOException, ClassNotFoundException{
+        if (length >= 2 && (data[offset] & 0xFF) == 0xAC && (data[offset + 1] & 0xFF) == 0xED){
+            ObjectInputStream ois = new ObjectInputStream(
+                                        new ByteArrayInputStream(data, offset, length));
+            RaMessage msg = (RaMessage) ois.readObject();
+            msg.version = 0;
+            return msg;
+        }
+        return RaMessageCodec.decode(data, offset, length);
+    }
+
+    /**
+     * Escribe un mensaje como una trama. No vacia el stream.
+     */
+    public static void writeFrame(DataOutputStream out, RaMessage msg) throws IOException{
+        writeFrame(out, msg, VERSION);
+    }
+
+    /**
+     * Escribe un mensaje como una trama con la version indicada. No vacia el stream.
+     */
+    public static void writeFrame(DataOutputStream out, RaMessage msg, int version) throws IOException{
+        if (version > 0){
+            // el campo binary se escribe directamente, sin copiarlo a la trama
+            byte[] packed = RaMessageCodec.compressed(msg, version);
+            byte[] binary = (packed != null) ? packed : msg.binary;
+            RaMessageCodec.Writer header = RaMessageCodec.writeHeader(msg, version, binary != null, packed != null);
+            int n = (binary == null) ? 0 : binary.length;
+            out.writeInt(header.count + n);
+            out.write(header.buf, 0, header.count);
+            if (n > 0) out.write(binary, 0, n);
+            return;
+        }
+        byte[] data = encode(msg, version);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /**
+     * Devuelve la trama de un mensaje como buffers para una escritura
+     * agrupada en un canal: la cabecera y el campo binary sin copiar.
+     */
+    public static ByteBuffer[] frame(RaMessage msg, int version) throws IOException{
+        if (version > 0){
+            byte[] packed = RaMessageCodec.compressed(msg, version);
+            byte[] binary = (packed != null) ? packed : msg.binary;
+            RaMessageCodec.Writer header = RaMessageCodec.writeHeader(msg, version, binary != null, packed != null);
+            int n = (binary == null) ? 0 : binary.length;
+            ByteBuffer head = ByteBuffer.allocate(4 + header.count);
+            head.putInt(header.count + n);
+            head.put(header.buf, 0, header.count);
+            head.flip();
+            if (n == 0) return new ByteBuffer[]{ head };
+            return new ByteBuffer[]{ head, ByteBuffer.wrap(binary) };
+        }
+        byte[] data = encode(msg, version);
+        ByteBuffer frame = ByteBuffer.allocate(4 + data.length);
+        frame.putInt(data.length);
+        frame.put(data);
+        frame.flip();
+        return new ByteBuffer[]{ frame };
+    }
+
+    /**
+     * Lee la siguiente trama del stream y devuelve su mensaje.
+     *
+     * @throws EOFException Si el otro extremo ha cerrado la conexion.
+     */
+    public static RaMessage readFrame(DataInputStream in)
+    throws IOException, ClassNotFoundException{
+        int length = in.readInt();
+        checkLength(length);
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return decode(data, 0, length);
+    }
+
+    /**
+     * Comprueba la longitud leida de la cabecera de una trama.
+     */
+    public static void checkLength(int length) throws IOException{
+        if (length < 0 || length > MAX_FRAME)
+            throw new StreamCorruptedException("Longitud de trama no valida: " + length);
+    }
+
+    /**
+     * Agrupa varios mensajes al mismo destino en un mensaje BATCH. Su campo
+     * binary contiene las tramas de los mensajes, codificadas con la version
+     * indicada, una detras de otra.
+     */
+    public static RaMessage batch(List<RaMessage> messages, int version) throws IOException{
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        for (RaMessage msg : messages) writeFrame(dos, msg, version);
+        dos.close();
+        return new RaMessage(null, messages.get(0).recipient, MessagesEv.BATCH,
+                             Integer.toString(messages.size()), bos.toByteArray());
+    }
+
+    /**
+     * Escribe varios mensajes al mismo destino como una sola trama BATCH.
+     * Las tramas de los mensajes se montan en un RaBuffer del pool y se
+     * escriben desde el, sin crear el array del mensaje BATCH.
+     */
+    public static void writeBatchFrame(DataOutputStream out, List<RaMessage> messages, int version) throws IOException{
+        RaBuffer buf = RaBuffer.acquire();
+        try{
+            DataOutputStream dos = new DataOutputStream(buf);
+            for (RaMessage msg : messages) writeFrame(dos, msg, version);
+            dos.flush();
+            RaMessage batch = new RaMessage(null, messages.get(0).recipient, MessagesEv.BATCH,
+                                            Integer.toString(messages.size()), null);
+            if (version == 0){
+                batch.binary = buf.toByteArray();
+                writeFrame(out, batch, version);
+                return;
+            }
+            RaMessageCodec.Writer header = RaMessageCodec.writeHeader(batch, version, true);
+            out.writeInt(header.count + buf.size());
+            out.write(header.buf, 0, header.count);
+            buf.writeTo(out);
+        }
+        finally{
+            RaBuffer.release(buf);
+        }
+    }
+
+    /**
+     * Devuelve los mensajes contenidos en un mensaje BATCH, en orden.
+     */
+    public static List<RaMessage> unbatch(RaMessage batch)
+    throws IOException, ClassNotFoundException{
+        ArrayList<RaMessage> messages = new ArrayList<RaMessage>();
+        byte[] data = batch.binary;
+        int pos = 0;
+        while (pos < data.length){
+            if (data.length - pos < 4) throw new StreamCorruptedException("Lote truncado");
+            int length = ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16)
+                       | ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+            pos += 4;
+            if (length < 0 || length > data.length - pos) throw new StreamCorruptedException("Lote truncado");
+            messages.add(decode(data, pos, length));
+            pos += length;
+        }
+        return messages;
+    }
+
+    /**
+     * Crea la confirmacion de un mensaje recibido que lleva id.
+     */
+    public static RaMessage ack(RaMessage msg, RaAddress self){
+        RaMessage ack = new RaMessage(self, msg.sender, MessagesEv.ACK, null, null);
+        ack.replyTo = msg.id;
+        return ack;
+    }
+
+    /**
+     * Crea la respuesta de error a un mensaje recibido.
+     */
+    public static RaMessage error(RaMessage msg, RaAddress self, String reason){
+        RaMessage error = new RaMessage(self, msg.sender, MessagesEv.ERROR, reason, null);
+        error.replyTo = msg.id;
+        return error;
+    }
+
+    /**
+     * Crea el mensaje HELLO que ofrece la version mas alta soportada.
+     */
+    public static RaMessage hello(RaAddress sender, RaAddress recipient){
+        return new RaMessage(sender, recipient, MessagesEv.HELLO,
+                             Integer.toString(VERSION), null);
+    }
+
+    /**
+     * Devuelve la version acordada a partir de un HELLO recibido:
+     * la mas alta que entienden los dos extremos.
+     */
+    public static int negotiate(RaMessage hello){
+        try{
+            return Math.max(0, Math.min(VERSION, Integer.parseInt(hello.content)));
+        }
+        catch (NumberFormatException e){
+            return 0;
+        }
+    }
+
+    /**
+     * Responde a un HELLO por el canal del que vino. El canal contesta con
+     * la version del ultimo mensaje recibido, asi que la respuesta viaja en
+     * version 0 igual que el HELLO.
+     */
+    public static void answerHello(RaMessage hello, RaAddress self, RaChannel channel) throws IOException{
+        RaMessage reply = new RaMessage(self, hello.sender, MessagesEv.HELLO,
+                                        Integer.toString(negotiate(hello)), null);
+        channel.send(reply);
+    }
+}
@@ -58,6 +58,14 @@ public class RaDomain{
 
         // Lanza el servidor RaModel
         raModel = new RaModel();
+        try {
+            raModel.setIoMode (props.getProperty("ioMode", "threads"),
+                               Integer.parseInt(props.getProperty("ioThreads", "1")),
+                               Integer.parseInt(props.getProperty("workerThreads", "2")));
+        }
+        catch (NumberFormatException e){
+            System.err.println ("RaDomain: Valores de ioThreads o workerThreads no validos!");
+        }
         raModel.startService(port);
     }
 
@@ -4,8 +4,11 @@ import java.io.*;
 import java.net.*;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import raf.principal.*;
+import raf.messages.MessagesEv;
 
 /**
  * Una clase que construye dominios administrativos.
@@ -19,8 +22,10 @@ public class RaModel
      * Gestiona los mensajes que vienen a travs de una conexin socket.
      * Los Mensajes pueden ser AGENCY_ONLINE o AGENCY_OFFLINE.
      */
-    class ReceiveMessageThread extends Thread{
+    class ReceiveMessageThread extends Thread implements RaChannel{
         private Socket socket;
+        private DataOutputStream outStream = null;
+        private int version = 0;
         private RaModel raModel;
         private RaMessage message;
         private RaMessage outMessage;
@@ -40,47 +45,44 @@ public class RaModel
         /**
          * Maneja el mensaje de entrada.
          */
-        @SuppressWarnings("unchecked")
 		public void run(){
-            ObjectOutputStream outStream = null;
-            ObjectInputStream inStream = null;
+            DataInputStream inStream = null;
 
             try{
-                inStream = new ObjectInputStream(
+                inStream = new DataInputStream(
                                 new BufferedInputStream(
                                     socket.getInputStream()));
-                outStream = new ObjectOutputStream(
-                                    socket.getOutputStream());
+                outStream = new DataOutputStream(
+                                new BufferedOutputStream(
+                                    socket.getOutputStream()));
                 setAddress(socket.getInetAddress());
             }
             catch (IOException e){
                 System.err.println("ReceiveMessageThread: IOException en los  streams de conexion al socket!");
             }
 
-            try{
-                message = (RaMessage) inStream.readObject();
-                if ( !message.recipient.host.equals(raAddress.host) ){
-                    // se reenvia el mensaje
-                    new SendMessageThread(message).start();
+            // la conexion es persistente: se atienden mensajes hasta que
+            // la agencia la cierra
+            while (inStream != null){
+                try{
+                    message = RaWire.readFrame(inStream);
+                    version = message.version;
+                    raModel.processMessage(message, this);
                 }
-                else
-                if ( message.kind.equals("AGENCY_ONLINE") ){
-                    System.out.println ("ReceiveMessageThread: Ha llegado un mensaje AGENCY_ONLINE: " + message.sender.host.toString());
-                    int puerto = message.sender.port; 
-                    agencys.put ((message.sender.host.toString() + ":" + Integer.toString (puerto)), message.sender);
-                    raModel.broadcast();
+                catch (EOFException e){
+                    break;
                 }
-                else if ( message.kind.equals("AGENCY_OFFLINE") ){
-                    System.out.println ("ReceiveMessageThread: Ha llegado un Mensaje AGENCY_OFFLINE: " + message.sender.host.toString() );
-                    agencys.remove (message.sender.host.toString());
-                    raModel.broadcast();
+                catch (SocketTimeoutException e){
+                    System.out.println ("ReceiveMessageThread: cerrando conexion inactiva.");
+                    break;
+                }
+                catch (IOException e){
+                    System.err.println("ReceiveMessageThread: IOException en la transferencia de datos!");
+                    break;
+                }
+                catch (ClassNotFoundException e){
+                    System.err.println ("ReceiveMessageThread: ClassNotFoundException al recibir el objeto!");
                 }
-            }
-            catch (IOException e){
-                System.err.println("ReceiveMessageThread: IOException en la transferencia de datos!");
-            }
-            catch (ClassNotFoundException e){
-                System.err.println ("ReceiveMessageThread: ClassNotFoundException al recibir el objeto!");
             }
 
             try{
@@ -94,6 +96,14 @@ public class RaModel
             }
         }
 
+        /**
+         * Envia una respuesta por la conexion de la que vino el mensaje.
+         */
+        public synchronized void send(RaMessage msg) throws IOException{
+            RaWire.writeFrame(outStream, msg, version);
+            outStream.flush();
+        }
+
 		public RaMessage getOutMessage() {
 			return outMessage;
 		}
@@ -112,6 +122,17 @@ public class RaModel
     } // ReceiveMessageThread
 
 
+    /**
+     * Entrega al RaModel los mensajes recibidos por el RaNioServer.
+     */
+    class Receiver implements RaReceiver{
+
+        public void receive(RaMessage msg, InetAddress address, RaChannel channel){
+            processMessage(msg, channel);
+        }
+    } // Receiver
+
+
     /**
      * Escucha en el puerto especificado y lanza nuevos threads para recibir
      * mensajes de entrada.
@@ -130,7 +151,8 @@ public class RaModel
             try{
                 while (shouldLive == listenThread){
                     socket = serverSocket.accept();
-                    System.out.println ("ListenThread: Recibiendo un mensaje");
+                    System.out.println ("ListenThread: Recibiendo una conexion");
+                    socket.setSoTimeout(connectionTimeout);
                     new ReceiveMessageThread (parent, socket).start();
                     yield();
                 }
@@ -163,35 +185,13 @@ public class RaModel
          * Envia el mensaje a travs deuna conexin de socket.
          */
         public void run(){
-            Socket socket = null;
-            ObjectOutputStream outStream = null;
-            ObjectInputStream inStream = null;
-
             try {
-                socket = new Socket(msg.recipient.host, msg.recipient.port);
-                System.out.println ("SendMessageThread: socket creado a: " + msg.recipient.host.toString() + " " + msg.recipient.port);
-                outStream = new ObjectOutputStream(
-                                    socket.getOutputStream());
-                inStream = new ObjectInputStream(
-                                new BufferedInputStream(
-                                    socket.getInputStream()));
-                outStream.writeObject (msg);
-                outStream.flush();
-                System.out.println ("SendMessageThread: Escrito mensaje en el socket.");
+                connectionPool.send(msg);
+                System.out.println ("SendMessageThread: Escrito mensaje a: " + msg.recipient.host.toString() + " " + msg.recipient.port);
             }
             catch (IOException e){
                 System.err.println("SendMessageThread: IOException al enviar!");
             }
-
-            try{
-                if (inStream != null) inStream.close();
-                if (outStream != null) outStream.close();
-                if (socket != null) socket.close();
-            }
-            catch (IOException e){
-                // no deberia suceder nunca
-                System.err.println("SendMessageThread: IOException en el limpiado!");
-            }
         }
     } // SendMessageThread
 
@@ -222,17 +222,119 @@ public class RaModel
      */
     volatile Thread listenThread = null;
 
+    /**
+     * Pool de conexiones persistentes hacia las agencias del dominio.
+     */
+    RaConnectionPool connectionPool;
+
+    /**
+     * Tiempo en milisegundos tras el cual se cierra una conexion entrante
+     * sin actividad.
+     */
+    int connectionTimeout = 300000;
+
+    /**
+     * Cola de salida que agrupa los mensajes por agencia destino.
+     */
+    RaOutbox outbox = null;
+
+    /**
+     * Modo de entrada de la red: "threads" o "nio".
+     */
+    String ioMode = "threads";
+
+    /**
+     * Numero de threads de lectura del RaNioServer.
+     */
+    int ioThreads = 1;
+
+    /**
+     * Numero de threads que procesan los mensajes en modo nio.
+     */
+    int workerThreads = 2;
+
+    /**
+     * Servidor NIO usado en modo nio.
+     */
+    RaNioServer nioServer = null;
+
+    /**
+     * Threads que procesan los mensajes recibidos en modo nio.
+     */
+    ExecutorService workers = null;
+
     /**
      * Crea un nuevo servidor que maneja el estado del dominio.
      */
     public RaModel(){
         agencys = new Hashtable<Object, RaAddress>();
+        connectionPool = RaConnectionPool.getDefault();
+    }
+
+    /**
+     * Procesa un mensaje AGENCY_ONLINE o AGENCY_OFFLINE. Los mensajes que
+     * llevan id se confirman con un ACK.
+     */
+    @SuppressWarnings("unchecked")
+	void processMessage (RaMessage message, RaChannel channel){
+        if ( message.kind.equals(MessagesEv.HELLO) ){
+            try{
+                RaWire.answerHello(message, raAddress, channel);
+            }
+            catch (IOException e){
+                System.err.println("RaModel: No se ha podido contestar al HELLO!");
+            }
+        }
+        else
+        if ( message.kind.equals(MessagesEv.BATCH) ){
+            try{
+                for (RaMessage m : RaWire.unbatch(message)) processMessage(m, channel);
+            }
+            catch (IOException e){
+                System.err.println("RaModel: Lote de mensajes corrupto!");
+            }
+            catch (ClassNotFoundException e){
+                System.err.println("RaModel: ClassNotFoundException al desempaquetar el lote!");
+            }
+        }
+        else
+        if ( !message.recipient.host.equals(raAddress.host) ){
+            // se confirma aqui y se reenvia sin id
+            send(new RaMessage(message.sender, message.recipient,
+                               message.kind, message.content, message.binary));
+        }
+        else
+        if ( message.kind.equals("AGENCY_ONLINE") ){
+            System.out.println ("ReceiveMessageThread: Ha llegado un mensaje AGENCY_ONLINE: " + message.sender.host.toString());
+            int puerto = message.sender.port; 
+            agencys.put ((message.sender.host.toString() + ":" + Integer.toString (puerto)), message.sender);
+            broadcast();
+        }
+        else if ( message.kind.equals("AGENCY_OFFLINE") ){
+            System.out.println ("ReceiveMessageThread: Ha llegado un Mensaje AGENCY_OFFLINE: " + message.sender.host.toString() );
+            agencys.remove (message.sender.host.toString());
+            broadcast();
+        }
+
+        if (message.id != 0 && !message.kind.equals(MessagesEv.HELLO)
+                && !message.kind.equals(MessagesEv.BATCH)){
+            try{
+                channel.send(RaWire.ack(message, raAddress));
+            }
+            catch (IOException e){
+                System.err.println("RaModel: No se ha podido confirmar el mensaje " + message.kind);
+            }
+        }
     }
 
     /**
      * Baja la conexion de red.
      */
     public void dispose(){
+        if (nioServer != null){
+            stopService();
+            return;
+        }
         try{
              listenThread = null;
              serverSocket.close();
@@ -263,15 +365,18 @@ public class RaModel
             bos = new ByteArrayOutputStream();
             oos = new ObjectOutputStream (bos);
             oos.writeObject (servers);
+            oos.close();
+            byte[] data = bos.toByteArray();
 
             // envia un mensaje AGENCYS a todos los servidores conectados.
+            // La cola de salida sustituye los AGENCYS que aun no se han enviado.
             for (Enumeration<RaAddress> e = servers.elements(); e.hasMoreElements();){
                 message = new RaMessage (raAddress,
                                             (RaAddress)e.nextElement(),
-                                            "AGENCYS",
+                                            MessagesEv.AGENS,
                                             "",
-                                            bos.toByteArray());
-                new SendMessageThread (message).start();
+                                            data);
+                send (message);
             }
         }
         catch (IOException e){
@@ -286,7 +391,16 @@ public class RaModel
         port = portNo;
         try{
              raAddress = new RaAddress(InetAddress.getLocalHost(), port, null);
-
+             outbox = new RaOutbox(connectionPool, 2);
+
+             if (ioMode.equals("nio")){
+                 workers = Executors.newFixedThreadPool(workerThreads);
+                 nioServer = new RaNioServer(ioThreads, workers);
+                 nioServer.setConnectionTimeout(connectionTimeout);
+                 nioServer.bind(port, new Receiver());
+                 System.out.println ("Escuchando en el puerto: " + port + " (nio)");
+                 return;
+             }
              serverSocket = new ServerSocket(port);
              System.out.println ("Escuchando en el puerto: " + port);
         }
@@ -306,6 +420,18 @@ public class RaModel
      * Deja de escuchar en el dominio de red.
      */
     public void stopService(){
+        if (outbox != null){
+            outbox.shutdown();
+            outbox = null;
+        }
+        if (nioServer != null){
+            nioServer.shutdown();
+            nioServer = null;
+            workers.shutdown();
+            workers = null;
+            System.out.println ("Servidor NIO cerrado");
+            return;
+        }
         try{
              listenThread = null;
              serverSocket.close();
@@ -318,4 +444,23 @@ public class RaModel
         }
     }
 
+    /**
+     * Envia un mensaje a traves de la cola de salida.
+     */
+    void send (RaMessage msg){
+        RaOutbox box = outbox;
+        if (box != null) box.send(msg);
+        else new SendMessageThread(msg).start();
+    }
+
+    /**
+     * Establece el modo de entrada de la red ("threads" o "nio").
+     * Debe llamarse antes de startService().
+     */
+    public void setIoMode (String ioMode, int ioThreads, int workerThreads){
+        this.ioMode = ioMode;
+        this.ioThreads = ioThreads;
+        this.workerThreads = workerThreads;
+    }
+
 }